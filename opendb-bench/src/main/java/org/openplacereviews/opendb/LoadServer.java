@@ -0,0 +1,24 @@
+package org.openplacereviews.opendb;
+
+import org.openplacereviews.opendb.bench.BenchChainGenerator;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Arrays;
+
+/**
+ * Full opendb server (database, history, file backups) started inside load generator process.
+ */
+@SpringBootApplication
+public class LoadServer extends OpenDBServer {
+
+	public static ConfigurableApplicationContext start(String[] args) {
+		System.setProperty("spring.devtools.restart.enabled", "false");
+		return SpringApplication.run(LoadServer.class, args);
+	}
+
+	public void preStartApplication() {
+		blocksManager.setBootstrapList(Arrays.asList(BenchChainGenerator.BOOTSTRAP_LIST));
+	}
+}
@@ -0,0 +1,183 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openplacereviews.opendb.SecUtils;
+import org.openplacereviews.opendb.ops.*;
+import org.openplacereviews.opendb.ops.de.ColumnDef;
+import org.openplacereviews.opendb.ops.de.ColumnDef.IndexType;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.io.InputStreamReader;
+import java.security.KeyPair;
+import java.util.*;
+
+/**
+ * Generates synthetic chains for benchmarks the same way as core tests do:
+ * bootstrap operations are signed by test server user and then random places are created.
+ */
+public class BenchChainGenerator {
+
+	public static final String SERVER_NAME = "openplacereviews:test_1";
+	public static final String SERVER_KEY = "base64:PKCS#8:MD4CAQAwEAYHKoZIzj0CAQYFK4EEAAoEJzAlAgEBBCAOpUDyGrTPRPDQRCIRXysxC6gCgSTiNQ5nVEjhvsFITA==";
+	public static final String SERVER_PUBLIC_KEY = "base64:X.509:MFYwEAYHKoZIzj0CAQYFK4EEAAoDQgAETxKWXg3jhSxBtYhTxO/zMj6S0jO95ETUehlZ7yR150gFSmxqJcLE4YQDZ6t/Hn13kmaZbhSFMNsAX+kbeUMqbQ==";
+
+	public static final String[] BOOTSTRAP_LIST =
+			new String[]{"opr-0-test-user", "std-ops-defintions", "std-roles", "opr-0-test-grant", "std-validations"};
+	public static final String OBJ_TYPE = "osm.place";
+	public static final String OBJ_PREFIX = "bench-";
+
+	private final JsonFormatter formatter;
+	private final OpBlockchainRules rules;
+	private final KeyPair serverKeyPair;
+	private final Random random;
+	private int objectsCounter;
+
+	public BenchChainGenerator(long seed) throws FailedVerificationException {
+		this.formatter = new JsonFormatter();
+		this.rules = new OpBlockchainRules(formatter, null);
+		this.serverKeyPair = SecUtils.getKeyPair(SecUtils.ALGO_EC, SERVER_KEY, SERVER_PUBLIC_KEY);
+		this.random = new Random(seed);
+	}
+
+	public JsonFormatter getFormatter() {
+		return formatter;
+	}
+
+	public OpBlockchainRules getRules() {
+		return rules;
+	}
+
+	public KeyPair getServerKeyPair() {
+		return serverKeyPair;
+	}
+
+	public int getObjectsCount() {
+		return objectsCounter;
+	}
+
+	/**
+	 * @return chain with bootstrap operations and place operation definition packed into a single block
+	 */
+	public OpBlockChain bootstrapChain() throws FailedVerificationException {
+		OpBlockChain blc = new OpBlockChain(OpBlockChain.NULL, rules);
+		for (String f : BOOTSTRAP_LIST) {
+			OpOperation[] lst = formatter.fromJson(
+					new InputStreamReader(BenchChainGenerator.class.getResourceAsStream("/bootstrap/" + f + ".json")),
+					OpOperation[].class);
+			for (OpOperation o : lst) {
+				addOperation(blc, sign(o));
+			}
+		}
+		addOperation(blc, generatePlaceDefinitionOp());
+		createBlock(blc);
+		return blc;
+	}
+
+	public OpOperation generatePlaceDefinitionOp() throws FailedVerificationException {
+		OpOperation def = new OpOperation();
+		def.setType(OpBlockchainRules.OP_OPERATION);
+		OpObject obj = new OpObject();
+		obj.setId(OBJ_TYPE);
+		obj.putObjectValue("version", 1);
+		obj.putObjectValue("arity", 0);
+		obj.putStringValue("comment", "Operation to hold osm places");
+		def.addCreated(obj);
+		return sign(def);
+	}
+
+	/**
+	 * Builds chain of in-memory superblocks on top of bootstrap chain, every superblock creates new places.
+	 */
+	public OpBlockChain generateChain(int superblocks, int blocksPerSuperblock, int opsPerBlock) throws FailedVerificationException {
+		OpBlockChain parent = bootstrapChain();
+		for (int s = 0; s < superblocks; s++) {
+			OpBlockChain blc = new OpBlockChain(parent, rules);
+			for (int b = 0; b < blocksPerSuperblock; b++) {
+				for (OpOperation o : generateCreateOps(opsPerBlock)) {
+					addOperation(blc, o);
+				}
+				createBlock(blc);
+			}
+			parent = blc;
+		}
+		return new OpBlockChain(parent, rules);
+	}
+
+	public List<OpOperation> generateCreateOps(int count) throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<OpOperation>(count);
+		for (int i = 0; i < count; i++) {
+			ops.add(generateCreateOp());
+		}
+		return ops;
+	}
+
+	public OpOperation generateCreateOp() throws FailedVerificationException {
+		OpOperation op = new OpOperation();
+		op.setType(OBJ_TYPE);
+		op.addCreated(generatePlace(OBJ_PREFIX + objectsCounter, osmId(objectsCounter)));
+		objectsCounter++;
+		return sign(op);
+	}
+
+	public OpObject generatePlace(String id, long osmId) {
+		OpObject obj = new OpObject();
+		obj.setId(id);
+		obj.putObjectValue("osmId", osmId);
+		obj.putObjectValue("lat", random.nextDouble() * 180 - 90);
+		obj.putObjectValue("lon", random.nextDouble() * 360 - 180);
+		Map<String, Object> tags = new TreeMap<String, Object>();
+		tags.put("name", generatePlaceName());
+		tags.put("amenity", random.nextBoolean() ? "cafe" : "restaurant");
+		obj.putObjectValue("tags", tags);
+		return obj;
+	}
+
+	public String generatePlaceName() {
+		return "Place " + random.nextInt(100000);
+	}
+
+	/**
+	 * @param bound number of objects generated so far which are expected to be in chain
+	 */
+	public String randomObjectId(int bound) {
+		return OBJ_PREFIX + random.nextInt(Math.max(bound, 1));
+	}
+
+	public long randomOsmId(int bound) {
+		return osmId(random.nextInt(Math.max(bound, 1)));
+	}
+
+	public static long osmId(int objectInd) {
+		return 1000000L + objectInd;
+	}
+
+	public static OpIndexColumn createOsmIdIndex() {
+		OpIndexColumn index = new OpIndexColumn(OBJ_TYPE, "osmid", -1,
+				new ColumnDef("obj_osm", "osmid", "bigint", IndexType.INDEXED));
+		index.setFieldsExpression(Collections.singletonList("osmId"));
+		return index;
+	}
+
+	public OpOperation sign(OpOperation o) throws FailedVerificationException {
+		if (o.getSignedBy().isEmpty()) {
+			o.setSignedBy(SERVER_NAME);
+		}
+		o = rules.generateHashAndSign(o, serverKeyPair);
+		o.makeImmutable();
+		return o;
+	}
+
+	public OpBlock createBlock(OpBlockChain blc) throws FailedVerificationException {
+		OpBlock block = blc.createBlock(SERVER_NAME, serverKeyPair);
+		if (block == null) {
+			throw new IllegalStateException("Block was not created");
+		}
+		return block;
+	}
+
+	private void addOperation(OpBlockChain blc, OpOperation o) {
+		if (!blc.addOperation(o)) {
+			throw new IllegalStateException("Operation is not valid: " + o.getRawHash());
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.openplacereviews.opendb.bench;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Drives operations through http api of running server. Operations are already signed by generated users
+ * and server, so they are posted with dontSignByServer flag.
+ */
+public class HttpLoadTarget implements LoadTarget {
+
+	protected static final Log LOGGER = LogFactory.getLog(HttpLoadTarget.class);
+
+	private static final String AUTH_ADMIN_LOGIN = "auth/admin-login";
+	private static final String AUTH_PROCESS_OPERATION = "auth/process-operation?addToQueue=true&dontSignByServer=true";
+	private static final String MGMT_CREATE_BLOCK = "mgmt/create";
+
+	private final String url;
+	private final JsonFormatter formatter;
+
+	public HttpLoadTarget(String url, JsonFormatter formatter) {
+		this.url = url.endsWith("/") ? url : url + "/";
+		this.formatter = formatter;
+		// admin session is shared by all load threads
+		CookieHandler.setDefault(new CookieManager(null, CookiePolicy.ACCEPT_ALL));
+	}
+
+	@Override
+	public void prepare(LoadOperationGenerator generator) throws Exception {
+		String login = "name=" + URLEncoder.encode(BenchChainGenerator.SERVER_NAME, "UTF-8") +
+				"&pwd=" + URLEncoder.encode(BenchChainGenerator.SERVER_KEY, "UTF-8");
+		if (post(AUTH_ADMIN_LOGIN, "application/x-www-form-urlencoded", login) == null) {
+			throw new IllegalStateException("Couldn't login to " + url + " as " + BenchChainGenerator.SERVER_NAME);
+		}
+		if (!addOperation(generator.getGenerator().generatePlaceDefinitionOp())) {
+			LOGGER.info(String.format("Operation '%s' is already defined", BenchChainGenerator.OBJ_TYPE));
+		}
+		for (OpOperation op : generator.generateSignupOps()) {
+			if (!addOperation(op)) {
+				throw new IllegalStateException("Couldn't signup user " + op.getCreated().get(0).getId());
+			}
+		}
+		while (createBlock() > 0) {
+		}
+	}
+
+	@Override
+	public boolean addOperation(OpOperation op) throws IOException {
+		return post(AUTH_PROCESS_OPERATION, "application/json", formatter.opToJson(op)) != null;
+	}
+
+	@Override
+	public int createBlock() throws IOException {
+		String res = post(MGMT_CREATE_BLOCK, "application/x-www-form-urlencoded", "");
+		if (res == null) {
+			return 0;
+		}
+		OpBlock block = formatter.parseBlock(res);
+		return block.getOperations().size();
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return response body or null if server didn't respond with 200
+	 */
+	private String post(String path, String contentType, String body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url + path).openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", contentType + "; charset=UTF-8");
+		try (OutputStream out = conn.getOutputStream()) {
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		int code = conn.getResponseCode();
+		InputStream is = code == HttpURLConnection.HTTP_OK ? conn.getInputStream() : conn.getErrorStream();
+		StringBuilder res = new StringBuilder();
+		if (is != null) {
+			try (Reader r = new InputStreamReader(is, StandardCharsets.UTF_8)) {
+				char[] buf = new char[4096];
+				int len;
+				while ((len = r.read(buf)) != -1) {
+					res.append(buf, 0, len);
+				}
+			}
+		}
+		if (code != HttpURLConnection.HTTP_OK) {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug(String.format("Request %s failed with %d: %s", path, code, res));
+			}
+			return null;
+		}
+		return res.toString();
+	}
+}
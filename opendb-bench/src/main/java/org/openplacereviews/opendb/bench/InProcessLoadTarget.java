@@ -0,0 +1,65 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openplacereviews.opendb.LoadServer;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockchainRules;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.service.BlocksManager;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Drives operations directly through {@link BlocksManager} of the server started in the same process,
+ * so results don't include http overhead.
+ */
+public class InProcessLoadTarget implements LoadTarget {
+
+	private final ConfigurableApplicationContext ctx;
+	private final BlocksManager blocksManager;
+	private final boolean scheduledBlockCreation;
+
+	/**
+	 * @param scheduledBlockCreation keep block creation by server scheduler instead of load generator
+	 */
+	public InProcessLoadTarget(String[] springArgs, boolean scheduledBlockCreation) {
+		this.ctx = LoadServer.start(springArgs);
+		this.blocksManager = ctx.getBean(BlocksManager.class);
+		this.scheduledBlockCreation = scheduledBlockCreation;
+	}
+
+	@Override
+	public void prepare(LoadOperationGenerator generator) throws Exception {
+		if (!scheduledBlockCreation) {
+			// blocks are created by load generator to measure them
+			blocksManager.setBlockCreationOn(false);
+		}
+		BenchChainGenerator chain = generator.getGenerator();
+		if (blocksManager.getBlockchain().getLastBlockId() < 0) {
+			blocksManager.bootstrap(BenchChainGenerator.SERVER_NAME, chain.getServerKeyPair());
+		}
+		if (blocksManager.getBlockchain().getObjectByName(OpBlockchainRules.OP_OPERATION,
+				BenchChainGenerator.OBJ_TYPE) == null) {
+			blocksManager.addOperation(chain.generatePlaceDefinitionOp());
+		}
+		for (OpOperation op : generator.generateSignupOps()) {
+			blocksManager.addOperation(op);
+		}
+		while (createBlock() > 0) {
+		}
+	}
+
+	@Override
+	public boolean addOperation(OpOperation op) {
+		return blocksManager.addOperation(op);
+	}
+
+	@Override
+	public int createBlock() throws Exception {
+		OpBlock block = blocksManager.createBlock();
+		return block == null ? 0 : block.getOperations().size();
+	}
+
+	@Override
+	public void close() {
+		ctx.close();
+	}
+}
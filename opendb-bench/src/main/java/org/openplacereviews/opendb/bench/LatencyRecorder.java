@@ -0,0 +1,48 @@
+package org.openplacereviews.opendb.bench;
+
+import java.util.Arrays;
+
+/**
+ * Keeps all recorded latencies of a load run to report exact percentiles.
+ */
+public class LatencyRecorder {
+
+	private long[] values = new long[1024];
+	private int size;
+	private long sum;
+
+	public synchronized void record(long nanos) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = nanos;
+		sum += nanos;
+	}
+
+	public synchronized int getCount() {
+		return size;
+	}
+
+	public synchronized double getMeanMs() {
+		return size == 0 ? 0 : sum / (size * 1e6);
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 */
+	public synchronized double getPercentileMs(double percentile) {
+		if (size == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(values, size);
+		Arrays.sort(sorted);
+		int ind = (int) Math.ceil(percentile / 100 * size) - 1;
+		return sorted[Math.min(Math.max(ind, 0), size - 1)] / 1e6;
+	}
+
+	public String format() {
+		return String.format("count %d, mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+				getCount(), getMeanMs(), getPercentileMs(50), getPercentileMs(90), getPercentileMs(99),
+				getPercentileMs(100));
+	}
+}
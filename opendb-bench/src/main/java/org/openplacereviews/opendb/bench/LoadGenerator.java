@@ -0,0 +1,207 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openplacereviews.opendb.bench.LoadOperationGenerator.LoadOperation;
+import org.openplacereviews.opendb.bench.LoadOperationGenerator.LoadOperationType;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: signs up users, sends mix of place create / edit / delete operations
+ * with requested rate and creates blocks periodically. Reports throughput, operations latency and block creation time.
+ * <p>
+ * Arguments are key=value pairs, arguments starting with -- are passed to in-process server
+ * (i.e. --opendb.db.dbSuperblockSize=16 --opendb.db.compactCoefficient=0.5):
+ * <ul>
+ * <li>target - inprocess (default) or http</li>
+ * <li>url - api url of running server for http target (default http://localhost:6463/api/)</li>
+ * <li>users - number of signed up users (default 10)</li>
+ * <li>ops - number of operations to send (default 10000)</li>
+ * <li>duration - seconds to run, overrides ops if specified</li>
+ * <li>rate - operations per second, 0 is unlimited (default 0)</li>
+ * <li>threads - number of threads sending operations (default 4)</li>
+ * <li>mix - create:edit:delete weights (default 60:30:10)</li>
+ * <li>blockInterval - ms between blocks created by load generator, 0 relies on server scheduler (default 1000)</li>
+ * <li>seed - random seed (default 0)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final String DEFAULT_URL = "http://localhost:6463/api/";
+
+	private final LoadTarget target;
+	private final LoadOperationGenerator generator;
+	private final LatencyRecorder opLatency = new LatencyRecorder();
+	private final LatencyRecorder blockLatency = new LatencyRecorder();
+	private final Map<LoadOperationType, LatencyRecorder> opTypeLatency =
+			new EnumMap<LoadOperationType, LatencyRecorder>(LoadOperationType.class);
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger blockOps = new AtomicInteger();
+
+	public LoadGenerator(LoadTarget target, LoadOperationGenerator generator) {
+		this.target = target;
+		this.generator = generator;
+		for (LoadOperationType t : LoadOperationType.values()) {
+			opTypeLatency.put(t, new LatencyRecorder());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		List<String> springArgs = new ArrayList<String>();
+		for (String a : args) {
+			if (a.startsWith("--")) {
+				springArgs.add(a);
+			} else if (a.contains("=")) {
+				params.put(a.substring(0, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+			} else {
+				throw new IllegalArgumentException("Argument should be specified as key=value: " + a);
+			}
+		}
+		long seed = Long.parseLong(param(params, "seed", "0"));
+		BenchChainGenerator chain = new BenchChainGenerator(seed);
+		LoadOperationGenerator generator = new LoadOperationGenerator(chain, seed,
+				Integer.parseInt(param(params, "users", "10")), param(params, "mix", "60:30:10"));
+		int blockInterval = Integer.parseInt(param(params, "blockInterval", "1000"));
+		String targetName = param(params, "target", "inprocess");
+		LoadTarget target;
+		if ("http".equals(targetName)) {
+			target = new HttpLoadTarget(param(params, "url", DEFAULT_URL), chain.getFormatter());
+		} else if ("inprocess".equals(targetName)) {
+			if (!containsArg(springArgs, "--server.port")) {
+				// web server is not used by load generator
+				springArgs.add("--server.port=0");
+			}
+			target = new InProcessLoadTarget(springArgs.toArray(new String[springArgs.size()]), blockInterval == 0);
+		} else {
+			throw new IllegalArgumentException("Unknown target " + targetName);
+		}
+		try {
+			LoadGenerator lg = new LoadGenerator(target, generator);
+			lg.run(Integer.parseInt(param(params, "ops", "10000")),
+					Integer.parseInt(param(params, "duration", "0")),
+					Integer.parseInt(param(params, "rate", "0")),
+					Integer.parseInt(param(params, "threads", "4")),
+					blockInterval);
+		} finally {
+			target.close();
+		}
+	}
+
+	public void run(int ops, int durationSeconds, int rate, int threads, int blockIntervalMs) throws Exception {
+		target.prepare(generator);
+		ScheduledExecutorService blockService = Executors.newSingleThreadScheduledExecutor();
+		if (blockIntervalMs > 0) {
+			blockService.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					createBlock();
+				}
+			}, blockIntervalMs, blockIntervalMs, TimeUnit.MILLISECONDS);
+		}
+		final long start = System.nanoTime();
+		final long end = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+		final AtomicInteger remaining = new AtomicInteger(durationSeconds > 0 ? Integer.MAX_VALUE : ops);
+		final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+		final AtomicLong nextSlot = new AtomicLong(start);
+		ExecutorService service = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(service.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					while (remaining.getAndDecrement() > 0) {
+						long opStart = System.nanoTime();
+						if (intervalNanos > 0) {
+							// latency is measured from scheduled time, so server stalls are not hidden by waiting senders
+							opStart = nextSlot.getAndAdd(intervalNanos);
+							long wait = opStart - System.nanoTime();
+							if (wait > 0) {
+								TimeUnit.NANOSECONDS.sleep(wait);
+							}
+						}
+						if (opStart >= end) {
+							break;
+						}
+						sendOperation(opStart);
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		service.shutdown();
+		blockService.shutdown();
+		blockService.awaitTermination(1, TimeUnit.MINUTES);
+		if (blockIntervalMs > 0) {
+			// pack the rest of the queue
+			while (createBlock() > 0) {
+			}
+		}
+		report(elapsed);
+	}
+
+	private void sendOperation(long opStart) throws Exception {
+		LoadOperation lo = generator.nextOperation();
+		boolean success;
+		try {
+			success = target.addOperation(lo.op);
+		} catch (Exception e) {
+			success = false;
+		}
+		long latency = System.nanoTime() - opStart;
+		generator.operationProcessed(lo, success);
+		if (success) {
+			opLatency.record(latency);
+			opTypeLatency.get(lo.type).record(latency);
+		} else {
+			failed.incrementAndGet();
+		}
+	}
+
+	private int createBlock() {
+		long st = System.nanoTime();
+		try {
+			int cnt = target.createBlock();
+			if (cnt > 0) {
+				blockLatency.record(System.nanoTime() - st);
+				blockOps.addAndGet(cnt);
+			}
+			return cnt;
+		} catch (Exception e) {
+			System.err.println("Block creation failed: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	private void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		System.out.println(String.format("Sent %d operations in %.1f s: %.1f ops/s, failed %d",
+				opLatency.getCount(), seconds, opLatency.getCount() / seconds, failed.get()));
+		System.out.println("Operations latency: " + opLatency.format());
+		for (LoadOperationType t : LoadOperationType.values()) {
+			System.out.println(String.format("  %-6s %s", t.name().toLowerCase(), opTypeLatency.get(t).format()));
+		}
+		System.out.println(String.format("Blocks created: %d with %d operations", blockLatency.getCount(), blockOps.get()));
+		System.out.println("Block creation time: " + blockLatency.format());
+	}
+
+	private static String param(Map<String, String> params, String key, String def) {
+		String v = params.get(key);
+		return v == null ? def : v;
+	}
+
+	private static boolean containsArg(List<String> args, String key) {
+		for (String a : args) {
+			if (a.startsWith(key + "=")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
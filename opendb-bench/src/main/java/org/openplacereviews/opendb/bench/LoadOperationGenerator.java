@@ -0,0 +1,173 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openplacereviews.opendb.SecUtils;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockchainRules;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.security.KeyPair;
+import java.util.*;
+
+/**
+ * Generates signed place operations for load tests. Every operation is signed by one of generated users
+ * and by the server (as process-operation api does). Objects edited or deleted by in-flight operations
+ * are not handed out again until {@link #operationProcessed(LoadOperation, boolean)} is called,
+ * so generated operations stay valid when they are processed concurrently.
+ */
+public class LoadOperationGenerator {
+
+	public static final String USER_PREFIX = "bench_";
+	private static final String F_NAME = "tags.name";
+	private static final String F_VERSION = "version";
+
+	public enum LoadOperationType {
+		CREATE, EDIT, DELETE
+	}
+
+	public static class LoadOperation {
+		public final LoadOperationType type;
+		public final OpOperation op;
+		private final String objectId;
+		private final String name;
+
+		private LoadOperation(LoadOperationType type, OpOperation op, String objectId, String name) {
+			this.type = type;
+			this.op = op;
+			this.objectId = objectId;
+			this.name = name;
+		}
+	}
+
+	private final BenchChainGenerator generator;
+	private final Random random;
+	private final String runId;
+	private final int createWeight;
+	private final int editWeight;
+	private final int deleteWeight;
+	private final List<String> userNames = new ArrayList<String>();
+	private final List<KeyPair> userKeys = new ArrayList<KeyPair>();
+	// objects available for edit / delete with their current names
+	private final List<String> available = new ArrayList<String>();
+	private final Map<String, String> names = new HashMap<String, String>();
+	private int objectsCounter;
+
+	/**
+	 * @param mix weights of create, edit and delete operations, i.e. 60:30:10
+	 */
+	public LoadOperationGenerator(BenchChainGenerator generator, long seed, int users, String mix)
+			throws FailedVerificationException {
+		this.generator = generator;
+		this.random = new Random(seed);
+		// ids are unique per run so load could be repeated against the same database
+		this.runId = Long.toString(System.currentTimeMillis(), 36);
+		String[] weights = mix.split(":");
+		if (weights.length != 3) {
+			throw new IllegalArgumentException("Mix should be specified as create:edit:delete weights " + mix);
+		}
+		this.createWeight = Integer.parseInt(weights[0]);
+		this.editWeight = Integer.parseInt(weights[1]);
+		this.deleteWeight = Integer.parseInt(weights[2]);
+		if (createWeight <= 0 || editWeight < 0 || deleteWeight < 0) {
+			throw new IllegalArgumentException("Mix should have positive create weight " + mix);
+		}
+		for (int i = 0; i < users; i++) {
+			userNames.add(USER_PREFIX + runId + "_" + i);
+			userKeys.add(SecUtils.generateRandomEC256K1KeyPair());
+		}
+	}
+
+	public BenchChainGenerator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * @return signup operations of generated users which should be processed before any other generated operation
+	 */
+	public List<OpOperation> generateSignupOps() throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<OpOperation>(userNames.size());
+		for (int i = 0; i < userNames.size(); i++) {
+			OpOperation op = new OpOperation();
+			op.setType(OpBlockchainRules.OP_SIGNUP);
+			OpObject obj = new OpObject();
+			obj.setId(userNames.get(i));
+			obj.putStringValue(OpBlockchainRules.F_AUTH_METHOD, OpBlockchainRules.METHOD_PROVIDED);
+			obj.putStringValue(OpBlockchainRules.F_ALGO, SecUtils.ALGO_EC);
+			obj.putStringValue(OpBlockchainRules.F_PUBKEY,
+					SecUtils.encodeKey(SecUtils.KEY_BASE64, userKeys.get(i).getPublic()));
+			op.addCreated(obj);
+			ops.add(sign(op, i));
+		}
+		return ops;
+	}
+
+	public synchronized LoadOperation nextOperation() throws FailedVerificationException {
+		int r = random.nextInt(createWeight + editWeight + deleteWeight);
+		if (r >= createWeight && !available.isEmpty()) {
+			String objectId = available.remove(random.nextInt(available.size()));
+			if (r < createWeight + editWeight) {
+				return generateEditOp(objectId);
+			}
+			return generateDeleteOp(objectId);
+		}
+		return generateCreateOp();
+	}
+
+	public synchronized void operationProcessed(LoadOperation lo, boolean success) {
+		if (lo.type == LoadOperationType.DELETE && success) {
+			names.remove(lo.objectId);
+			return;
+		}
+		if (lo.type != LoadOperationType.CREATE || success) {
+			if (success) {
+				names.put(lo.objectId, lo.name);
+			}
+			available.add(lo.objectId);
+		}
+	}
+
+	private LoadOperation generateCreateOp() throws FailedVerificationException {
+		int ind = objectsCounter++;
+		String objectId = BenchChainGenerator.OBJ_PREFIX + runId + "-" + ind;
+		OpObject obj = generator.generatePlace(objectId, BenchChainGenerator.osmId(ind));
+		OpOperation op = new OpOperation();
+		op.setType(BenchChainGenerator.OBJ_TYPE);
+		op.addCreated(obj);
+		return new LoadOperation(LoadOperationType.CREATE, sign(op, random.nextInt(userKeys.size())),
+				objectId, obj.getFieldByExpr(F_NAME).toString());
+	}
+
+	private LoadOperation generateEditOp(String objectId) throws FailedVerificationException {
+		String name = generator.generatePlaceName();
+		OpObject edit = new OpObject();
+		edit.setId(objectId);
+		Map<String, Object> change = new TreeMap<String, Object>();
+		change.put(F_VERSION, OpBlockChain.OP_CHANGE_INCREMENT);
+		change.put(F_NAME, Collections.singletonMap(OpBlockChain.OP_CHANGE_SET, name));
+		Map<String, Object> current = new TreeMap<String, Object>();
+		current.put(F_NAME, names.get(objectId));
+		edit.putObjectValue(OpObject.F_CHANGE, change);
+		edit.putObjectValue(OpObject.F_CURRENT, current);
+		OpOperation op = new OpOperation();
+		op.setType(BenchChainGenerator.OBJ_TYPE);
+		op.addEdited(edit);
+		return new LoadOperation(LoadOperationType.EDIT, sign(op, random.nextInt(userKeys.size())), objectId, name);
+	}
+
+	private LoadOperation generateDeleteOp(String objectId) throws FailedVerificationException {
+		OpOperation op = new OpOperation();
+		op.setType(BenchChainGenerator.OBJ_TYPE);
+		op.addDeleted(Collections.singletonList(objectId));
+		return new LoadOperation(LoadOperationType.DELETE, sign(op, random.nextInt(userKeys.size())),
+				objectId, names.get(objectId));
+	}
+
+	private OpOperation sign(OpOperation op, int user) throws FailedVerificationException {
+		op.setSignedBy(userNames.get(user));
+		op.addOtherSignedBy(BenchChainGenerator.SERVER_NAME);
+		op = generator.getRules().generateHashAndSign(op, userKeys.get(user), generator.getServerKeyPair());
+		op.makeImmutable();
+		return op;
+	}
+}
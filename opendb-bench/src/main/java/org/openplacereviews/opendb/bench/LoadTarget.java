@@ -0,0 +1,26 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openplacereviews.opendb.ops.OpOperation;
+
+/**
+ * Server under load: operations are added to its queue and blocks are created from the queue.
+ */
+public interface LoadTarget {
+
+	/**
+	 * Prepares target to accept operations of generated users, i.e. bootstraps empty blockchain.
+	 */
+	void prepare(LoadOperationGenerator generator) throws Exception;
+
+	/**
+	 * @return false if operation was rejected
+	 */
+	boolean addOperation(OpOperation op) throws Exception;
+
+	/**
+	 * @return number of operations packed into created block or 0 if block was not created
+	 */
+	int createBlock() throws Exception;
+
+	void close();
+}
@@ -0,0 +1,104 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
+import org.openplacereviews.opendb.ops.OpIndexColumn;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Core chain operations measured on a synthetic chain with varying number of in-memory superblocks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpBlockChainBenchmark {
+
+	private static final int BLOCKS_PER_SUPERBLOCK = 8;
+	private static final int OPS_PER_BLOCK = 32;
+
+	@State(Scope.Thread)
+	public static class ChainState {
+
+		@Param({"1", "8", "32"})
+		public int superblocks;
+
+		BenchChainGenerator generator;
+		OpBlockChain blc;
+		OpIndexColumn osmIdIndex;
+		int chainObjects;
+
+		@Setup(Level.Trial)
+		public void setup() throws FailedVerificationException {
+			generator = new BenchChainGenerator(superblocks);
+			blc = generator.generateChain(superblocks, BLOCKS_PER_SUPERBLOCK, OPS_PER_BLOCK);
+			osmIdIndex = BenchChainGenerator.createOsmIdIndex();
+			chainObjects = generator.getObjectsCount();
+		}
+	}
+
+	// new signed operations are prepared for every invocation, so signing doesn't affect results
+	@State(Scope.Thread)
+	public static class BlockState {
+
+		List<OpOperation> ops;
+		OpBlockChain queueChain;
+		OpBlock blockToReplicate;
+		OpBlockChain replicateChain;
+
+		@Setup(Level.Invocation)
+		public void setup(ChainState chain) throws FailedVerificationException {
+			OpBlockChain parent = chain.blc.getParent();
+			ops = chain.generator.generateCreateOps(OPS_PER_BLOCK);
+			queueChain = new OpBlockChain(parent, parent.getRules());
+			for (OpOperation o : ops) {
+				queueChain.addOperation(o);
+			}
+			OpBlockChain source = new OpBlockChain(parent, parent.getRules());
+			for (OpOperation o : chain.generator.generateCreateOps(OPS_PER_BLOCK)) {
+				source.addOperation(o);
+			}
+			blockToReplicate = chain.generator.createBlock(source);
+			replicateChain = new OpBlockChain(parent, parent.getRules());
+		}
+	}
+
+	@Benchmark
+	public OpBlockChain addOperations(ChainState chain, BlockState block) {
+		OpBlockChain blc = new OpBlockChain(chain.blc.getParent(), chain.blc.getRules());
+		for (OpOperation o : block.ops) {
+			blc.addOperation(o);
+		}
+		return blc;
+	}
+
+	@Benchmark
+	public OpBlock createBlock(ChainState chain, BlockState block) throws FailedVerificationException {
+		return chain.generator.createBlock(block.queueChain);
+	}
+
+	@Benchmark
+	public OpBlock replicateBlock(BlockState block) {
+		return block.replicateChain.replicateBlock(block.blockToReplicate);
+	}
+
+	@Benchmark
+	public OpObject getObjectByName(ChainState chain) {
+		return chain.blc.getObjectByName(BenchChainGenerator.OBJ_TYPE, chain.generator.randomObjectId(chain.chainObjects));
+	}
+
+	@Benchmark
+	public List<OpObject> fetchObjectsByIndex(ChainState chain) {
+		ObjectsSearchRequest req = new ObjectsSearchRequest();
+		chain.blc.fetchObjectsByIndex(BenchChainGenerator.OBJ_TYPE, chain.osmIdIndex, req, chain.generator.randomOsmId(chain.chainObjects));
+		return req.result;
+	}
+}
@@ -0,0 +1,109 @@
+package org.openplacereviews.opendb.bench;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockchainRules;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.openplacereviews.opendb.util.OpExprEvaluator;
+import org.openplacereviews.opendb.util.OpExprEvaluator.EvaluationContext;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing, expression evaluation and json (de)serialization used on every operation and block.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OpBlockchainRulesBenchmark {
+
+	@Param({"16", "256"})
+	public int blockSize;
+
+	private OpBlockchainRules rules;
+	private JsonFormatter formatter;
+	private OpBlockChain blc;
+	private OpBlock block;
+	private OpOperation op;
+	private String blockJson;
+	private String opJson;
+	private OpExprEvaluator simpleExpr;
+	private OpExprEvaluator roleExpr;
+	private JsonObject opCtx;
+
+	@Setup(Level.Trial)
+	public void setup() throws FailedVerificationException {
+		BenchChainGenerator generator = new BenchChainGenerator(blockSize);
+		rules = generator.getRules();
+		formatter = generator.getFormatter();
+		blc = new OpBlockChain(generator.bootstrapChain(), rules);
+		for (OpOperation o : generator.generateCreateOps(blockSize)) {
+			blc.addOperation(o);
+		}
+		block = generator.createBlock(blc);
+		op = block.getOperations().get(0);
+		blockJson = formatter.toJson(block);
+		opJson = formatter.opToJson(op);
+		opCtx = formatter.toJsonElement(op).getAsJsonObject();
+		simpleExpr = OpExprEvaluator.parseExpression("std:eq(.type, 'osm.place')");
+		roleExpr = OpExprEvaluator.parseExpression("auth:has_sig_roles(this, set:all('administrator', 'master'))");
+	}
+
+	@Benchmark
+	public String calculateMerkleTreeHash() {
+		return rules.calculateMerkleTreeHash(block);
+	}
+
+	@Benchmark
+	public String calculateBlockHash() {
+		return rules.calculateHash(block);
+	}
+
+	@Benchmark
+	public Object evaluateSimpleExpression() {
+		return simpleExpr.evaluateObject(createContext());
+	}
+
+	@Benchmark
+	public Object evaluateRoleExpression() {
+		return roleExpr.evaluateObject(createContext());
+	}
+
+	@Benchmark
+	public OpExprEvaluator parseExpression() {
+		return OpExprEvaluator.parseExpression("auth:has_sig_roles(this, set:all('administrator', 'master'))");
+	}
+
+	@Benchmark
+	public OpOperation parseOperation() {
+		return formatter.parseOperation(opJson);
+	}
+
+	@Benchmark
+	public String serializeOperation() {
+		return formatter.opToJson(op);
+	}
+
+	@Benchmark
+	public OpBlock parseBlock() {
+		return formatter.parseBlock(blockJson);
+	}
+
+	@Benchmark
+	public String serializeBlock() {
+		return formatter.toJson(block);
+	}
+
+	private EvaluationContext createContext() {
+		JsonElement created = opCtx.get(OpOperation.F_CREATE);
+		return new EvaluationContext(blc, opCtx, created, null, null);
+	}
+}
@@ -5,6 +5,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.service.DBConsensusManager;
+import org.openplacereviews.opendb.service.HistoryManager;
 import org.openplacereviews.opendb.service.IPFSFileManager;
 import org.openplacereviews.opendb.service.LogOperationService;
 import org.openplacereviews.opendb.util.DBConstants;
@@ -16,11 +17,14 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.boot.web.servlet.MultipartConfigFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 import javax.servlet.MultipartConfigElement;
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -43,6 +47,8 @@ public class OpenDBServer {
 	@Autowired
 	LogOperationService logOperationService;
 	@Autowired
+	HistoryManager historyManager;
+	@Autowired
 	IPFSFileManager externalResourcesService;
 	@Autowired
 	private JdbcTemplate jdbcTemplate;
@@ -58,25 +64,29 @@ public class OpenDBServer {
 
 	public MetadataDb loadMetadata() {
 		MetadataDb d = new MetadataDb();
-		try {
-			DatabaseMetaData mt = jdbcTemplate.getDataSource().getConnection().getMetaData();
-			ResultSet rs = mt.getColumns(null, DBConstants.SCHEMA_NAME, null, null);
-			while (rs.next()) {
-				String tName = rs.getString("TABLE_NAME");
-				if (!d.tablesSpec.containsKey(tName)) {
-					d.tablesSpec.put(tName, new ArrayList<OpenDBServer.MetadataColumnSpec>());
+		jdbcTemplate.execute(new ConnectionCallback<Void>() {
+
+			@Override
+			public Void doInConnection(Connection conn) throws SQLException, DataAccessException {
+				DatabaseMetaData mt = conn.getMetaData();
+				try (ResultSet rs = mt.getColumns(null, DBConstants.SCHEMA_NAME, null, null)) {
+					while (rs.next()) {
+						String tName = rs.getString("TABLE_NAME");
+						if (!d.tablesSpec.containsKey(tName)) {
+							d.tablesSpec.put(tName, new ArrayList<OpenDBServer.MetadataColumnSpec>());
+						}
+						List<MetadataColumnSpec> cols = d.tablesSpec.get(tName);
+						MetadataColumnSpec spec = new MetadataColumnSpec();
+						spec.columnName = rs.getString("COLUMN_NAME");
+						spec.sqlType = rs.getInt("DATA_TYPE");
+						spec.dataType = rs.getString("TYPE_NAME");
+						spec.columnSize = rs.getInt("COLUMN_SIZE");
+						cols.add(spec);
+					}
 				}
-				List<MetadataColumnSpec> cols = d.tablesSpec.get(tName);
-				MetadataColumnSpec spec = new MetadataColumnSpec();
-				spec.columnName = rs.getString("COLUMN_NAME");
-				spec.sqlType = rs.getInt("DATA_TYPE");
-				spec.dataType = rs.getString("TYPE_NAME");
-				spec.columnSize = rs.getInt("COLUMN_SIZE");
-				cols.add(spec);
+				return null;
 			}
-		} catch (SQLException e) {
-			throw new IllegalStateException("Can't read db metadata", e);
-		}
+		});
 		return d;
 	}
 
@@ -89,6 +99,10 @@ public class OpenDBServer {
 				MetadataDb metadataDB = loadMetadata();
 				OpBlockChain blockchain = dbDataManager.init(metadataDB);
 				blocksManager.init(metadataDB, blockchain);
+				if (blocksManager.isRestoreFromBackupOn()) {
+					blocksManager.restoreFromBackup();
+				}
+				historyManager.init();
 				externalResourcesService.init();
 				LOGGER.info("Application has started");
 			} catch (RuntimeException e) {
@@ -2,25 +2,43 @@ package org.openplacereviews.opendb.api;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openplacereviews.opendb.config.WebSecurityConfiguration;
 import org.openplacereviews.opendb.ops.*;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
+import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.scheduled.OpenDBScheduledServices;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.service.BlocksManager.BlocksListResult;
 import org.openplacereviews.opendb.service.HistoryManager;
+import org.openplacereviews.opendb.service.HistoryManager.HistoryEdit;
 import org.openplacereviews.opendb.service.HistoryManager.HistoryObjectRequest;
 import org.openplacereviews.opendb.service.LogOperationService;
 import org.openplacereviews.opendb.service.LogOperationService.LogEntry;
+import org.openplacereviews.opendb.service.SlowLogService;
+import org.openplacereviews.opendb.service.SlowLogService.SlowOperationEntry;
+import org.openplacereviews.opendb.service.SlowLogService.SlowQueryEntry;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
 
 @Controller
 @RequestMapping("/api")
@@ -29,6 +47,7 @@ public class ApiController {
 	protected static final Log LOGGER = LogFactory.getLog(ApiController.class);
 	
 	public static final int LIMIT_RESULTS = 10000;
+	public static final int LIMIT_BLOCKS_RANGE = 1000;
 
 	@Autowired
 	private BlocksManager manager;
@@ -42,9 +61,20 @@ public class ApiController {
 	@Autowired
 	private LogOperationService logService;
 
+	@Autowired
+	private SlowLogService slowLogService;
+
 	@Autowired
 	private OpenDBScheduledServices scheduledServices;
 
+	// snapshot is exported to admins and replicas from the allowed addresses, concurrent exports are limited (0 - disabled)
+	@Value("${opendb.db.snapshotExports:1}")
+	private int snapshotExports = 1;
+	private Semaphore snapshotExportPermits;
+
+	@Value("${opendb.db.snapshotPeers:}")
+	private String snapshotPeers;
+
 	@GetMapping(path = "/status", produces = "text/html;charset=UTF-8")
 	@ResponseBody
 	public String status() {
@@ -101,9 +131,33 @@ public class ApiController {
 
 	@GetMapping(path = "/logs", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String logsList() throws FailedVerificationException {
+	public String logsList(@RequestParam(required = false) String type,
+			@RequestParam(required = false, defaultValue = "0") long from,
+			@RequestParam(required = false, defaultValue = "" + Long.MAX_VALUE) long to,
+			@RequestParam(required = false, defaultValue = "1000") int limit) throws FailedVerificationException {
 		LogResult r = new LogResult();
-		r.logs = logService.getLog();
+		if (limit < 0 || limit > LIMIT_RESULTS) {
+			limit = LIMIT_RESULTS;
+		}
+		r.logs = logService.getLog(OUtils.isEmpty(type) ? null : type, from, to, limit);
+		return formatter.fullObjectToJson(r);
+	}
+
+	public static class SlowLogResult {
+		public long opThresholdMs;
+		public long queryThresholdMs;
+		public Collection<SlowOperationEntry> operations;
+		public Collection<SlowQueryEntry> queries;
+	}
+
+	@GetMapping(path = "/slow-log", produces = "text/json;charset=UTF-8")
+	@ResponseBody
+	public String slowLog() {
+		SlowLogResult r = new SlowLogResult();
+		r.opThresholdMs = slowLogService.getOpThresholdMs();
+		r.queryThresholdMs = slowLogService.getQueryThresholdMs();
+		r.operations = slowLogService.getOperations();
+		r.queries = slowLogService.getQueries();
 		return formatter.fullObjectToJson(r);
 	}
 
@@ -123,15 +177,30 @@ public class ApiController {
 	
 	protected static class MetricResult {
 		public String id;
-		public int[] count;
-		public int[] totalSec;
-		public int[] avgMs;
-		
+		public long[] count;
+		public double[] totalSec;
+		public double[] avgMs;
+		public double[] p50Ms;
+		public double[] p90Ms;
+		public double[] p99Ms;
+		public double[] maxMs;
 	}
 	
 	protected static class MetricsResult {
+		public int[] windowMinutes = PerformanceMetrics.getWindowMinutes();
 		public List<MetricResult> metrics = new ArrayList<>();
 	}
+	
+	protected static class OpTypeMetricResult {
+		public String type;
+		public long ops;
+		public long bytes;
+		public long created;
+		public long edited;
+		public long deleted;
+		public long rejected;
+		public Map<String, Long> rejectedByError = new TreeMap<>();
+	}
 
 	@GetMapping(path = "/blocks", produces = "text/json;charset=UTF-8")
 	@ResponseBody
@@ -164,6 +233,76 @@ public class ApiController {
 		return formatter.fullObjectToJson(br);
 	}
 
+	@GetMapping(path = "/blocks-range", produces = "text/json;charset=UTF-8")
+	public void getBlocksRange(@RequestParam(required = false, defaultValue = "0") int fromId,
+			@RequestParam(required = false) String from,
+			@RequestParam(required = false, defaultValue = "100") int limit,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!OUtils.isEmpty(from)) {
+			OpBlock found = manager.getBlockchain().getBlockHeaderByRawHash(OpBlockchainRules.getRawHash(from));
+			if (found == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Block is not found in the main chain: " + from);
+				return;
+			}
+			fromId = found.getBlockId() + 1;
+		}
+		response.setContentType("text/json;charset=UTF-8");
+		try (Writer w = openResponseWriter(request, response)) {
+			manager.writeBlocksRange(Math.max(fromId, 0), Math.min(Math.max(limit, 0), LIMIT_BLOCKS_RANGE), w);
+		}
+	}
+
+	@GetMapping(path = "/snapshot", produces = "text/json;charset=UTF-8")
+	public void getSnapshot(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!request.isUserInRole(WebSecurityConfiguration.ROLE_ADMIN) && !isSnapshotPeer(request.getRemoteAddr())) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, "Snapshot is not allowed for " + request.getRemoteAddr());
+			return;
+		}
+		Semaphore permits = getSnapshotExportPermits();
+		if (!permits.tryAcquire()) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Snapshot export is busy or disabled");
+			return;
+		}
+		try {
+			response.setContentType("text/json;charset=UTF-8");
+			try (Writer w = openResponseWriter(request, response)) {
+				manager.writeSnapshot(w);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	// large responses are gzipped when client accepts it
+	private static Writer openResponseWriter(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		OutputStream out = response.getOutputStream();
+		response.setHeader("Vary", "Accept-Encoding");
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+			response.setHeader("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out);
+		}
+		return new OutputStreamWriter(out, StandardCharsets.UTF_8);
+	}
+
+	private boolean isSnapshotPeer(String address) {
+		if (snapshotPeers != null) {
+			for (String peer : snapshotPeers.split(",")) {
+				if (peer.trim().equals(address)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private synchronized Semaphore getSnapshotExportPermits() {
+		if (snapshotExportPermits == null) {
+			snapshotExportPermits = new Semaphore(Math.max(0, snapshotExports));
+		}
+		return snapshotExportPermits;
+	}
+
 	@GetMapping(path = "/block-by-hash", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String getBlockByHash(@RequestParam(required = true) String hash) {
@@ -237,38 +376,62 @@ public class ApiController {
 	}
 	
 	
-	@PostMapping(path = "/metrics-reset", produces = "text/json;charset=UTF-8")
-	@ResponseBody
-	public String metricsReset(@RequestParam(required = true) int cnt) throws FailedVerificationException {
-		PerformanceMetrics.i().reset(cnt);
-		return metrics();
-	}
-
 	@GetMapping(path = "/metrics", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String metrics() throws FailedVerificationException {
 		MetricsResult ms = new MetricsResult();
 		PerformanceMetrics inst = PerformanceMetrics.i();
 		TreeMap<String, PerformanceMetric> mp = new TreeMap<>(inst.getMetrics());
-		int l = PerformanceMetrics.METRICS_COUNT + 1;
+		int l = ms.windowMinutes.length;
 		for (PerformanceMetric p : mp.values()) {
 			MetricResult r = new MetricResult();
 			r.id = p.getName();
-			r.count = new int[l];
-			r.totalSec = new int[l];
-			r.avgMs = new int[l];
+			r.count = new long[l];
+			r.totalSec = new double[l];
+			r.avgMs = new double[l];
+			r.p50Ms = new double[l];
+			r.p90Ms = new double[l];
+			r.p99Ms = new double[l];
+			r.maxMs = new double[l];
 			for (int i = 0; i < l; i++) {
-				r.count[i] = p.getInvocations(i);
-				r.totalSec[i] = (int) (p.getDuration(i) / 1e9);
-				if (r.count[i] > 0) {
-					r.avgMs[i] = (int) (p.getDuration(i) / 1e6 / r.count[i]);
-				}
+				LatencyHistogram h = p.getHistogram(i);
+				r.count[i] = h.getCount();
+				r.totalSec[i] = h.getTotalNanos() / 1e9;
+				r.avgMs[i] = h.getAvgMs();
+				r.p50Ms[i] = h.getPercentileMs(50);
+				r.p90Ms[i] = h.getPercentileMs(90);
+				r.p99Ms[i] = h.getPercentileMs(99);
+				r.maxMs[i] = h.getMaxNanos() / 1e6;
 			}
 			ms.metrics.add(r);
 		}
 		return formatter.fullObjectToJson(ms);
 	}
 	
+	@GetMapping(path = "/metrics-op-types", produces = "text/json;charset=UTF-8")
+	@ResponseBody
+	public String metricsOpTypes() {
+		List<OpTypeMetricResult> res = new ArrayList<>();
+		for (OpTypeMetrics om : new TreeMap<>(OpTypeMetrics.getMetrics()).values()) {
+			OpTypeMetricResult r = new OpTypeMetricResult();
+			r.type = om.getType();
+			r.ops = om.getOperations();
+			r.bytes = om.getBytes();
+			r.created = om.getCreatedObjects();
+			r.edited = om.getEditedObjects();
+			r.deleted = om.getDeletedObjects();
+			for (ErrorType e : ErrorType.values()) {
+				long c = om.getRejected(e);
+				if (c > 0) {
+					r.rejectedByError.put(e.name(), c);
+					r.rejected += c;
+				}
+			}
+			res.add(r);
+		}
+		return formatter.fullObjectToJson(res);
+	}
+	
 	@GetMapping(path = "/objects", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String objects(@RequestParam(required = true) String type,
@@ -340,21 +503,48 @@ public class ApiController {
 	}
 
 	@GetMapping(path = "/history", produces = "text/json;charset=UTF-8")
-	@ResponseBody
-	public String history(@RequestParam(required = true) String type,
+	public void history(@RequestParam(required = true) String type,
 						  @RequestParam(required = false) List<String> key,
 						  @RequestParam(required = false, defaultValue = "100") int limit,
-						  @RequestParam(required = true) String sort) {
+						  @RequestParam(required = true) String sort,
+						  @RequestParam(required = false) Long cursor,
+						  @RequestParam(required = false, defaultValue = "true") boolean objects,
+						  HttpServletResponse response) throws IOException {
+		response.setContentType("text/json;charset=UTF-8");
+		Writer w = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
 		if (!historyManager.isRunning()) {
-			return "{}";
+			w.write("{}");
+			w.flush();
+			return;
 		}
 		if(limit < 0 || limit > LIMIT_RESULTS) {
 			limit = LIMIT_RESULTS;
 		}
-		HistoryObjectRequest historyObjectRequest = new HistoryObjectRequest(type, key, limit, sort);
-		historyManager.retrieveHistory(historyObjectRequest);
+		HistoryObjectRequest historyObjectRequest = new HistoryObjectRequest(type, key, limit, sort, cursor);
+		historyObjectRequest.objects = objects;
+		w.write('[');
+		try {
+			historyManager.streamHistory(historyObjectRequest, new Consumer<HistoryEdit>() {
+				boolean first = true;
 
-		return formatter.fullObjectToJson(historyObjectRequest.historySearchResult);
+				@Override
+				public void accept(HistoryEdit historyEdit) {
+					try {
+						if (!first) {
+							w.write(',');
+						}
+						first = false;
+						w.write(formatter.fullObjectToJson(historyEdit));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		w.write(']');
+		w.flush();
 	}
 
-}
\ No newline at end of file
+}
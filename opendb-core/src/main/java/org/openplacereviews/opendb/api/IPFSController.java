@@ -59,7 +59,7 @@ public class IPFSController {
 	public ResponseEntity<FileSystemResource> getFile(@RequestParam("hash") String hash, 
 			@RequestParam(value="ext", required=false) String ext) throws IOException {
 		checkIPFSRunning();
-		File file = externalResourcesManager.getFileByHash(hash, ext);
+		File file = externalResourcesManager.getResourceFile(hash, ext);
 
 		HttpHeaders httpHeaders = new HttpHeaders();
 		httpHeaders.add("Content-Disposition", "attachment; filename=" + file.getName());
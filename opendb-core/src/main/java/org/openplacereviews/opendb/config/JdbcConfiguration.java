@@ -0,0 +1,46 @@
+package org.openplacereviews.opendb.config;
+
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.util.InstrumentedJdbcTemplate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+
+/**
+ * Replaces spring boot jdbc and transaction templates with instrumented ones.
+ * Connection pool itself (wait time, active / pending connections, leaks) is instrumented by hikari,
+ * see spring.datasource.hikari settings.
+ */
+@Configuration
+public class JdbcConfiguration {
+
+	private static final PerformanceMetric mTransaction = PerformanceMetrics.i().getMetric("db.transaction");
+
+	@Bean
+	public InstrumentedJdbcTemplate jdbcTemplate(DataSource dataSource) {
+		return new InstrumentedJdbcTemplate(dataSource);
+	}
+
+	@Bean
+	public TransactionTemplate transactionTemplate(PlatformTransactionManager transactionManager) {
+		return new TransactionTemplate(transactionManager) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public <T> T execute(TransactionCallback<T> action) throws TransactionException {
+				long m = mTransaction.startNs();
+				try {
+					return super.execute(action);
+				} finally {
+					mTransaction.capture(m);
+				}
+			}
+		};
+	}
+}
@@ -2,6 +2,7 @@ package org.openplacereviews.opendb.config;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
@@ -15,11 +16,17 @@ public class WebSecurityConfiguration extends WebSecurityConfigurerAdapter {
 	public static final String ROLE_ADMIN = "ROLE_ADMIN";
 	public static final String ROLE_USER = "ROLE_USER";
 
+	@Value("${opendb.metrics.public-prometheus:false}")
+	private boolean publicPrometheus;
 
 	@Override
 	protected void configure(HttpSecurity http) throws Exception {
 		http.csrf().disable().antMatcher("/**");
 		// all top level are accessible without login
+		if (publicPrometheus) {
+			// metrics are scraped by monitoring without login
+			http.authorizeRequests().antMatchers("/actuator/prometheus").permitAll();
+		}
 		http.authorizeRequests().antMatchers("/actuator/**", "/admin/**").hasAuthority(ROLE_ADMIN)
 				.antMatchers("/u/**").hasAuthority(ROLE_ADMIN) // user
 //    							.antMatchers("/", "/*", "/login/**", "/webjars/**", "/error/**",
@@ -0,0 +1,112 @@
+package org.openplacereviews.opendb.ops;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (same layout as HdrHistogram):
+ * every power of 2 range of microseconds is split into 2^SUB_BUCKET_BITS equal buckets,
+ * so percentiles are precise up to ~6% of the value.
+ */
+public class LatencyHistogram {
+
+	public static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// 2^40 microseconds is more than 12 days, bigger values are counted in the last bucket
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+	public static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketIndex(Math.min(nanos / 1000, MAX_VALUE)));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public void add(LatencyHistogram h) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = h.buckets.get(i);
+			if (c > 0) {
+				buckets.addAndGet(i, c);
+			}
+		}
+		count.addAndGet(h.count.get());
+		totalNanos.addAndGet(h.totalNanos.get());
+		long max = maxNanos.get();
+		long hmax = h.maxNanos.get();
+		while (hmax > max && !maxNanos.compareAndSet(max, hmax)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getAvgMs() {
+		long c = count.get();
+		return c == 0 ? 0 : totalNanos.get() / 1e6 / c;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return middle of the bucket where percentile falls in, not bigger than max recorded value
+	 */
+	public double getPercentileMs(double percentile) {
+		long c = count.get();
+		if (c == 0) {
+			return 0;
+		} else if (percentile >= 100) {
+			return maxNanos.get() / 1e6;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * c));
+		long acc = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			acc += buckets.get(i);
+			if (acc >= rank) {
+				long from = bucketLowerBound(i);
+				long to = bucketLowerBound(i + 1);
+				double valueMs = (from + to) / 2.0 / 1e3;
+				return Math.min(valueMs, maxNanos.get() / 1e6);
+			}
+		}
+		return maxNanos.get() / 1e6;
+	}
+
+	static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = msb - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+	}
+
+	static long bucketLowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return ((long) (index % SUB_BUCKETS) + SUB_BUCKETS) << shift;
+	}
+}
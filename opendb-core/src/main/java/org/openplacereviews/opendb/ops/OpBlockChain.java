@@ -2,7 +2,6 @@ package org.openplacereviews.opendb.ops;
 
 import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
 import org.openplacereviews.opendb.ops.OpPrivateObjectInstancesById.CacheObject;
-import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
@@ -235,6 +234,14 @@ public class OpBlockChain {
 	}
 
 	public synchronized OpBlock replicateBlock(OpBlock block, DeletedObjectCtx hctx) {
+		return replicateBlock(block, hctx, true);
+	}
+
+	/**
+	 * Block which was validated before (trusted) is checked only to be connected to the chain with correct hash and merkle roots,
+	 * signatures and validation rules of the block and its operations are not evaluated.
+	 */
+	public synchronized OpBlock replicateBlock(OpBlock block, DeletedObjectCtx hctx, boolean fullValidation) {
 		block.checkImmutable();
 		validateIsUnlocked();
 		if (!isQueueEmpty()) {
@@ -242,7 +249,7 @@ public class OpBlockChain {
 			return null;
 		}
 		boolean valid = rules.validateBlock(this,
-				block, getLastBlockHeader(), block.getBlockId() != 0);
+				block, getLastBlockHeader(), fullValidation && block.getBlockId() != 0);
 		if (!valid) {
 			return null;
 		}
@@ -250,7 +257,7 @@ public class OpBlockChain {
 		try {
 			for (OpOperation o : block.getOperations()) {
 				LocalValidationCtx validationCtx = new LocalValidationCtx(block.getFullHash());
-				validateAndPrepareOperation(o, validationCtx, hctx);
+				validateAndPrepareOperation(o, validationCtx, hctx, fullValidation);
 				atomicAddOperationAfterPrepare(o, validationCtx);
 			}
 			atomicCreateBlockFromAllOps(block);
@@ -263,6 +270,56 @@ public class OpBlockChain {
 		return block;
 	}
 
+	/**
+	 * Restores state which was validated before and stored as checkpoint, so blocks, operations and objects are not validated again.
+	 * Blocks are ordered from first to last and should be connected to the parent chain.
+	 */
+	public synchronized void restoreFromCheckpoint(List<OpBlock> blocksToRestore, Collection<OpOperation> queue,
+			Map<String, Map<List<String>, OpObject>> objects) {
+		validateIsUnlocked();
+		if (dbAccess != null || blocks.size() != 0 || !queueOperations.isEmpty()) {
+			throw new IllegalStateException("Checkpoint could be restored only into empty runtime chain");
+		}
+		String lastBlockHash = parent.getLastBlockRawHash();
+		for (OpBlock block : blocksToRestore) {
+			block.checkImmutable();
+			if (!OUtils.equals(block.getPrevRawHash(), lastBlockHash)) {
+				throw new IllegalArgumentException(String.format("Block '%s' is not connected to '%s'",
+						block.getRawHash(), lastBlockHash));
+			}
+			lastBlockHash = block.getRawHash();
+		}
+		locked = LOCKED_OP_IN_PROGRESS;
+		try {
+			for (OpBlock block : blocksToRestore) {
+				for (OpOperation o : block.getOperations()) {
+					o.updateObjectsRef();
+					blockOperations.put(o.getRawHash(), o);
+				}
+				blocks.addBlock(block, getSuperblocksDepth());
+			}
+			for (OpOperation o : queue) {
+				o.checkImmutable();
+				o.updateObjectsRef();
+				if (o.getCacheObject(OpObject.F_TIMESTAMP_ADDED) == null) {
+					o.putCacheObject(OpObject.F_TIMESTAMP_ADDED, System.currentTimeMillis());
+				}
+				queueOperations.add(o);
+			}
+			for (Entry<String, Map<List<String>, OpObject>> e : objects.entrySet()) {
+				OpPrivateObjectInstancesById oinf = getOrCreateObjectsByIdMap(e.getKey());
+				for (Entry<List<String>, OpObject> o : e.getValue().entrySet()) {
+					oinf.add(o.getKey(), o.getValue());
+				}
+			}
+			locked = UNLOCKED;
+		} finally {
+			if (locked == LOCKED_OP_IN_PROGRESS) {
+				locked = LOCKED_ERROR;
+			}
+		}
+	}
+
 	public synchronized boolean rebaseOperations(OpBlockChain newParent) {
 		validateIsUnlocked();
 		newParent.validateLocked();
@@ -339,7 +396,7 @@ public class OpBlockChain {
 		op.checkImmutable();
 		validateIsUnlocked();
 		LocalValidationCtx validationCtx = new LocalValidationCtx("");
-		boolean valid = validateAndPrepareOperation(op, validationCtx, historyObjectCtx);
+		boolean valid = validateAndPrepareOperation(op, validationCtx, historyObjectCtx, true);
 		if(!valid || onlyValidate) {
 			return valid;
 		}
@@ -419,7 +476,7 @@ public class OpBlockChain {
 		}
 		for (OpOperation o : ops) {
 			LocalValidationCtx validationCtx = new LocalValidationCtx("<queue>");
-			validateAndPrepareOperation(o, validationCtx, null);
+			validateAndPrepareOperation(o, validationCtx, null, true);
 			atomicAddOperationAfterPrepare(o, validationCtx);
 		}
 		atomicSetParent(newParent);
@@ -528,6 +585,15 @@ public class OpBlockChain {
 		return lst;
 	}
 
+	/**
+	 * @return headers of blocks with ids from fromId to toId (inclusive), latest first
+	 */
+	public List<OpBlock> getBlockHeaders(int fromId, int toId) {
+		List<OpBlock> lst = new ArrayList<>();
+		fetchBlockHeaders(lst, fromId, toId);
+		return lst;
+	}
+
 	public OpBlock getBlockHeadersById(int id) {
 		if(nullObject) {
 			return null;
@@ -628,9 +694,9 @@ public class OpBlockChain {
 		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
-			Metric m = mFetchById.start();
+			long m = mFetchById.startNs();
 			OpObject obj = ot.getObjectById(key, secondary);
-			m.capture();
+			mFetchById.capture(m);
 			if (obj != null) {
 				if(obj.isDeleted()) {
 					return null;
@@ -647,9 +713,9 @@ public class OpBlockChain {
 		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
-			Metric m = mFetchById.start();
+			long m = mFetchById.startNs();
 			OpObject obj = ot.getObjectById(o);
-			m.capture();
+			mFetchById.capture(m);
 			if (obj != null) {
 				if(obj.isDeleted()) {
 					return null;
@@ -679,7 +745,7 @@ public class OpBlockChain {
 		if(isNullBlock()) {
 			return;
 		}
-		Metric m = PerformanceMetrics.i().getMetric("blc.fetch.all.total").start();
+		long m = mFetchAllTotal.startNs();
 		OpPrivateObjectInstancesById oi = getOrCreateObjectsByIdMap(type);
 		if(oi == null) {
 			parent.fetchAllObjects(type, request);
@@ -697,15 +763,15 @@ public class OpBlockChain {
 			Map<CompoundKey, OpObject> res = fetchObjectsInternal(type, request, null);
 			request.setResult(res);
 		}
-		m.capture();
+		mFetchAllTotal.capture(m);
 	}
 	
 	
 	public void fetchObjectsByIndex(String type, OpIndexColumn index, ObjectsSearchRequest request, Object... argsToSearch) throws DBStaleException {
-		Metric m = PerformanceMetrics.i().getMetric("blc.fetch." + index.getIndexId() + ".total").start();
+		long m = index.mFetchTotal.startNs();
 		Map<CompoundKey, OpObject> res = fetchObjectsInternal(type, request, index, argsToSearch);
 		request.setResult(res);
-		m.capture();
+		index.mFetchTotal.capture(m);
 	}
 	
 
@@ -714,9 +780,13 @@ public class OpBlockChain {
 		if(isNullBlock()) {
 			return res;
 		}
-		String mid = "blc.fetch." + (col == null ? "all" : col.getIndexId());
-		mid += isDbAccessed()?  ".db" : ".ram";
-		Metric m = PerformanceMetrics.i().getMetric(mid).start();
+		PerformanceMetric pm;
+		if (col == null) {
+			pm = isDbAccessed() ? mFetchAllDb : mFetchAllRam;
+		} else {
+			pm = isDbAccessed() ? col.mFetchDb : col.mFetchRam;
+		}
+		long m = pm.startNs();
 		OpPrivateObjectInstancesById o = getOrCreateObjectsByIdMap(type);
 		// don't check for all queries
 		if (o != null) {
@@ -727,12 +797,12 @@ public class OpBlockChain {
 				res.put(e.getKey(), e.getValue());
 				request.internalProgress++;
 				if (request.limit >= 0 && request.internalProgress >= request.limit) {
-					m.capture();
+					pm.capture(m);
 					return res;
 				}
 			}
 		}
-		m.capture();
+		pm.capture(m);
 		// capture parent results
 		Map<CompoundKey, OpObject> prres = parent.fetchObjectsInternal(type, request, col, args);
 		// HERE we need to check that newer version doesn't exist in current blockchain
@@ -794,8 +864,47 @@ public class OpBlockChain {
 		parent.fetchBlockHeaders(lst, depth);
 	}
 
-	private boolean validateAndPrepareOperation(OpOperation u, LocalValidationCtx ctx, DeletedObjectCtx hctx) {
-		Metric pm = mPrepareTotal.start();
+	private void fetchBlockHeaders(List<OpBlock> lst, int fromId, int toId) {
+		if(nullObject) {
+			return;
+		}
+		OpBlock first = blocks.getFirstBlockHeader();
+		if(first != null) {
+			if(blocks.getLastBlockHeader().getBlockId() < fromId) {
+				return;
+			}
+			if(first.getBlockId() <= toId) {
+				for(OpBlock o : blocks.getAllBlockHeaders()) {
+					if(o.getBlockId() < fromId) {
+						break;
+					}
+					if(o.getBlockId() <= toId) {
+						lst.add(o);
+					}
+				}
+			}
+			if(first.getBlockId() <= fromId) {
+				return;
+			}
+		}
+		parent.fetchBlockHeaders(lst, fromId, toId);
+	}
+
+	private boolean validateAndPrepareOperation(OpOperation u, LocalValidationCtx ctx, DeletedObjectCtx hctx,
+			boolean fullValidation) {
+		long st = System.nanoTime();
+		boolean valid = false;
+		try {
+			valid = validateAndPrepareOperationImpl(u, ctx, hctx, fullValidation);
+			return valid;
+		} finally {
+			rules.checkSlowOperation(u, ctx.trace, System.nanoTime() - st, valid);
+		}
+	}
+
+	private boolean validateAndPrepareOperationImpl(OpOperation u, LocalValidationCtx ctx, DeletedObjectCtx hctx,
+			boolean fullValidation) {
+		long pm = mPrepareTotal.startNs();
 		if(OUtils.isEmpty(u.getRawHash())) {
 			return rules.error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, u.getHash(), "");
 		}
@@ -809,39 +918,44 @@ public class OpBlockChain {
 		u.updateObjectsRef();
 		boolean valid = true;
 		ctx.ids.clear();
-		Metric m = mPrepareDelete.start();
+		long m = mPrepareDelete.startNs();
 		valid = prepareDeletedObjects(u, ctx, hctx);
-		m.capture();
+		ctx.trace.prepareDeleteNs = mPrepareDelete.capture(m);
 		if(!valid) {
 			return false;
 		}
 		// should be called after prepareDeletedObjects (so cache is prepared)
-		m = mPrepareCreate.start();
+		m = mPrepareCreate.startNs();
 		valid = prepareCreatedObjects(u, ctx);
-		m.capture();
+		ctx.trace.prepareCreateNs = mPrepareCreate.capture(m);
 		if(!valid) {
 			return false;
 		}
-		m = mPrepareEdit.start();
+		m = mPrepareEdit.startNs();
 		valid = prepareEditedObjects(u, ctx);
-		m.capture();
+		ctx.trace.prepareEditNs = mPrepareEdit.capture(m);
 		if (!valid) {
 			return false;
 		}
-		m = mPrepareRef.start();
+		m = mPrepareRef.startNs();
 		valid = prepareReferencedObjects(u, ctx);
 		if(!valid) {
 			return valid;
 		}
-		m.capture();
-		pm.capture();
-		valid = rules.validateOp(this, u, ctx);
-		if(!valid) {
-			return valid;
+		ctx.trace.prepareRefNs = mPrepareRef.capture(m);
+		ctx.trace.prepareNs = mPrepareTotal.capture(pm);
+		rules.getTypeMetrics(ctx, u).mPrepare.capture(pm);
+		if (fullValidation) {
+			valid = rules.validateOp(this, u, ctx);
+			if (!valid) {
+				return valid;
+			}
 		}
 		if(u.getCacheObject(OpObject.F_TIMESTAMP_ADDED) == null) {
 			u.putCacheObject(OpObject.F_TIMESTAMP_ADDED, System.currentTimeMillis());
 		}
+		// resource references are collected once and saved with the block
+		u.getResourceHashes();
 		return true;
 	}
 
@@ -890,8 +1004,9 @@ public class OpBlockChain {
 			}
 		}
 
-		if (getObjectByName(OpBlockchainRules.OP_OPERATION, u.getType()) != null) {
-			ctx.refObjsCache.put("op", getObjectByName(OpBlockchainRules.OP_OPERATION, u.getType()));
+		OpObject opDef = getObjectByName(OpBlockchainRules.OP_OPERATION, u.getType());
+		if (opDef != null) {
+			ctx.refObjsCache.put("op", opDef);
 		}
 		return true;
 	}
@@ -1052,6 +1167,11 @@ public class OpBlockChain {
 			newObject.parentHash = u.getRawHash();
 			newObject.makeImmutable();
 			ctx.newObjsCache.put(newObject, currentObject);
+			Map<String, Object> delta = new TreeMap<>();
+			for (String fieldExpr : changedMap.keySet()) {
+				delta.put(fieldExpr, currentObject.getFieldByExpr(fieldExpr));
+			}
+			editObject.putCacheObject(OpObject.F_DELTA, delta);
 		}
 		return true;
 	}
@@ -1068,6 +1188,7 @@ public class OpBlockChain {
 		Map<String, OpObject> refObjsCache = new HashMap<String, OpObject>();
 		List<OpObject> deletedObjsCache = new ArrayList<OpObject>();
 		Map<OpObject, OpObject> newObjsCache = new HashMap<OpObject, OpObject>();
+		final OpValidationTrace trace = new OpValidationTrace();
 
 		public LocalValidationCtx(String bhash) {
 			blockHash = bhash;
@@ -1145,11 +1266,14 @@ public class OpBlockChain {
 	
 	private static final PerformanceMetric mPrepareCreate = PerformanceMetrics.i().getMetric("blc.prepare.create");
 	private static final PerformanceMetric mPrepareEdit = PerformanceMetrics.i().getMetric("blc.prepare.edit");
-	private static final PerformanceMetric mPrepareDelete = PerformanceMetrics.i().getMetric("blc.prepare.edit");
+	private static final PerformanceMetric mPrepareDelete = PerformanceMetrics.i().getMetric("blc.prepare.delete");
 	private static final PerformanceMetric mPrepareRef = PerformanceMetrics.i().getMetric("blc.prepare.ref");
 	private static final PerformanceMetric mPrepareTotal = PerformanceMetrics.i().getMetric("blc.prepare.total");
 	
 	private static final PerformanceMetric mFetchById = PerformanceMetrics.i().getMetric("blc.fetch.byid");
+	private static final PerformanceMetric mFetchAllTotal = PerformanceMetrics.i().getMetric("blc.fetch.all.total");
+	private static final PerformanceMetric mFetchAllDb = PerformanceMetrics.i().getMetric("blc.fetch.all.db");
+	private static final PerformanceMetric mFetchAllRam = PerformanceMetrics.i().getMetric("blc.fetch.all.ram");
 
 
 }
\ No newline at end of file
@@ -6,7 +6,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlockChain.LocalValidationCtx;
-import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
@@ -19,6 +18,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * State less blockchain rules to validate roles and calculate hashes
@@ -89,9 +89,14 @@ public class OpBlockchainRules {
 	public static final char USER_LOGIN_CHAR = ':';
 
 	private static final String WILDCARD_RULE = "*";
+	private static final String CACHE_METRIC = "_metric";
+	// size of operation json calculated during validation
+	public static final String CACHE_SIZE = "_size";
 	
 	private JsonFormatter formatter;
 	private ValidationListener logValidation;
+	private SlowOperationListener slowOperationListener;
+	private long slowOperationThresholdNs;
 	
 	
 	public OpBlockchainRules(JsonFormatter formatter, ValidationListener logValidation) {
@@ -284,7 +289,7 @@ public class OpBlockchainRules {
 		List<OpObject> toValidate = validationRules.get(o.getType());
 		if(toValidate != null) {
 			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache)) {
+				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache, ctx.trace)) {
 					return false;
 				}
 			}
@@ -292,7 +297,7 @@ public class OpBlockchainRules {
 		toValidate = validationRules.get(WILDCARD_RULE);
 		if(toValidate != null) {
 			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache)) {
+				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache, ctx.trace)) {
 					return false;
 				}
 			}
@@ -301,8 +306,9 @@ public class OpBlockchainRules {
 	}
 
 	private boolean validateRule(OpBlockChain blockchain, OpObject rule, OpOperation o, Set<OpObject> newObjsArray, List<OpObject> deletedObjsCache,
-			Map<String, OpObject> refObjsCache) {
-		Metric m = PerformanceMetrics.i().getMetric("blc.validop", rule.getId().get(0)).start();
+			Map<String, OpObject> refObjsCache, OpValidationTrace trace) {
+		PerformanceMetric pm = getValidateMetric(rule);
+		long m = pm.startNs();
 		JsonArray deletedArray = (JsonArray) formatter.toJsonElement(deletedObjsCache);
 		for(int i = 0; i < deletedArray.size(); i++) {
 			((JsonObject)deletedArray.get(i)).addProperty(OpOperation.F_TYPE, deletedObjsCache.get(i).getParentType());
@@ -319,21 +325,31 @@ public class OpBlockchainRules {
 		List<OpExprEvaluator> ifs = getValidateExpresions(F_IF, rule);
 		for(OpExprEvaluator s : ifs) {
 			if(!s.evaluateBoolean(ctx)) {
-				m.capture();
+				trace.addRule(rule.getId().get(0), pm.capture(m));
 				return true;
 			}
 		}
 		for (OpExprEvaluator s : vld) {
 			if (!s.evaluateBoolean(ctx)) {
-				m.capture();
+				trace.addRule(rule.getId().get(0), pm.capture(m));
 				return error(o, ErrorType.OP_VALIDATION_FAILED, o.getHash(), rule.getId(),
 						rule.getStringValue(F_ERROR_MESSAGE));
 			}
 		}
-		m.capture();
+		trace.addRule(rule.getId().get(0), pm.capture(m));
 		return true;
 	}
 
+	// metric is registered once per rule object and kept with its parsed expressions
+	private PerformanceMetric getValidateMetric(OpObject rule) {
+		PerformanceMetric pm = (PerformanceMetric) rule.getCacheObject(CACHE_METRIC);
+		if (pm == null) {
+			pm = PerformanceMetrics.i().getMetric("blc.validop", rule.getId().get(0));
+			rule.putCacheObject(CACHE_METRIC, pm);
+		}
+		return pm;
+	}
+
 	@SuppressWarnings("unchecked")
 	private List<OpExprEvaluator> getValidateExpresions(String field, OpObject rule) {
 		List<OpExprEvaluator> validate = (List<OpExprEvaluator>) rule.getCacheObject(field);
@@ -527,7 +543,7 @@ public class OpBlockchainRules {
 	
 	
 	public boolean validateOp(OpBlockChain opBlockChain, OpOperation u, LocalValidationCtx ctx) {
-		Metric mt = mValidTotal.start();
+		long mt = mValidTotal.startNs();
 		if(!OUtils.equals(calculateOperationHash(u, false), u.getHash())) {
 			return error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, calculateOperationHash(u, false), u.getHash());
 		}
@@ -536,20 +552,36 @@ public class OpBlockchainRules {
 		if (sz > OpBlockchainRules.MAX_OP_SIZE_MB) {
 			return error(u, ErrorType.OP_SIZE_IS_EXCEEDED, u.getHash(), sz, OpBlockchainRules.MAX_OP_SIZE_MB);
 		}
-		Metric m = mValidSig.start();
+		u.putCacheObject(CACHE_SIZE, sz);
+		long m = mValidSig.startNs();
 		boolean valid = validateSignatures(opBlockChain, u);
-		m.capture();
+		ctx.trace.sigNs = mValidSig.capture(m);
 		if(!valid) {
 			return valid;
 		}
+		// type is trusted only after hash and signatures are checked
+		OpTypeMetrics tm = getTypeMetrics(ctx, u);
+		tm.mSig.capture(m);
 		valid = validateRules(opBlockChain, u, ctx);
-		mt.capture();
+		ctx.trace.validateNs = mValidTotal.capture(mt);
+		tm.mValidate.capture(mt);
 		if(!valid) {
 			return valid;
 		}
 		return true;
 	}
 	
+	/**
+	 * @return metrics of the operation type if the type is defined by sys.operation and metrics of unknown types otherwise,
+	 * definition of the type is looked up once by prepare of the operation
+	 */
+	public OpTypeMetrics getTypeMetrics(LocalValidationCtx ctx, OpOperation u) {
+		if (u.getType() != null && ctx.refObjsCache.get("op") != null) {
+			return OpTypeMetrics.register(u.getType());
+		}
+		return OpTypeMetrics.get(null);
+	}
+
 	public KeyPair getLoginKeyPair(OpBlockChain ctx, String signedByName, String privateKey) throws FailedVerificationException {
 		OpObject obj = getLoginKeyObj(ctx, signedByName);
 		return getKeyPairFromObj(obj, privateKey);
@@ -648,20 +680,56 @@ public class OpBlockchainRules {
 		}
 	}
 	
-	public boolean error(OpObject o, ErrorType e, Object... args) {
-		String eMsg = e.getErrorFormat(args);
-		if(logValidation != null) {
-			logValidation.logError(o, e, eMsg, null);
+	public void setSlowOperationListener(SlowOperationListener listener, long thresholdMs) {
+		this.slowOperationThresholdNs = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+		this.slowOperationListener = listener;
+	}
+	
+	void checkSlowOperation(OpOperation u, OpValidationTrace trace, long durationNs, boolean valid) {
+		SlowOperationListener l = slowOperationListener;
+		if (l != null && durationNs > slowOperationThresholdNs) {
+			l.logSlowOperation(u, trace, durationNs, valid);
 		}
-		throw new IllegalArgumentException(e.getErrorFormat(args));
+	}
+	
+	public boolean error(OpObject o, ErrorType e, Object... args) {
+		return error(o, (Exception) null, e, args);
 	}
 	
 	public boolean error(OpObject o, Exception cause, ErrorType e, Object... args) {
-		String eMsg = e.getErrorFormat(args);
+		if (o instanceof OpOperation) {
+			OpTypeMetrics.get(((OpOperation) o).getType()).recordRejected(e);
+		}
+		ValidationException ex = new ValidationException(e, args, cause);
 		if(logValidation != null) {
-			logValidation.logError(o, e, eMsg, null);
+			logValidation.logError(o, e, ex.getMessage(), null);
+		}
+		throw ex;
+	}
+
+	/**
+	 * Message of validation error is formatted once when it's logged or requested by the caller.
+	 */
+	private static class ValidationException extends IllegalArgumentException {
+
+		private static final long serialVersionUID = 1L;
+		private final ErrorType errorType;
+		private final Object[] args;
+		private String message;
+
+		ValidationException(ErrorType errorType, Object[] args, Exception cause) {
+			super(cause);
+			this.errorType = errorType;
+			this.args = args;
+		}
+
+		@Override
+		public synchronized String getMessage() {
+			if (message == null) {
+				message = errorType.getErrorFormat(args);
+			}
+			return message;
 		}
-		throw new IllegalArgumentException(e.getErrorFormat(args), cause);
 	}
 	
 	public static enum ErrorType {
@@ -729,6 +797,12 @@ public class OpBlockchainRules {
 		
 	}
 	
+	public static interface SlowOperationListener {
+		
+		void logSlowOperation(OpOperation op, OpValidationTrace trace, long durationNs, boolean valid);
+		
+	}
+	
 	private static final PerformanceMetric mValidSig = PerformanceMetrics.i().getMetric("blc.validop.sig");
 	private static final PerformanceMetric mValidTotal = PerformanceMetrics.i().getMetric("blc.validop.total");
 
@@ -5,6 +5,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.OpBlockChain.SearchType;
 import org.openplacereviews.opendb.ops.OpPrivateObjectInstancesById.CacheObject;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.ops.de.ColumnDef;
 import org.openplacereviews.opendb.ops.de.ColumnDef.IndexType;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
@@ -30,6 +31,12 @@ public class OpIndexColumn {
 	private List<IndexExpression> fieldsExpression = Collections.emptyList();
 	private int cacheRuntimeBlocks = 64;
 	private int cacheDBBlocks = 64;
+	// false while db column is being backfilled, then objects are filtered in memory
+	private volatile boolean dbColumnReady = true;
+	// registered once per index to avoid metric lookup on every fetch
+	final PerformanceMetric mFetchTotal;
+	final PerformanceMetric mFetchDb;
+	final PerformanceMetric mFetchRam;
 
 	
 	public OpIndexColumn(String opType, String indexId, int idIndex, ColumnDef columnDef) {
@@ -37,6 +44,9 @@ public class OpIndexColumn {
 		this.indexId = indexId;
 		this.idIndex = idIndex;
 		this.columnDef = columnDef;
+		this.mFetchTotal = PerformanceMetrics.i().getMetric("blc.fetch." + indexId + ".total");
+		this.mFetchDb = PerformanceMetrics.i().getMetric("blc.fetch." + indexId + ".db");
+		this.mFetchRam = PerformanceMetrics.i().getMetric("blc.fetch." + indexId + ".ram");
 	}
 	
 	public void setCacheDBBlocks(int cacheDB) {
@@ -47,6 +57,14 @@ public class OpIndexColumn {
 		this.cacheRuntimeBlocks = cacheRuntimeBlocks;
 	}
 	
+	public boolean isDbColumnReady() {
+		return dbColumnReady;
+	}
+	
+	public void setDbColumnReady(boolean dbColumnReady) {
+		this.dbColumnReady = dbColumnReady;
+	}
+	
 	public String getOpType() {
 		return opType;
 	}
@@ -120,17 +138,24 @@ public class OpIndexColumn {
 			return Stream.empty();
 		}
 		Stream<Entry<CompoundKey, OpObject>> stream;
-		if(oi.getDbAccess() != null){
+		if(oi.getDbAccess() != null && (idIndex >= 0 || dbColumnReady)) {
 			stream = oi.getDbAccess().streamObjects(type, limit, request.requestOnlyKeys, getDbCondition(request, args));
 		} else {
-			stream = oi.getRawObjects();
+			if (oi.getDbAccess() != null) {
+				// column is not backfilled yet, so it can't be used in db condition
+				stream = oi.getDbAccess().streamObjects(type, -1, false);
+			} else {
+				stream = oi.getRawObjects();
+			}
 			stream = stream.filter(new Predicate<Entry<CompoundKey, OpObject>>() {
 				@Override
 				public boolean test(Entry<CompoundKey, OpObject> t) {
 					return accept(t.getValue(), request, args);
 				}
 			});
-			
+			if (oi.getDbAccess() != null && limit > 0) {
+				stream = stream.limit(limit);
+			}
 		}
 		return stream;
 	}
@@ -43,6 +43,8 @@ public class OpObject {
 	public static final String F_PARENT_HASH = "parentHash";
 	public static final String F_CHANGE = "change";
 	public static final String F_CURRENT = "current";
+	// field expr -> previous value of edited object, calculated during validation and stored in history
+	public static final String F_DELTA = "delta";
 	// voting
 	public static final String F_OP = "op";
 	public static final String F_STATE = "state";
@@ -103,7 +105,10 @@ public class OpObject {
 
 	@SuppressWarnings("unchecked")
 	private Object copyingObjects(Object object, boolean copyCacheFields) {
-		if (object instanceof Number) {
+		if (object == null) {
+			// e.g. previous value of the field which is added by edit (delta of edited object)
+			return null;
+		} else if (object instanceof Number) {
 			return (Number) object;
 		} else if (object instanceof String) {
 			return (String) object;
@@ -21,6 +21,10 @@ public class OpOperation extends OpObject {
 	public static final String F_NAME = "name";
 	public static final String F_COMMENT = "comment";
 
+	// cache field: hashes of external resources referenced by the operation
+	public static final String F_RESOURCES = "resources";
+	public static final String RESOURCE_TYPE = "#image";
+
 	private List<OpObject> createdObjects = new LinkedList<OpObject>();
 	private List<OpObject> editedObjects = new LinkedList<OpObject>();
 	protected String type;
@@ -162,6 +166,48 @@ public class OpOperation extends OpObject {
 	}
 	
 
+	/**
+	 * Hashes of external resources (#image objects) set by created and edited objects,
+	 * calculated once (when operation is validated) and cached for immutable operation.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> getResourceHashes() {
+		Object cached = getCacheObject(F_RESOURCES);
+		if (cached != null) {
+			return (List<String>) cached;
+		}
+		Set<String> hashes = new TreeSet<String>();
+		for (OpObject o : createdObjects) {
+			collectResourceHashes(o.getRawOtherFields(), hashes);
+		}
+		for (OpObject o : editedObjects) {
+			collectResourceHashes(o.getChangedEditFields(), hashes);
+		}
+		// cache fields are copied with operation, so cached value is a list
+		List<String> res = new ArrayList<String>(hashes);
+		putCacheObject(F_RESOURCES, res);
+		return res;
+	}
+
+	private static void collectResourceHashes(Object o, Set<String> res) {
+		if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) o;
+			if (RESOURCE_TYPE.equals(map.get(F_TYPE))) {
+				if (map.get(F_HASH) != null) {
+					res.add(map.get(F_HASH).toString());
+				}
+				return;
+			}
+			for (Object v : map.values()) {
+				collectResourceHashes(v, res);
+			}
+		} else if (o instanceof Collection) {
+			for (Object v : (Collection<?>) o) {
+				collectResourceHashes(v, res);
+			}
+		}
+	}
+
 	public String getName() {
 		return getStringValue(F_NAME);
 	}
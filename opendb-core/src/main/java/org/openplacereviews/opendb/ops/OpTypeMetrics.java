@@ -0,0 +1,138 @@
+package org.openplacereviews.opendb.ops;
+
+import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics per operation type (i.e. opr.place, sys.signup): operations accepted to the queue with their size
+ * and number of touched objects, prepare / validate / signature time and rejections by error type.
+ * Timers are regular performance metrics named op.[type].prepare, op.[type].validate and op.[type].sig.
+ * Only types defined by sys.operation get own metrics, the rest is counted as <unknown>.
+ */
+public class OpTypeMetrics {
+
+	public static final String METRIC_PREFIX = "op.";
+	public static final String PREPARE = "prepare";
+	public static final String VALIDATE = "validate";
+	public static final String SIG = "sig";
+	private static final String UNKNOWN_TYPE = "<unknown>";
+
+	private static final Map<String, OpTypeMetrics> metrics = new ConcurrentHashMap<String, OpTypeMetrics>();
+
+	private final String type;
+	final PerformanceMetric mPrepare;
+	final PerformanceMetric mValidate;
+	final PerformanceMetric mSig;
+	private final AtomicLong ops = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong edited = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLongArray rejected = new AtomicLongArray(ErrorType.values().length);
+
+	private OpTypeMetrics(String type) {
+		this.type = type;
+		PerformanceMetrics pm = PerformanceMetrics.i();
+		mPrepare = pm.getMetric(METRIC_PREFIX + type, PREPARE);
+		mValidate = pm.getMetric(METRIC_PREFIX + type, VALIDATE);
+		mSig = pm.getMetric(METRIC_PREFIX + type, SIG);
+	}
+
+	/**
+	 * @return metrics of the type registered by {@link #register(String)} or metrics of unknown types,
+	 * so types sent by clients don't create new metrics
+	 */
+	public static OpTypeMetrics get(String type) {
+		OpTypeMetrics m = type == null ? null : metrics.get(type);
+		return m == null ? unknown() : m;
+	}
+
+	/**
+	 * Metrics are registered only for types defined by sys.operation (see OpBlockchainRules.getTypeMetrics),
+	 * otherwise number of metrics would be unbounded.
+	 */
+	static OpTypeMetrics register(String type) {
+		OpTypeMetrics m = metrics.get(type);
+		if (m == null) {
+			m = metrics.computeIfAbsent(type, OpTypeMetrics::new);
+		}
+		return m;
+	}
+
+	private static OpTypeMetrics unknown() {
+		return register(UNKNOWN_TYPE);
+	}
+
+	public static Map<String, OpTypeMetrics> getMetrics() {
+		return metrics;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public PerformanceMetric getPrepareMetric() {
+		return mPrepare;
+	}
+
+	public PerformanceMetric getValidateMetric() {
+		return mValidate;
+	}
+
+	public PerformanceMetric getSigMetric() {
+		return mSig;
+	}
+
+	/**
+	 * Records operation accepted to the queue
+	 * @param size size of operation json in characters
+	 */
+	public void recordAccepted(OpOperation op, long size) {
+		ops.incrementAndGet();
+		bytes.addAndGet(size);
+		created.addAndGet(op.getCreated().size());
+		edited.addAndGet(op.getEdited().size());
+		deleted.addAndGet(op.getDeleted().size());
+	}
+
+	public void recordRejected(ErrorType e) {
+		rejected.incrementAndGet(e.ordinal());
+	}
+
+	public long getOperations() {
+		return ops.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getCreatedObjects() {
+		return created.get();
+	}
+
+	public long getEditedObjects() {
+		return edited.get();
+	}
+
+	public long getDeletedObjects() {
+		return deleted.get();
+	}
+
+	public long getRejected(ErrorType e) {
+		return rejected.get(e.ordinal());
+	}
+
+	public long getRejected() {
+		long s = 0;
+		for (int i = 0; i < rejected.length(); i++) {
+			s += rejected.get(i);
+		}
+		return s;
+	}
+}
@@ -0,0 +1,74 @@
+package org.openplacereviews.opendb.ops;
+
+import java.util.Arrays;
+
+/**
+ * Timings of single operation validation collected by {@link OpBlockChain} and {@link OpBlockchainRules},
+ * reported to {@link OpBlockchainRules.SlowOperationListener} when operation validation is too slow.
+ */
+public class OpValidationTrace {
+
+	long prepareNs;
+	long prepareDeleteNs;
+	long prepareCreateNs;
+	long prepareEditNs;
+	long prepareRefNs;
+	long validateNs;
+	long sigNs;
+	private int rules;
+	private String[] ruleIds;
+	private long[] ruleNs;
+
+	void addRule(String ruleId, long ns) {
+		if (ruleIds == null) {
+			ruleIds = new String[4];
+			ruleNs = new long[4];
+		} else if (rules == ruleIds.length) {
+			ruleIds = Arrays.copyOf(ruleIds, rules * 2);
+			ruleNs = Arrays.copyOf(ruleNs, rules * 2);
+		}
+		ruleIds[rules] = ruleId;
+		ruleNs[rules] = ns;
+		rules++;
+	}
+
+	public long getPrepareNs() {
+		return prepareNs;
+	}
+
+	public long getPrepareDeleteNs() {
+		return prepareDeleteNs;
+	}
+
+	public long getPrepareCreateNs() {
+		return prepareCreateNs;
+	}
+
+	public long getPrepareEditNs() {
+		return prepareEditNs;
+	}
+
+	public long getPrepareRefNs() {
+		return prepareRefNs;
+	}
+
+	public long getValidateNs() {
+		return validateNs;
+	}
+
+	public long getSigNs() {
+		return sigNs;
+	}
+
+	public int getRulesCount() {
+		return rules;
+	}
+
+	public String getRuleId(int i) {
+		return ruleIds[i];
+	}
+
+	public long getRuleNs(int i) {
+		return ruleNs[i];
+	}
+}
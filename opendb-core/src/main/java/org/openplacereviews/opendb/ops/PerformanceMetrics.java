@@ -3,11 +3,15 @@ package org.openplacereviews.opendb.ops;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class PerformanceMetrics {
 	private static final PerformanceMetrics inst = new PerformanceMetrics();
-	public static final int METRICS_COUNT = 2;
+	// minutes of sliding windows, window 0 is total since start
+	private static final int[] WINDOW_MINUTES = new int[] { 0, 1, 15 };
+	private static final long SLOT_MS = 60 * 1000;
+	// 1 extra slot is current minute which is not complete yet
+	private static final int SLOTS = 16;
 	public static PerformanceMetrics i() {
 		return inst;
 	}
@@ -21,6 +25,13 @@ public class PerformanceMetrics {
 		overhead = getByKey("_overhead");
 	}
 	
+	/**
+	 * @return minutes of the windows by window index, 0 is total since start
+	 */
+	public static int[] getWindowMinutes() {
+		return WINDOW_MINUTES.clone();
+	}
+	
 	public boolean isEnabled() {
 		return enabled;
 	}
@@ -40,20 +51,13 @@ public class PerformanceMetrics {
 		return getMetric(prefix + "." + key);
 	}
 	
-	public void reset(int c) {
-		for(PerformanceMetric p : metrics.values()) {
-			p.reset(c);
-		}
-	}
-	
-	
 	public PerformanceMetric getMetric(String key) {
 		if(!enabled) {
 			return DISABLED;
 		}
 		long s = System.nanoTime();
 		PerformanceMetric pm = getByKey(key);
-		overhead.capture(System.nanoTime() - s);
+		overhead.record(System.nanoTime() - s);
 		return pm;
 	}
 
@@ -71,15 +75,10 @@ public class PerformanceMetrics {
 		final String name;
 		final int id;
 		String description;
-		AtomicInteger invocations = new AtomicInteger();
-		AtomicLong totalDuration = new AtomicLong();
-		AtomicInteger invocationsA = new AtomicInteger();
-		AtomicLong totalDurationA = new AtomicLong();
-		AtomicInteger invocationsB = new AtomicInteger();
-		AtomicLong totalDurationB = new AtomicLong();
+		final LatencyHistogram total = new LatencyHistogram();
+		// ring of histograms per minute, allocated on first capture within the minute
+		final AtomicReferenceArray<SlotHistogram> slots = new AtomicReferenceArray<SlotHistogram>(SLOTS);
 
-		
-		
 		private PerformanceMetric(int id, String name) {
 			this.id = id;
 			this.name = name;
@@ -92,6 +91,24 @@ public class PerformanceMetrics {
 			return new Metric(this);
 		}
 		
+		/**
+		 * Allocation free alternative to {@link #start()} for hot paths:
+		 * long s = metric.startNs(); ... metric.capture(s);
+		 */
+		public long startNs() {
+			return System.nanoTime();
+		}
+		
+		/**
+		 * @return captured duration in nanoseconds
+		 */
+		public long capture(long startNs) {
+			if(id == -1) {
+				return 0;
+			}
+			return record(System.nanoTime() - startNs);
+		}
+		
 		public String getName() {
 			return name;
 		}
@@ -104,49 +121,66 @@ public class PerformanceMetrics {
 			return description;
 		}
 		
-		public void reset(int c) {
-			if(c == 1) {
-				invocationsA.set(0);
-				totalDurationA.set(0);
-			} else if(c == 2) {
-				totalDurationB.set(0);
-				invocationsB.set(0);
+		/**
+		 * @param c window index, see {@link PerformanceMetrics#getWindowMinutes()}
+		 * @return total histogram or merged copy of histograms for last minutes including current one
+		 */
+		public LatencyHistogram getHistogram(int c) {
+			if (c == 0) {
+				return total;
 			}
+			long slot = System.currentTimeMillis() / SLOT_MS;
+			LatencyHistogram h = new LatencyHistogram();
+			for (int i = 0; i <= WINDOW_MINUTES[c]; i++) {
+				SlotHistogram sh = slots.get((int) ((slot - i) % SLOTS));
+				if (sh != null && sh.slot == slot - i) {
+					h.add(sh);
+				}
+			}
+			return h;
 		}
 		
-		public int getInvocations(int c) {
-			if(c == 1) {
-				return invocationsA.get();
-			} else if(c == 2) {
-				return invocationsB.get();
-			}
-			return invocations.get();
+		public long getInvocations(int c) {
+			return getHistogram(c).getCount();
 		}
 		
 		public long getDuration(int c) {
-			if(c == 1) {
-				return totalDurationA.get();
-			} else if(c == 2) {
-				return totalDurationB.get();
-			}
-			return totalDuration.get();
+			return getHistogram(c).getTotalNanos();
 		}
 		
 		public int getId() {
 			return id;
 		}
 		
-		long capture(long d) {
-			invocations.incrementAndGet();
-			totalDuration.addAndGet(d);
-			invocationsA.incrementAndGet();
-			totalDurationA.addAndGet(d);
-			invocationsB.incrementAndGet();
-			totalDurationB.addAndGet(d);
+		long record(long d) {
+			total.record(d);
+			long slot = System.currentTimeMillis() / SLOT_MS;
+			int ind = (int) (slot % SLOTS);
+			SlotHistogram sh = slots.get(ind);
+			while (sh == null || sh.slot < slot) {
+				// sample recorded concurrently into the outdated slot is lost, that's acceptable for metrics
+				SlotHistogram n = new SlotHistogram(slot);
+				if (slots.compareAndSet(ind, sh, n)) {
+					sh = n;
+				} else {
+					sh = slots.get(ind);
+				}
+			}
+			if (sh.slot == slot) {
+				sh.record(d);
+			}
 			return d;
 		}
 	}
 	
+	private static final class SlotHistogram extends LatencyHistogram {
+		final long slot;
+		
+		SlotHistogram(long slot) {
+			this.slot = slot;
+		}
+	}
+	
 	public static final class Metric {
 		long start;
 		PerformanceMetric m;
@@ -165,7 +199,7 @@ public class PerformanceMetrics {
 			if(e) {
 				return 0;
 			}
-			return m.capture(System.nanoTime() - start);
+			return m.record(System.nanoTime() - start);
 		}
 	}
 }
@@ -8,6 +8,7 @@ import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.service.BotManager;
 import org.openplacereviews.opendb.service.BotManager.BotInfo;
+import org.openplacereviews.opendb.service.HistoryManager;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -39,8 +40,13 @@ public class OpenDBScheduledServices {
 	@Value("${opendb.bots.minInterval:1800}")
 	public int botsMinInterval = 1800;
 
+	@Value("${opendb.db.checkpointInterval:300}")
+	public int checkpointInterval = 300;
+
 	private long previousReplicateCheck = 0;
 	
+	private long previousCheckpoint = 0;
+	
 	private long previousBotsCheck = 0;
 	
 	private long opsAppeared = 0;
@@ -50,6 +56,9 @@ public class OpenDBScheduledServices {
 	
 	@Autowired
 	private BotManager botManager;
+
+	@Autowired
+	private HistoryManager historyManager;
 	
 	@Scheduled(fixedRate = BLOCK_CREATION_PULSE_INTERVAL_SECONDS * SECOND)
 	public void runBots() throws FailedVerificationException {
@@ -85,6 +94,30 @@ public class OpenDBScheduledServices {
 		}
 	}
 	
+	@Scheduled(fixedRate = BLOCK_CREATION_PULSE_INTERVAL_SECONDS * SECOND)
+	public void saveCheckpoint() {
+		long now = System.currentTimeMillis() / 1000;
+		if (previousCheckpoint == 0) {
+			previousCheckpoint = now;
+		} else if (now - previousCheckpoint > checkpointInterval) {
+			previousCheckpoint = now;
+			try {
+				blocksManager.saveCheckpoint();
+			} catch (Exception e) {
+				LOGGER.error("Error saving checkpoint: " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	@Scheduled(fixedRate = HOUR)
+	public void archiveHistory() {
+		try {
+			historyManager.archiveHistory();
+		} catch (Exception e) {
+			LOGGER.error("Error archiving history: " + e.getMessage(), e);
+		}
+	}
+	
 	@Scheduled(fixedRate = BLOCK_CREATION_PULSE_INTERVAL_SECONDS * SECOND)
 	public void createBlock() throws FailedVerificationException {
 		int sz = blocksManager.getBlockchain().getQueueOperations().size();
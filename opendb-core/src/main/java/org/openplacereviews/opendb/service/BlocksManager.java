@@ -18,13 +18,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import javax.annotation.PreDestroy;
+import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 @Service
 public class BlocksManager {
@@ -34,6 +38,7 @@ public class BlocksManager {
 	public static final String BOOT_STD_VALIDATION = "std-validations";
 
 	protected static final Log LOGGER = LogFactory.getLog(BlocksManager.class);
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
 	
 	@Autowired
 	private LogOperationService logSystem;
@@ -50,11 +55,31 @@ public class BlocksManager {
 	@Autowired
 	private IPFSFileManager extResourceService;
 
+	@Autowired
+	private FileBackupManager backupManager;
+
 	protected List<String> bootstrapList = new ArrayList<>();
 	
 	@Value("${opendb.replicate.url}")
 	private String replicateUrl;
 	
+	@Value("${opendb.replicate.prefetch:8}")
+	private int replicatePrefetch;
+	
+	@Value("${opendb.replicate.batch:100}")
+	private int replicateBatch;
+	
+	private volatile boolean replicateRangeSupported = true;
+
+	@Value("${opendb.files-backup.restore:false}")
+	private boolean restoreFromBackup;
+
+	@Value("${opendb.files-backup.restore-full-validation:false}")
+	private boolean restoreFullValidation;
+	
+	// volatile: shutdown doesn't wait for the lock held by replication
+	private volatile ExecutorService replicateService;
+	
 	@Value("${opendb.mgmt.user}")
 	private String serverUser;
 	
@@ -69,6 +94,8 @@ public class BlocksManager {
 	
 	private OpBlockChain blockchain; 
 	
+	private String checkpointState;
+	
 	private enum BlockchainMgmtStatus {
 		BLOCK_CREATION,
 		REPLICATION,
@@ -129,6 +156,35 @@ public class BlocksManager {
 		LOGGER.info("+++ Blockchain is inititialized. " + msg);
 	}
 	
+	@PreDestroy
+	public void shutdown() {
+		// stops downloads first, so replication which holds the lock fails fast
+		ExecutorService rs = replicateService;
+		if (rs != null) {
+			rs.shutdownNow();
+			try {
+				rs.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		saveCheckpoint();
+	}
+
+	public synchronized void saveCheckpoint() {
+		if (blockchain == null || (blockchain.getStatus() != OpBlockChain.UNLOCKED &&
+				blockchain.getStatus() != OpBlockChain.LOCKED_BY_USER)) {
+			return;
+		}
+		OpOperation lastOp = blockchain.getQueueOperations().peekLast();
+		String state = blockchain.getLastBlockRawHash() + ":" + blockchain.getQueueOperations().size() + ":" +
+				(lastOp == null ? "" : lastOp.getRawHash());
+		if (!OUtils.equals(state, checkpointState)) {
+			dataManager.saveCheckpoint(blockchain);
+			checkpointState = state;
+		}
+	}
+	
 	public synchronized boolean unlockBlockchain() {
 		if(blockchain.getStatus() == OpBlockChain.LOCKED_BY_USER) {
 			blockchain.unlockByUser();
@@ -164,7 +220,7 @@ public class BlocksManager {
 		if (blockchain == null) {
 			return false;
 		}
-		Metric m = mBlockAddOpp.start();
+		long m = mBlockAddOpp.startNs();
 		op.makeImmutable();
 		boolean existing = dataManager.validateExistingOperation(op);
 		if (!existing) {
@@ -173,12 +229,16 @@ public class BlocksManager {
 		boolean added = false;
 		try {
 			added = blockchain.addOperation(op);
+			if (added) {
+				Object sz = op.getCacheObject(OpBlockchainRules.CACHE_SIZE);
+				OpTypeMetrics.get(op.getType()).recordAccepted(op, sz instanceof Number ? ((Number) sz).longValue() : 0);
+			}
 		} finally {
 			if (!added && !existing) {
 				// don't remove relations because we can rely that operation hash / content will be the same 
 //				dataManager.removeOperations(Collections.singleton(op.getHash()));
 			}
-			m.capture();
+			mBlockAddOpp.capture(m);
 		}
 		return added;
 	}
@@ -309,45 +369,298 @@ public class BlocksManager {
 						headersToReplicate.removeFirst();	
 					}
 				}
-				for(OpBlock header : headersToReplicate) {
-					OpBlock fullBlock = downloadBlock(header);
-					if(fullBlock == null) {
-						logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED, 
+				return replicateBlocks(headersToReplicate);
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+				logSystem.logError(null, ErrorType.MGMT_REPLICATION_IO_FAILED, "Failed to replicate from " + replicateUrl, e);
+			}
+		}
+		return false;
+	}
+
+	private boolean replicateBlocks(List<OpBlock> headersToReplicate) throws IOException {
+		// ranges of blocks are downloaded and parsed ahead by a bounded window of tasks, applied strictly in order
+		int batch = Math.max(1, replicateBatch);
+		Deque<List<OpBlock>> pendingHeaders = new ArrayDeque<>();
+		Deque<Future<List<OpBlock>>> pendingBlocks = new ArrayDeque<>();
+		int ind = 0;
+		try {
+			while (ind < headersToReplicate.size() || !pendingBlocks.isEmpty()) {
+				while (ind < headersToReplicate.size() && pendingBlocks.size() < Math.max(1, replicatePrefetch)) {
+					final List<OpBlock> headers = new ArrayList<>(
+							headersToReplicate.subList(ind, Math.min(ind + batch, headersToReplicate.size())));
+					ind += headers.size();
+					pendingHeaders.add(headers);
+					pendingBlocks.add(getReplicateService().submit(new Callable<List<OpBlock>>() {
+
+						@Override
+						public List<OpBlock> call() throws Exception {
+							return downloadBlocks(headers);
+						}
+					}));
+				}
+				List<OpBlock> headers = pendingHeaders.poll();
+				List<OpBlock> fullBlocks = waitForBlocks(pendingBlocks.poll());
+				for (int i = 0; i < headers.size(); i++) {
+					OpBlock header = headers.get(i);
+					OpBlock fullBlock = i < fullBlocks.size() ? fullBlocks.get(i) : null;
+					if (fullBlock == null) {
+						logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED,
 								ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED.getErrorFormat(header.getRawHash()), null);
 						return false;
 					}
-					fullBlock.makeImmutable();
-					for (OpOperation o : fullBlock.getOperations()) {
-						if (!dataManager.validateExistingOperation(o)) {
-							dataManager.insertOperation(o);
+					Metric m = mBlockReplicateOps.start();
+					dataManager.insertOperations(fullBlock.getOperations());
+					m.capture();
+					if (!replicateOneBlock(fullBlock)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			for (Future<List<OpBlock>> f : pendingBlocks) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	public boolean isRestoreFromBackupOn() {
+		return restoreFromBackup && backupManager.isEnabled() && blockchain.getLastBlockId() < 0;
+	}
+
+	/**
+	 * Restores empty blockchain from file backup archives: block headers are read from indexes of all archives to select
+	 * the longest chain starting from the genesis block (orphaned blocks are skipped), then archives are read ahead
+	 * by a bounded window of tasks and blocks are applied in order as replicated ones, so operations are saved by batches
+	 * and blocks are compacted into superblocks. Blocks are checked to be connected with correct hash and merkle roots,
+	 * signatures and validation rules are evaluated only with restore-full-validation.
+	 * Restore fails if any block of the chain couldn't be applied or there're blocks above the chain which couldn't
+	 * be connected to it (missing blocks in the backup), so node doesn't start on top of a partial chain.
+	 * @return number of restored blocks
+	 */
+	public synchronized int restoreFromBackup() throws IOException {
+		if (blockchain.getLastBlockId() >= 0) {
+			throw new IllegalStateException("Blockchain is not empty, last block " + blockchain.getLastBlockId());
+		}
+		Metric m = mBlockRestore.start();
+		List<File> archives = backupManager.getArchiveFiles();
+		Map<String, OpBlock> headers = new ConcurrentHashMap<>();
+		List<Future<List<OpBlock>>> readHeaders = new ArrayList<>();
+		for (File f : archives) {
+			readHeaders.add(getReplicateService().submit(new Callable<List<OpBlock>>() {
+
+				@Override
+				public List<OpBlock> call() throws Exception {
+					backupManager.readBlockHeaders(f, b -> headers.put(b.getRawHash(), b));
+					return Collections.emptyList();
+				}
+			}));
+		}
+		for (Future<List<OpBlock>> f : readHeaders) {
+			waitForBlocks(f);
+		}
+		Set<String> mainChain = selectLongestChain(headers.values());
+		LOGGER.info(String.format("Restore %d blocks of %d from %d backup archives", mainChain.size(), headers.size(),
+				archives.size()));
+
+		Deque<Future<List<OpBlock>>> pendingBlocks = new ArrayDeque<>();
+		int ind = 0;
+		int restored = 0;
+		try {
+			while (ind < archives.size() || !pendingBlocks.isEmpty()) {
+				while (ind < archives.size() && pendingBlocks.size() < Math.max(1, replicatePrefetch)) {
+					final File f = archives.get(ind++);
+					pendingBlocks.add(getReplicateService().submit(new Callable<List<OpBlock>>() {
+
+						@Override
+						public List<OpBlock> call() throws Exception {
+							List<OpBlock> blocks = new ArrayList<>();
+							backupManager.readAllBlocks(f, b -> {
+								if (mainChain.contains(b.getRawHash())) {
+									b.makeImmutable();
+									blocks.add(b);
+								}
+							});
+							blocks.sort(Comparator.comparingInt(OpBlock::getBlockId));
+							return blocks;
 						}
+					}));
+				}
+				for (OpBlock block : waitForBlocks(pendingBlocks.poll())) {
+					Metric mo = mBlockReplicateOps.start();
+					dataManager.insertOperations(block.getOperations());
+					mo.capture();
+					if (!replicateOneBlock(block, restoreFullValidation)) {
+						String msg = String.format("Failed to restore block %d '%s' from backup after %d restored blocks",
+								block.getBlockId(), block.getRawHash(), restored);
+						logSystem.logError(block, ErrorType.MGMT_REPLICATION_IO_FAILED, msg, null);
+						throw new IllegalStateException(msg);
 					}
-					replicateOneBlock(fullBlock);
+					restored++;
 				}
-				return true;
-			} catch (IOException e) {
-				LOGGER.error(e.getMessage(), e);
-				logSystem.logError(null, ErrorType.MGMT_REPLICATION_IO_FAILED, "Failed to replicate from " + replicateUrl, e);
 			}
+		} finally {
+			for (Future<List<OpBlock>> f : pendingBlocks) {
+				f.cancel(true);
+			}
+			m.capture();
 		}
-		return false;
+		LOGGER.info(String.format("Restored %d blocks from backup, last block %d", restored, blockchain.getLastBlockId()));
+		return restored;
+	}
+
+	static Set<String> selectLongestChain(Collection<OpBlock> headers) {
+		List<OpBlock> sorted = new ArrayList<>(headers);
+		sorted.sort(Comparator.comparingInt(OpBlock::getBlockId));
+		Map<String, OpBlock> byHash = new HashMap<>();
+		Map<String, Integer> depth = new HashMap<>();
+		OpBlock last = null;
+		for (OpBlock b : sorted) {
+			byHash.put(b.getRawHash(), b);
+			OpBlock prev = byHash.get(b.getPrevRawHash());
+			int d;
+			if (b.getBlockId() == 0) {
+				d = 1;
+			} else if (prev != null && prev.getBlockId() == b.getBlockId() - 1 && depth.containsKey(prev.getRawHash())) {
+				d = depth.get(prev.getRawHash()) + 1;
+			} else {
+				continue;
+			}
+			depth.put(b.getRawHash(), d);
+			if (last == null || d > depth.get(last.getRawHash())) {
+				last = b;
+			}
+		}
+		Set<String> chain = new HashSet<>();
+		for (OpBlock b = last; b != null; b = b.getBlockId() == 0 ? null : byHash.get(b.getPrevRawHash())) {
+			chain.add(b.getRawHash());
+		}
+		// blocks above the tip mean that backup has a hole, node shouldn't start on a truncated chain
+		int tip = last == null ? -1 : last.getBlockId();
+		if (!sorted.isEmpty() && sorted.get(sorted.size() - 1).getBlockId() > tip) {
+			Set<Integer> ids = new HashSet<>();
+			for (OpBlock b : sorted) {
+				ids.add(b.getBlockId());
+			}
+			Set<Integer> missing = new TreeSet<>();
+			for (OpBlock b : sorted) {
+				if (b.getBlockId() > tip && !byHash.containsKey(b.getPrevRawHash())) {
+					for (int id = b.getBlockId() - 1; id > tip && !ids.contains(id); id--) {
+						missing.add(id);
+					}
+					if (ids.contains(b.getBlockId() - 1) || b.getBlockId() - 1 == tip) {
+						// previous block id is present but with another hash
+						missing.add(b.getBlockId() - 1);
+					}
+				}
+			}
+			throw new IllegalStateException(String.format(
+					"Backup blocks from %d to %d are not connected to the chain ending with block %d, missing blocks: %s",
+					tip + 1, sorted.get(sorted.size() - 1).getBlockId(), tip, missing));
+		}
+		return chain;
+	}
+
+	private List<OpBlock> waitForBlocks(Future<List<OpBlock>> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Replication was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private List<OpBlock> downloadBlocks(List<OpBlock> headers) throws IOException {
+		if (headers.size() > 1 && replicateRangeSupported) {
+			try {
+				return downloadBlocksRange(headers);
+			} catch (FileNotFoundException e) {
+				// older peers don't provide range endpoint
+				LOGGER.info("Replication source doesn't support blocks range, switching to single block requests");
+				replicateRangeSupported = false;
+			}
+		}
+		List<OpBlock> res = new ArrayList<>();
+		for (OpBlock header : headers) {
+			res.add(downloadBlock(header));
+		}
+		return res;
+	}
+
+	private List<OpBlock> downloadBlocksRange(List<OpBlock> headers) throws IOException {
+		Metric m = mBlockDownloadRange.start();
+		URLConnection conn = new URL(replicateUrl + "blocks-range?fromId=" + headers.get(0).getBlockId() +
+				"&limit=" + headers.size()).openConnection();
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+		InputStream is = conn.getInputStream();
+		if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+			is = new GZIPInputStream(is);
+		}
+		BlocksListResult range;
+		try (Reader r = new InputStreamReader(is, StandardCharsets.UTF_8)) {
+			range = formatter.fromJson(r, BlocksListResult.class);
+		}
+		m.capture();
+		List<OpBlock> res = new ArrayList<>();
+		Iterator<OpBlock> it = range == null ? Collections.<OpBlock>emptyIterator() : range.blocks.iterator();
+		for (OpBlock header : headers) {
+			OpBlock block = it.hasNext() ? it.next() : null;
+			if (block == null || !OUtils.equals(block.getRawHash(), header.getRawHash())) {
+				// the rest is downloaded by next replication round
+				break;
+			}
+			block.makeImmutable();
+			res.add(block);
+		}
+		return res;
+	}
+
+	private synchronized ExecutorService getReplicateService() {
+		if (replicateService == null) {
+			replicateService = Executors.newFixedThreadPool(Math.max(1, replicatePrefetch), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "replicate-download");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return replicateService;
 	}
 
 	private OpBlock downloadBlock(OpBlock header) throws MalformedURLException, IOException {
+		Metric m = mBlockDownload.start();
 		URL downloadByHash = new URL(replicateUrl + "block-by-hash?hash=" + header.getRawHash());
-		OpBlock res = formatter.fromJson(new InputStreamReader(downloadByHash.openStream()), OpBlock.class);
-		if(res.getBlockId() == -1) {
+		OpBlock res;
+		try (Reader r = new InputStreamReader(downloadByHash.openStream())) {
+			res = formatter.fromJson(r, OpBlock.class);
+		}
+		m.capture();
+		if (res == null || res.getBlockId() == -1 || !OUtils.equals(res.getRawHash(), header.getRawHash())) {
 			return null;
 		}
+		res.makeImmutable();
 		return res;
 	}
 	
 	public synchronized boolean replicateOneBlock(OpBlock block) {
+		return replicateOneBlock(block, true);
+	}
+
+	private synchronized boolean replicateOneBlock(OpBlock block, boolean fullValidation) {
 		Metric m = mBlockSync.start();
 		OpBlockChain blc = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
 		OpBlock res;
 		DeletedObjectCtx hctx = new DeletedObjectCtx();
-		res = blc.replicateBlock(block, hctx);
+		res = blc.replicateBlock(block, hctx, fullValidation);
 		m.capture();
 		if(res == null) {
 			return false;
@@ -476,6 +789,52 @@ public class BlocksManager {
 		return true;
 	}
 	
+	/**
+	 * Writes full blocks of the main chain starting from block id as json compatible with {@link BlocksListResult}.
+	 * Blocks are read from db by batches and written without building full response in memory.
+	 * @return number of written blocks
+	 */
+	public int writeBlocksRange(int fromBlockId, int limit, Writer w) throws IOException {
+		OpBlockChain blc = blockchain;
+		int toBlockId = Math.min(blc.getLastBlockId(), fromBlockId + limit - 1);
+		Set<String> hashes = new HashSet<>();
+		if (toBlockId >= fromBlockId) {
+			for (OpBlock header : blc.getBlockHeaders(fromBlockId, toBlockId)) {
+				hashes.add(header.getRawHash());
+			}
+		}
+		w.write("{\"blockDepth\":" + blc.getDepth() + ",\"blocks\":[");
+		int cnt = 0;
+		if (!hashes.isEmpty()) {
+			try {
+				cnt = dataManager.streamBlocksContent(fromBlockId, toBlockId, hashes, new Consumer<String>() {
+					boolean first = true;
+
+					@Override
+					public void accept(String content) {
+						try {
+							if (!first) {
+								w.write(',');
+							}
+							first = false;
+							w.write(content);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		w.write("]}");
+		return cnt;
+	}
+
+	public int writeSnapshot(Writer w) throws IOException {
+		return dataManager.exportSnapshot(blockchain, w);
+	}
+
 	public OpBlockChain getBlockchain() {
 		return blockchain == null ? OpBlockChain.NULL : blockchain;
 	}
@@ -583,11 +942,15 @@ public class BlocksManager {
 	private static final PerformanceMetric mBlockCreateAddOps = PerformanceMetrics.i().getMetric("block.mgmt.create.addops");
 	private static final PerformanceMetric mBlockCreateValidate = PerformanceMetrics.i().getMetric("block.mgmt.create.validate");
 	private static final PerformanceMetric mBlockCreateExtResources = PerformanceMetrics.i().getMetric("block.mgmt.create.extresources");
+	private static final PerformanceMetric mBlockDownload = PerformanceMetrics.i().getMetric("block.mgmt.replicate.download");
+	private static final PerformanceMetric mBlockDownloadRange = PerformanceMetrics.i().getMetric("block.mgmt.replicate.download.range");
+	private static final PerformanceMetric mBlockReplicateOps = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.saveops");
 	private static final PerformanceMetric mBlockSync = PerformanceMetrics.i().getMetric("block.mgmt.sync");
 	private static final PerformanceMetric mBlockReplicate = PerformanceMetrics.i().getMetric("block.mgmt.replicate.total");
 	private static final PerformanceMetric mBlockSaveBlock = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.saveblock");
 	private static final PerformanceMetric mBlockSaveHistory = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.savesuperblock");
 	private static final PerformanceMetric mBlockSaveSuperBlock = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.savehistory");
+	private static final PerformanceMetric mBlockRestore = PerformanceMetrics.i().getMetric("block.mgmt.restore");
 	private static final PerformanceMetric mBlockCompact = PerformanceMetrics.i().getMetric("block.mgmt.replicate.compact");
 	private static final PerformanceMetric mBlockRebase = PerformanceMetrics.i().getMetric("block.mgmt.replicate.rebase");
 }
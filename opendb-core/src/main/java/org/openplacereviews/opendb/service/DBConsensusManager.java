@@ -1,5 +1,9 @@
 package org.openplacereviews.opendb.service;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -8,6 +12,9 @@ import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.dto.ResourceDTO;
 import org.openplacereviews.opendb.ops.*;
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.ops.de.ColumnDef;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
@@ -15,7 +22,9 @@ import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
@@ -25,8 +34,12 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.IOException;
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
@@ -39,6 +52,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 import static org.openplacereviews.opendb.ops.OpBlock.F_OPERATIONS_SIZE;
 import static org.openplacereviews.opendb.service.DBSchemaManager.*;
@@ -47,6 +61,22 @@ import static org.openplacereviews.opendb.service.DBSchemaManager.*;
 public class DBConsensusManager {
 
 	protected static final Log LOGGER = LogFactory.getLog(DBConsensusManager.class);
+	private static final String CHECKPOINT_SETTING = "opendb.checkpoint";
+	private static final String CHECKPOINT_HASH_SETTING = "opendb.checkpoint.hash";
+	private static final int BLOCKS_BATCH_SIZE = 50;
+	private static final int OBJS_FETCH_SIZE = 1000;
+	// bytea[] from comma separated hex hashes
+	private static final String HASH_ARRAY_SQL = "ARRAY(SELECT decode(h, 'hex') FROM unnest(string_to_array(?, ',')) h)";
+	private static final String SNAPSHOT_VERSION = "snapshot";
+	private static final String SNAPSHOT_SUPERBLOCK = "superblock";
+	private static final String SNAPSHOT_SIZE = "size";
+	private static final String SNAPSHOT_BLOCKS = "blocks";
+	private static final String SNAPSHOT_BLOCK = "block";
+	private static final String SNAPSHOT_OBJ_TYPE = "type";
+	private static final String SNAPSHOT_OBJ_OP = "op";
+	private static final String SNAPSHOT_OBJ_BLOCK_ID = "sblockid";
+	private static final String SNAPSHOT_OBJ_ORDER = "sorder";
+	private static final String SNAPSHOT_OBJ_CONTENT = "content";
 
 	// check SimulateSuperblockCompactSequences to verify numbers
 	@Value("${opendb.db.compactCoefficient}")
@@ -55,6 +85,26 @@ public class DBConsensusManager {
 	@Value("${opendb.db.dbSuperblockSize}")
 	private int superblockSize = 32;
 
+	// blocks stored locally were validated before they were saved, so by default only hashes are verified on load
+	@Value("${opendb.db.fullVerifyOnLoad:false}")
+	private boolean fullVerifyOnLoad = false;
+
+	@Value("${opendb.db.checkpoint:true}")
+	private boolean checkpointEnabled = true;
+
+	// bootstrap empty db from snapshot of a trusted node, its top superblock hash should be pinned
+	@Value("${opendb.db.snapshotUrl:}")
+	private String snapshotUrl;
+
+	@Value("${opendb.db.snapshotSuperblock:}")
+	private String snapshotSuperblock;
+
+	@Value("${opendb.db.indexBackfillBatch:1000}")
+	private int indexBackfillBatch = 1000;
+
+	@Value("${opendb.db.indexBackfillPauseMs:100}")
+	private int indexBackfillPauseMs = 100;
+
 	@Autowired
 	private JdbcTemplate jdbcTemplate;
 	
@@ -73,6 +123,12 @@ public class DBConsensusManager {
 	@Autowired
 	private LogOperationService logSystem;
 
+	@Autowired
+	private SlowLogService slowLog;
+
+	@Autowired
+	private HistoryManager historyManager;
+
 	private Map<String, OpBlock> blocks = new ConcurrentHashMap<String, OpBlock>();
 	private Map<String, OpBlock> orphanedBlocks = new ConcurrentHashMap<String, OpBlock>();
 	private Map<String, SuperblockDbAccess> dbSuperBlocks = new ConcurrentHashMap<>();
@@ -82,6 +138,14 @@ public class DBConsensusManager {
 		return orphanedBlocks;
 	}
 
+	public int getCachedBlocksCount() {
+		return blocks.size();
+	}
+
+	public int getCachedDbSuperblocksCount() {
+		return dbSuperBlocks.size();
+	}
+
 	protected String getHexFromPgObject(PGobject o) {
 		String s = o.getValue();
 		if (s == null) {
@@ -102,6 +166,11 @@ public class DBConsensusManager {
 		dbSchema.initializeDatabaseSchema(metadataDB, jdbcTemplate);
 		backupManager.init();
 		final OpBlockchainRules rules = new OpBlockchainRules(formatter, logSystem);
+		rules.setSlowOperationListener(slowLog, slowLog.getOpThresholdMs());
+		if (!OUtils.isEmpty(snapshotUrl) && isBlocksTableEmpty()) {
+			LOGGER.info(String.format("... Importing snapshot from %s ...", snapshotUrl));
+			importSnapshot(snapshotUrl, rules);
+		}
 		LOGGER.info("... Loading block headers ...");
 		dbManagedChain = loadBlockHeadersAndBuildMainChain(rules);
 
@@ -116,30 +185,144 @@ public class DBConsensusManager {
 			LOGGER.info(String.format("### Selected main blockchain with '%s' and %d id. Orphaned blocks %d. ###",
 					dbManagedChain.getLastBlockRawHash(), dbManagedChain.getLastBlockId(), orphanedBlocks.size()));
 		}
-		LOGGER.info("... Loading blocks from database ...");
-		OpBlockChain topChain = loadBlocks(topBlockInfo, dbManagedChain, rules);
+		ChainCheckpoint checkpoint = loadCheckpoint(dbManagedChain, topBlockInfo);
+		OpBlockChain topChain;
+		if (checkpoint != null) {
+			LOGGER.info(String.format("... Restoring %d blocks from checkpoint ...", checkpoint.blocks.size()));
+			topChain = restoreBlocksFromCheckpoint(checkpoint, topBlockInfo, dbManagedChain, rules);
+		} else {
+			LOGGER.info(String.format("... Loading blocks from database (%s verification) ...",
+					fullVerifyOnLoad ? "full" : "hash"));
+			topChain = loadBlocks(topBlockInfo, dbManagedChain, rules);
+		}
 		LOGGER.info(String.format("### Loaded %d blocks ###", topChain.getSuperblockSize()));
 
 		OpBlockChain blcQueue = new OpBlockChain(topChain, rules);
 
 		LOGGER.info("... Loading operation queue  ...");
-		int[] ops = new int[1];
+		List<OpOperation> queue = new ArrayList<OpOperation>();
 		jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where blocks is null order by dbid asc ",
 				new RowCallbackHandler() {
 
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
-						ops[0]++;
 						OpOperation op = formatter.parseOperation(rs.getString(1));
 						op.makeImmutable();
-						blcQueue.addOperation(op);
+						queue.add(op);
 					}
 
 				});
-		LOGGER.info(String.format("... Loaded operation %d into queue  ...", ops[0]));
+		if (checkpoint != null && checkpoint.isQueueValid(topBlockInfo, queue)) {
+			blcQueue.restoreFromCheckpoint(Collections.emptyList(), queue, checkpoint.queueObjects);
+		} else {
+			for (OpOperation op : queue) {
+				blcQueue.addOperation(op);
+			}
+		}
+		LOGGER.info(String.format("... Loaded operation %d into queue  ...", queue.size()));
 		LOGGER.info(String.format("+++ Database blockchain initialized +++"));
+		startIndexBackfill();
 		return blcQueue;
 	}
+
+	private void startIndexBackfill() {
+		Collection<ColumnDef> cols = dbSchema.getIndexBackfillColumns();
+		if (cols.isEmpty()) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				for (ColumnDef c : cols) {
+					try {
+						LOGGER.info(String.format("Start backfill of column '%s' in '%s'", c.getColName(), c.getTableName()));
+						backfillIndexColumn(c);
+						dbSchema.completeIndexBackfill(jdbcTemplate, c);
+						LOGGER.info(String.format("Column '%s' in '%s' is backfilled and indexed", c.getColName(), c.getTableName()));
+					} catch (RuntimeException e) {
+						LOGGER.error(String.format("Backfill of column '%s' in '%s' failed: %s", c.getColName(),
+								c.getTableName(), e.getMessage()), e);
+					}
+				}
+			}
+		}, "index-backfill");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void backfillIndexColumn(ColumnDef c) {
+		List<OpIndexColumn> indexes = dbSchema.getIndicesForColumn(c);
+		PerformanceMetric pm = PerformanceMetrics.i().getMetric("db.index.backfill", c.getTableName() + "." + c.getColName());
+		Set<String> processed = new HashSet<String>();
+		boolean found = true;
+		// superblocks could be compacted or saved meanwhile, so iterate till all of them are processed
+		while (found) {
+			found = false;
+			for (SuperblockDbAccess dba : new ArrayList<SuperblockDbAccess>(dbSuperBlocks.values())) {
+				if (dba.staleAccess.get() || !processed.add(dba.superBlockHash)) {
+					continue;
+				}
+				found = true;
+				try {
+					for (OpIndexColumn index : indexes) {
+						backfillSuperblock(dba, index, pm);
+					}
+				} catch (DBStaleException e) {
+					// objects are processed as part of compacted superblock
+				}
+				pm.setDescription(String.format("Processed %d superblocks", processed.size()));
+			}
+		}
+	}
+
+	private void backfillSuperblock(SuperblockDbAccess dba, OpIndexColumn index, PerformanceMetric pm) {
+		final ColumnDef c = index.getColumnDef();
+		final int keySize = dbSchema.getKeySizeByTable(c.getTableName());
+		final Iterator<Entry<CompoundKey, OpObject>> it = dba.streamObjects(index.getOpType(), -1, false).iterator();
+		jdbcTemplate.execute(new ConnectionCallback<Void>() {
+
+			@Override
+			public Void doInConnection(Connection conn) throws SQLException, DataAccessException {
+				List<Object[]> batch = new ArrayList<Object[]>();
+				while (it.hasNext()) {
+					Entry<CompoundKey, OpObject> e = it.next();
+					OpObject obj = e.getValue();
+					if (obj.isDeleted()) {
+						continue;
+					}
+					Metric m = pm.start();
+					Object[] args = new Object[3 + keySize];
+					args[0] = index.evalDBValue(obj, conn);
+					args[1] = index.getOpType();
+					args[2] = SecUtils.getHashBytes(obj.getParentHash());
+					e.getKey().toArray(args, 3);
+					batch.add(args);
+					m.capture();
+					if (batch.size() >= indexBackfillBatch) {
+						flushBackfillBatch(batch, c);
+						try {
+							Thread.sleep(indexBackfillPauseMs);
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+							throw new IllegalStateException(ex);
+						}
+					}
+				}
+				flushBackfillBatch(batch, c);
+				return null;
+			}
+		});
+	}
+
+	private void flushBackfillBatch(List<Object[]> batch, ColumnDef c) {
+		if (batch.size() > 0) {
+			Metric m = mIndexBackfillBatch.start();
+			dbSchema.updateObjIndexColumnBatch(batch, c, jdbcTemplate);
+			m.capture();
+			batch.clear();
+		}
+	}
 	
 	public OpIndexColumn getIndex(String type, String columnId) {
 		return dbSchema.getIndex(type, columnId);
@@ -158,7 +341,32 @@ public class DBConsensusManager {
 		for (OpBlock b : topBlockInfo) {
 			String blockHash = b.getRawHash();
 			OpBlock rawBlock = loadBlock(blockHash);
-			OpBlock replicateBlock = blc.replicateBlock(rawBlock);
+			OpBlock replicateBlock = blc.replicateBlock(rawBlock, null, fullVerifyOnLoad);
+			if (replicateBlock == null) {
+				throw new IllegalStateException("Could not replicate block " + blockHash + " "
+						+ formatter.toJson(rawBlock));
+			}
+		}
+		return blc;
+	}
+
+
+	private OpBlockChain restoreBlocksFromCheckpoint(ChainCheckpoint checkpoint, List<OpBlock> topBlockInfo,
+			final OpBlockChain newParent, final OpBlockchainRules rules) {
+		if (topBlockInfo.size() == 0) {
+			return newParent;
+		}
+		OpBlockChain blc = new OpBlockChain(newParent, rules);
+		List<OpBlock> restoredBlocks = new ArrayList<OpBlock>();
+		for (int i = 0; i < checkpoint.blocks.size(); i++) {
+			restoredBlocks.add(loadBlock(topBlockInfo.get(i).getRawHash()));
+		}
+		blc.restoreFromCheckpoint(restoredBlocks, Collections.emptyList(), checkpoint.objects);
+		// blocks created after checkpoint
+		for (int i = checkpoint.blocks.size(); i < topBlockInfo.size(); i++) {
+			String blockHash = topBlockInfo.get(i).getRawHash();
+			OpBlock rawBlock = loadBlock(blockHash);
+			OpBlock replicateBlock = blc.replicateBlock(rawBlock, null, fullVerifyOnLoad);
 			if (replicateBlock == null) {
 				throw new IllegalStateException("Could not replicate block " + blockHash + " "
 						+ formatter.toJson(rawBlock));
@@ -167,6 +375,512 @@ public class DBConsensusManager {
 		return blc;
 	}
 
+	// checkpoint is valid only for the same db superblock and it stores runtime blocks with their objects and queue
+	public void saveCheckpoint(OpBlockChain blc) {
+		if (!checkpointEnabled) {
+			return;
+		}
+		Metric m = mCheckpointSave.start();
+		List<OpBlockChain> layers = new ArrayList<OpBlockChain>();
+		OpBlockChain p = blc.getParent();
+		while (!p.isNullBlock() && !p.isDbAccessed()) {
+			layers.add(0, p);
+			p = p.getParent();
+		}
+		JsonObject state = new JsonObject();
+		state.addProperty("superblock", p.getSuperBlockHash());
+		JsonArray blocksArray = new JsonArray();
+		for (OpBlockChain l : layers) {
+			Iterator<OpBlock> it = l.getSuperblockHeaders().descendingIterator();
+			while (it.hasNext()) {
+				blocksArray.add(it.next().getRawHash());
+			}
+		}
+		state.add("blocks", blocksArray);
+		state.add("objects", checkpointObjectsToJson(layers));
+		JsonArray queueArray = new JsonArray();
+		for (OpOperation o : blc.getQueueOperations()) {
+			queueArray.add(o.getRawHash());
+		}
+		state.add("queue", queueArray);
+		state.add("queueObjects", checkpointObjectsToJson(Collections.singletonList(blc)));
+		String json = state.toString();
+		String hash = SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, json.getBytes(StandardCharsets.UTF_8));
+		txTemplate.execute(new TransactionCallback<Void>() {
+
+			@Override
+			public Void doInTransaction(TransactionStatus status) {
+				dbSchema.setSetting(jdbcTemplate, CHECKPOINT_SETTING, json);
+				dbSchema.setSetting(jdbcTemplate, CHECKPOINT_HASH_SETTING, hash);
+				return null;
+			}
+		});
+		m.capture();
+		LOGGER.info(String.format("Checkpoint is saved with %d blocks and %d queue operations", blocksArray.size(),
+				queueArray.size()));
+	}
+
+	private JsonObject checkpointObjectsToJson(List<OpBlockChain> layers) {
+		Map<String, Map<CompoundKey, OpObject>> objects = new TreeMap<String, Map<CompoundKey, OpObject>>();
+		for (OpBlockChain l : layers) {
+			for (String type : l.getRawSuperblockTypes()) {
+				Map<CompoundKey, OpObject> objs = objects.get(type);
+				if (objs == null) {
+					objs = new LinkedHashMap<CompoundKey, OpObject>();
+					objects.put(type, objs);
+				}
+				Iterator<Entry<CompoundKey, OpObject>> it = l.getRawSuperblockObjects(type).iterator();
+				while (it.hasNext()) {
+					Entry<CompoundKey, OpObject> e = it.next();
+					objs.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		JsonObject res = new JsonObject();
+		for (String type : objects.keySet()) {
+			JsonArray arr = new JsonArray();
+			for (Entry<CompoundKey, OpObject> e : objects.get(type).entrySet()) {
+				OpObject obj = e.getValue();
+				JsonObject o = new JsonObject();
+				JsonArray key = new JsonArray();
+				for (String k : e.getKey()) {
+					key.add(k);
+				}
+				o.add("key", key);
+				if (obj.getParentHash() != null) {
+					o.addProperty("ptype", obj.getParentType());
+					o.addProperty("phash", obj.getParentHash());
+				}
+				if (!obj.isDeleted()) {
+					o.add("obj", formatter.toJsonElement(obj));
+				}
+				arr.add(o);
+			}
+			res.add(type, arr);
+		}
+		return res;
+	}
+
+	private ChainCheckpoint loadCheckpoint(OpBlockChain dbChain, List<OpBlock> topBlockInfo) {
+		if (!checkpointEnabled) {
+			return null;
+		}
+		String json = dbSchema.getSetting(jdbcTemplate, CHECKPOINT_SETTING);
+		String hash = dbSchema.getSetting(jdbcTemplate, CHECKPOINT_HASH_SETTING);
+		if (OUtils.isEmpty(json) || OUtils.isEmpty(hash)) {
+			return null;
+		}
+		Metric m = mCheckpointLoad.start();
+		try {
+			if (!hash.equals(SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, json.getBytes(StandardCharsets.UTF_8)))) {
+				LOGGER.warn("Checkpoint hash doesn't match its content, checkpoint is ignored");
+				return null;
+			}
+			JsonObject state = new JsonParser().parse(json).getAsJsonObject();
+			if (!OUtils.equals(state.get("superblock").getAsString(), dbChain.getSuperBlockHash())) {
+				LOGGER.info("Checkpoint was created for another db superblock, checkpoint is ignored");
+				return null;
+			}
+			ChainCheckpoint checkpoint = new ChainCheckpoint();
+			for (JsonElement b : state.getAsJsonArray("blocks")) {
+				checkpoint.blocks.add(b.getAsString());
+			}
+			for (JsonElement o : state.getAsJsonArray("queue")) {
+				checkpoint.queue.add(o.getAsString());
+			}
+			if (checkpoint.blocks.size() > topBlockInfo.size()) {
+				LOGGER.info("Checkpoint has more blocks than main chain, checkpoint is ignored");
+				return null;
+			}
+			for (int i = 0; i < checkpoint.blocks.size(); i++) {
+				if (!checkpoint.blocks.get(i).equals(topBlockInfo.get(i).getRawHash())) {
+					LOGGER.info("Checkpoint blocks don't match main chain, checkpoint is ignored");
+					return null;
+				}
+			}
+			checkpoint.objects = parseCheckpointObjects(state.getAsJsonObject("objects"));
+			checkpoint.queueObjects = parseCheckpointObjects(state.getAsJsonObject("queueObjects"));
+			return checkpoint;
+		} catch (RuntimeException e) {
+			LOGGER.warn("Checkpoint couldn't be read: " + e.getMessage(), e);
+			return null;
+		} finally {
+			m.capture();
+		}
+	}
+
+	private Map<String, Map<List<String>, OpObject>> parseCheckpointObjects(JsonObject objects) {
+		Map<String, Map<List<String>, OpObject>> res = new TreeMap<String, Map<List<String>, OpObject>>();
+		for (Entry<String, JsonElement> e : objects.entrySet()) {
+			Map<List<String>, OpObject> objs = new LinkedHashMap<List<String>, OpObject>();
+			for (JsonElement el : e.getValue().getAsJsonArray()) {
+				JsonObject o = el.getAsJsonObject();
+				List<String> key = new ArrayList<String>();
+				for (JsonElement k : o.getAsJsonArray("key")) {
+					key.add(k.isJsonNull() ? null : k.getAsString());
+				}
+				OpObject obj;
+				if (o.has("obj")) {
+					obj = formatter.parseObject(o.get("obj"));
+				} else if (o.has("phash")) {
+					obj = new OpObject(true);
+				} else {
+					objs.put(key, OpObject.NULL);
+					continue;
+				}
+				if (o.has("phash")) {
+					obj.setParentOp(o.get("ptype").getAsString(), o.get("phash").getAsString());
+				}
+				obj.makeImmutable();
+				objs.put(key, obj);
+			}
+			res.put(e.getKey(), objs);
+		}
+		return res;
+	}
+
+	private static class ChainCheckpoint {
+		List<String> blocks = new ArrayList<String>();
+		List<String> queue = new ArrayList<String>();
+		Map<String, Map<List<String>, OpObject>> objects;
+		Map<String, Map<List<String>, OpObject>> queueObjects;
+
+		boolean isQueueValid(List<OpBlock> topBlockInfo, List<OpOperation> ops) {
+			if (blocks.size() != topBlockInfo.size() || queue.size() != ops.size()) {
+				return false;
+			}
+			for (int i = 0; i < ops.size(); i++) {
+				if (!queue.get(i).equals(ops.get(i).getRawHash())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Writes snapshot of the chain saved in db as json lines: header with the top db superblock, block headers
+	 * (oldest first) and the latest version of every object which is not deleted. Operations and full blocks are not
+	 * exported, replica imports the snapshot on startup instead of replaying all blocks (see opendb.db.snapshotUrl).
+	 * @return number of exported blocks
+	 */
+	public int exportSnapshot(OpBlockChain blc, Writer w) throws IOException {
+		Metric m = mSnapshotExport.start();
+		OpBlockChain top = null;
+		List<SuperblockDbAccess> dbas = new ArrayList<SuperblockDbAccess>();
+		LinkedList<OpBlock> headers = new LinkedList<OpBlock>();
+		while (!blc.isNullBlock()) {
+			if (blc.isDbAccessed()) {
+				SuperblockDbAccess dba = dbSuperBlocks.get(blc.getSuperBlockHash());
+				if (dba == null) {
+					throw new IllegalStateException("Superblock is not accessible in db: " + blc.getSuperBlockHash());
+				}
+				if (top == null) {
+					top = blc;
+				}
+				dbas.add(dba);
+				// superblock headers are ordered from the latest block
+				for (OpBlock h : blc.getSuperblockHeaders()) {
+					headers.addFirst(h);
+				}
+			}
+			blc = blc.getParent();
+		}
+		if (top == null) {
+			throw new IllegalStateException("Blocks are not saved in db yet");
+		}
+		JsonObject header = new JsonObject();
+		header.addProperty(SNAPSHOT_VERSION, 1);
+		header.addProperty(SNAPSHOT_SUPERBLOCK, top.getSuperBlockHash());
+		header.addProperty(SNAPSHOT_SIZE, top.getSuperblockSize());
+		header.addProperty(SNAPSHOT_BLOCKS, headers.size());
+		w.write(header.toString());
+		w.write('\n');
+		for (OpBlock h : headers) {
+			w.write("{\"" + SNAPSHOT_BLOCK + "\":");
+			w.write(formatter.fullObjectToJson(h));
+			w.write("}\n");
+		}
+		Set<String> types = new TreeSet<String>();
+		for (SuperblockDbAccess dba : dbas) {
+			types.addAll(dba.getObjectTypes());
+		}
+		for (String type : types) {
+			exportSnapshotObjects(dbas, type, w);
+		}
+		m.capture();
+		return headers.size();
+	}
+
+	private void exportSnapshotObjects(List<SuperblockDbAccess> dbas, String type, Writer w) throws IOException {
+		String objTable = dbSchema.getTableByType(type);
+		String pk = dbSchema.generatePKString(objTable, "p%1$d", ", ", dbSchema.getKeySizeByType(type));
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < dbas.size(); i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+		// objects of compacted superblocks could be saved twice, the latest version is exported
+		String sql = "select distinct on (" + pk + ") content, ophash, sblockid, sorder from " + objTable
+				+ " where type = ? and superblock in (" + placeholders + ") order by " + pk + ", sblockid desc, sorder desc";
+		try {
+			txTemplate.execute(new TransactionCallback<Void>() {
+
+				@Override
+				public Void doInTransaction(TransactionStatus status) {
+					// cursor based fetch works only inside transaction
+					jdbcTemplate.query(new PreparedStatementCreator() {
+
+						@Override
+						public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+							PreparedStatement ps = con.prepareStatement(sql);
+							ps.setString(1, type);
+							for (int i = 0; i < dbas.size(); i++) {
+								ps.setBytes(i + 2, dbas.get(i).sbhash);
+							}
+							ps.setFetchSize(OBJS_FETCH_SIZE);
+							return ps;
+						}
+					}, new RowCallbackHandler() {
+
+						@Override
+						public void processRow(ResultSet rs) throws SQLException {
+							String content = rs.getString(1);
+							if (content == null) {
+								// deleted object
+								return;
+							}
+							JsonObject objLine = new JsonObject();
+							objLine.addProperty(SNAPSHOT_OBJ_TYPE, type);
+							objLine.addProperty(SNAPSHOT_OBJ_OP, SecUtils.hexify(rs.getBytes(2)));
+							objLine.addProperty(SNAPSHOT_OBJ_BLOCK_ID, rs.getInt(3));
+							objLine.addProperty(SNAPSHOT_OBJ_ORDER, rs.getInt(4));
+							objLine.addProperty(SNAPSHOT_OBJ_CONTENT, content);
+							try {
+								w.write(objLine.toString());
+								w.write('\n');
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}
+					});
+					return null;
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		// rows of superblocks compacted meanwhile are not selected
+		for (SuperblockDbAccess dba : dbas) {
+			dba.checkNotStale();
+		}
+	}
+
+	private boolean isBlocksTableEmpty() {
+		return jdbcTemplate.queryForList("SELECT blockid from " + BLOCKS_TABLE + " limit 1").isEmpty();
+	}
+
+	private void importSnapshot(String url, OpBlockchainRules rules) {
+		if (OUtils.isEmpty(snapshotSuperblock)) {
+			// objects of the snapshot can't be verified without operations, so only a pinned chain is imported
+			throw new IllegalStateException("opendb.db.snapshotSuperblock should be set to the top superblock of the trusted node");
+		}
+		Metric m = mSnapshotImport.start();
+		try {
+			URLConnection conn = new URL(url).openConnection();
+			conn.setRequestProperty("Accept-Encoding", "gzip");
+			InputStream is = conn.getInputStream();
+			if ("gzip".equalsIgnoreCase(conn.getContentEncoding()) || url.endsWith(".gz")) {
+				is = new GZIPInputStream(is);
+			}
+			try (BufferedReader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+				String superblock = txTemplate.execute(new TransactionCallback<String>() {
+
+					@Override
+					public String doInTransaction(TransactionStatus status) {
+						SnapshotImport imp = new SnapshotImport(rules);
+						try {
+							String line;
+							while ((line = r.readLine()) != null) {
+								if (line.length() > 0) {
+									imp.processLine(new JsonParser().parse(line).getAsJsonObject());
+								}
+							}
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+						return imp.finish();
+					}
+				});
+				LOGGER.info(String.format("+++ Imported snapshot as superblock '%s' +++", superblock));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to import snapshot from " + url, e);
+		}
+		m.capture();
+	}
+
+	/**
+	 * Imports snapshot as a single db superblock. Block headers are verified by hashes and chain connection and
+	 * top superblock should match opendb.db.snapshotSuperblock, objects are not verified, so snapshot source is trusted.
+	 */
+	private class SnapshotImport {
+		private static final int BATCH_SIZE = 1000;
+		private final OpBlockchainRules rules;
+		private String topSuperblock;
+		private int topSuperblockSize;
+		private int blocksCount = -1;
+		private List<OpBlock> headers = new ArrayList<OpBlock>();
+		private byte[] sbhash;
+		private String objType;
+		private Map<String, Long> opsId = new HashMap<String, Long>();
+		private List<Entry<CompoundKey, OpObject>> objects = new ArrayList<Entry<CompoundKey, OpObject>>();
+
+		SnapshotImport(OpBlockchainRules rules) {
+			this.rules = rules;
+		}
+
+		void processLine(JsonObject line) {
+			if (line.has(SNAPSHOT_VERSION)) {
+				if (line.get(SNAPSHOT_VERSION).getAsInt() != 1) {
+					throw new IllegalArgumentException("Unsupported snapshot version " + line.get(SNAPSHOT_VERSION));
+				}
+				topSuperblock = line.get(SNAPSHOT_SUPERBLOCK).getAsString();
+				topSuperblockSize = line.get(SNAPSHOT_SIZE).getAsInt();
+				blocksCount = line.get(SNAPSHOT_BLOCKS).getAsInt();
+			} else if (line.has(SNAPSHOT_BLOCK)) {
+				if (blocksCount < 0 || sbhash != null) {
+					throw new IllegalArgumentException("Snapshot block is not within blocks section");
+				}
+				addBlock(formatter.parseBlock(line.get(SNAPSHOT_BLOCK).toString()));
+			} else if (line.has(SNAPSHOT_OBJ_TYPE)) {
+				if (sbhash == null) {
+					finishBlocks();
+				}
+				addObject(line);
+			}
+		}
+
+		private void addBlock(OpBlock block) {
+			String blockHash = block.getFullHash();
+			OpBlock lastBlock = headers.isEmpty() ? null : headers.get(headers.size() - 1);
+			if (lastBlock != null && (lastBlock.getBlockId() + 1 != block.getBlockId()
+					|| !OUtils.equals(lastBlock.getFullHash(), block.getStringValue(OpBlock.F_PREV_BLOCK_HASH)))) {
+				throw new IllegalArgumentException(String.format("Snapshot block '%s' is not connected to '%s'", blockHash,
+						lastBlock.getFullHash()));
+			}
+			if (lastBlock == null && block.getBlockId() != 0) {
+				throw new IllegalArgumentException(String.format("Snapshot should start with block 0 but starts with %d",
+						block.getBlockId()));
+			}
+			if (!OUtils.equals(rules.calculateHash(block), blockHash)) {
+				throw new IllegalArgumentException(String.format("Snapshot block '%s' doesn't match its hash", blockHash));
+			}
+			headers.add(block);
+		}
+
+		private void finishBlocks() {
+			if (headers.isEmpty() || headers.size() != blocksCount) {
+				throw new IllegalArgumentException(String.format("Snapshot is incomplete: %d blocks out of %d",
+						headers.size(), blocksCount));
+			}
+			String lastBlockHash = headers.get(headers.size() - 1).getRawHash();
+			if (topSuperblockSize <= 0 || topSuperblockSize > headers.size() || !OUtils.equals(topSuperblock,
+					OpBlockchainRules.calculateSuperblockHash(topSuperblockSize, lastBlockHash))) {
+				throw new IllegalArgumentException(String.format("Snapshot superblock '%s' doesn't match its blocks",
+						topSuperblock));
+			}
+			if (!OUtils.equals(snapshotSuperblock, topSuperblock)) {
+				throw new IllegalArgumentException(String.format("Snapshot top superblock '%s' doesn't match expected '%s'",
+						topSuperblock, snapshotSuperblock));
+			}
+			sbhash = SecUtils.getHashBytes(OpBlockchainRules.calculateSuperblockHash(headers.size(), lastBlockHash));
+			List<Object[]> batch = new ArrayList<Object[]>();
+			for (OpBlock block : headers) {
+				batch.add(new Object[] { SecUtils.getHashBytes(block.getFullHash()),
+						SecUtils.getHashBytes(block.getStringValue(OpBlock.F_PREV_BLOCK_HASH)), block.getBlockId(), sbhash,
+						toJsonbObject(formatter.fullObjectToJson(block)) });
+				if (batch.size() >= BATCH_SIZE) {
+					insertBlockHeaders(batch);
+				}
+			}
+			insertBlockHeaders(batch);
+		}
+
+		private void insertBlockHeaders(List<Object[]> batch) {
+			// content of the blocks is not part of snapshot
+			jdbcTemplate.batchUpdate("INSERT INTO " + BLOCKS_TABLE
+					+ " (hash, phash, blockid, superblock, header) VALUES (?, ?, ?, ?, ?)", batch);
+			batch.clear();
+		}
+
+		private void addObject(JsonObject line) {
+			String type = line.get(SNAPSHOT_OBJ_TYPE).getAsString();
+			String op = line.get(SNAPSHOT_OBJ_OP).getAsString();
+			int sblockid = line.get(SNAPSHOT_OBJ_BLOCK_ID).getAsInt();
+			int lastBlockId = headers.get(headers.size() - 1).getBlockId();
+			if (sblockid < 0 || sblockid > lastBlockId) {
+				throw new IllegalArgumentException(String.format("Snapshot object of operation '%s' is created in block %d after %d",
+						op, sblockid, lastBlockId));
+			}
+			if (!OUtils.equals(objType, type) || objects.size() >= BATCH_SIZE) {
+				flushObjects();
+				objType = type;
+			}
+			OpObject obj = formatter.parseObject(line.get(SNAPSHOT_OBJ_CONTENT).getAsString());
+			obj.setParentOp(type, op);
+			opsId.put(op, OUtils.combine(sblockid, line.get(SNAPSHOT_OBJ_ORDER).getAsInt()));
+			objects.add(new AbstractMap.SimpleImmutableEntry<CompoundKey, OpObject>(new CompoundKey(0, obj.getId()), obj));
+		}
+
+		private void flushObjects() {
+			if (objects.isEmpty()) {
+				return;
+			}
+			List<OpIndexColumn> dbIndexes = getDbIndexes(objType);
+			List<Object[]> insertBatch = prepareInsertObjBatch(objects.stream(), objType, sbhash, opsId, dbIndexes);
+			dbSchema.insertObjIntoTableBatch(insertBatch, dbSchema.getTableByType(objType), jdbcTemplate, dbIndexes);
+			objects.clear();
+			opsId.clear();
+		}
+
+		String finish() {
+			if (sbhash == null) {
+				finishBlocks();
+			}
+			flushObjects();
+			return SecUtils.hexify(sbhash);
+		}
+	}
+
+	/**
+	 * Streams stored json of blocks within [fromBlockId, toBlockId] ordered by block id, blocks which hashes are not
+	 * in the given set (orphaned) and blocks imported from snapshot without content are skipped.
+	 * Blocks are read by batches, so the consumer doesn't hold db connection.
+	 * @return number of streamed blocks
+	 */
+	public int streamBlocksContent(int fromBlockId, int toBlockId, Set<String> rawHashes, Consumer<String> consumer) {
+		Metric m = mStreamBlocks.start();
+		int cnt = 0;
+		for (int from = fromBlockId; from <= toBlockId; from += BLOCKS_BATCH_SIZE) {
+			List<String> batch = jdbcTemplate.query("SELECT hash, content from " + BLOCKS_TABLE
+					+ " where blockid >= ? and blockid <= ? and content is not null order by blockid asc",
+					new Object[] { from, Math.min(toBlockId, from + BLOCKS_BATCH_SIZE - 1) }, new RowMapper<String>() {
+
+						@Override
+						public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+							return rawHashes.contains(SecUtils.hexify(rs.getBytes(1))) ? rs.getString(2) : null;
+						}
+					});
+			for (String content : batch) {
+				if (content != null) {
+					consumer.accept(content);
+					cnt++;
+				}
+			}
+		}
+		m.capture();
+		return cnt;
+	}
 
 	private OpBlock loadBlock(String blockHash) {
 		List<OpBlock> blocks = jdbcTemplate.query("SELECT content from " + BLOCKS_TABLE + " where hash = ? ",
@@ -174,7 +888,12 @@ public class DBConsensusManager {
 
 					@Override
 					public OpBlock mapRow(ResultSet rs, int rowNum) throws SQLException {
-						OpBlock rawBlock = formatter.parseBlock(rs.getString(1));
+						String content = rs.getString(1);
+						if (content == null) {
+							// only header of block imported from snapshot is stored
+							return null;
+						}
+						OpBlock rawBlock = formatter.parseBlock(content);
 						rawBlock.makeImmutable();
 						return rawBlock;
 					}
@@ -384,7 +1103,8 @@ public class DBConsensusManager {
 						" where superblock = ? and type = ? and " +
 						dbSchema.generatePKString(table, "p%1$d = ?", " and ", sz) +
 						" order by sblockid desc";
-				return jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject>() {
+				long st = System.nanoTime();
+				OpObject res = jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject>() {
 
 					@Override
 					public OpObject extractData(ResultSet rs) throws SQLException, DataAccessException {
@@ -402,6 +1122,8 @@ public class DBConsensusManager {
 						return obj;
 					}
 				});
+				slowLog.logQuery(s, o, res == null ? 0 : 1, st);
+				return res;
 			} finally {
 				readLock.unlock();
 			}
@@ -441,7 +1163,14 @@ public class DBConsensusManager {
 					sql = sql + " limit " + limit;
 				}
 				
+				long st = System.nanoTime();
 				final SqlRowSet rs = jdbcTemplate.queryForRowSet(sql, o);
+				if (slowLog.isSlowQuery(st)) {
+					// row set is already fetched into memory
+					int rows = rs.last() ? rs.getRow() : 0;
+					rs.beforeFirst();
+					slowLog.logQuery(sql, o, rows, st);
+				}
 				return StreamSupport.stream(new SuperblockDbSpliterator(this, keySize, onlyKeys, rs), false); 
 			} finally {
 				readLock.unlock();
@@ -468,7 +1197,10 @@ public class DBConsensusManager {
 				String objTable = dbSchema.getTableByType(type);
 				String sql = "select count(*) from " + objTable + 
 						" where superblock = ? and type = ? " + (cond == null ? "" : " and " + cond); 
-				return jdbcTemplate.queryForObject(sql, o, Number.class).intValue();
+				long st = System.nanoTime();
+				int cnt = jdbcTemplate.queryForObject(sql, o, Number.class).intValue();
+				slowLog.logQuery(sql, o, 1, st);
+				return cnt;
 			} finally {
 				readLock.unlock();
 			}
@@ -482,7 +1214,9 @@ public class DBConsensusManager {
 				checkNotStale();
 				OpOperation[] op = new OpOperation[1];
 				final byte[] ophash = SecUtils.getHashBytes(rawHash);
-				jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where superblock = ? and hash = ?", new RowCallbackHandler() {
+				String sql = "SELECT content from " + OPERATIONS_TABLE + " where superblock = ? and hash = ?";
+				long st = System.nanoTime();
+				jdbcTemplate.query(sql, new RowCallbackHandler() {
 
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
@@ -491,6 +1225,7 @@ public class DBConsensusManager {
 						}
 					}
 				}, sbhash, ophash);
+				slowLog.logQuery(sql, new Object[] { sbhash, ophash }, op[0] == null ? 0 : 1, st);
 				return op[0];
 			} finally {
 				readLock.unlock();
@@ -532,15 +1267,20 @@ public class DBConsensusManager {
 			try {
 				Set<String> types = new LinkedHashSet<String>();
 				checkNotStale();
-				jdbcTemplate.query("SELECT distinct type from " + OPERATIONS_TABLE + " where superblock = ?", new RowCallbackHandler() {
+				// operations of superblock imported from snapshot are not stored
+				for (String objTable : dbSchema.getObjectTables()) {
+					String sql = "SELECT distinct type from " + objTable + " where superblock = ?";
+					long st = System.nanoTime();
+					int sz = types.size();
+					jdbcTemplate.query(sql, new RowCallbackHandler() {
 
-					@Override
-					public void processRow(ResultSet rs) throws SQLException {
-						if (rs.next()) {
+						@Override
+						public void processRow(ResultSet rs) throws SQLException {
 							types.add(rs.getString(1));
 						}
-					}
-				}, sbhash);
+					}, sbhash);
+					slowLog.logQuery(sql, new Object[] { sbhash }, types.size() - sz, st);
+				}
 				return types;
 			} finally {
 				readLock.unlock();
@@ -675,9 +1415,13 @@ public class DBConsensusManager {
 						+ " (hash, phash, blockid, header, content ) VALUES (?, ?, ?, ?, ?)", blockHash, prevBlockHash,
 				opBlock.getBlockId(), blockHeaderObj, blockObj);
 				for (OpOperation o : opBlock.getOperations()) {
-					int upd = jdbcTemplate.update(
+					List<String> resources = o.getResourceHashes();
+					int upd = resources.isEmpty() ? jdbcTemplate.update(
 							"UPDATE " + OPERATIONS_TABLE + " set blocks = blocks || ? where hash = ?", 
-							blockHash, SecUtils.getHashBytes(o.getHash()));
+							blockHash, SecUtils.getHashBytes(o.getHash())) :
+						jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set blocks = blocks || ?, resources = "
+							+ HASH_ARRAY_SQL + " where hash = ?",
+							blockHash, joinRawHashes(resources), SecUtils.getHashBytes(o.getHash()));
 					if (upd == 0) {
 						throw new IllegalArgumentException(
 								String.format("Can't create block '%s' cause op '%s' doesn't exist",
@@ -758,13 +1502,7 @@ public class DBConsensusManager {
 
 				for (String type : blc.getRawSuperblockTypes()) {
 					Stream<Map.Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(type);
-					Collection<OpIndexColumn> indexes = dbSchema.getIndicesForType(type);
-					List<OpIndexColumn> dbIndexes = new ArrayList<OpIndexColumn>();
-					for (OpIndexColumn index : indexes) {
-						if(index.getIdIndex() < 0) {
-							dbIndexes.add(index);
-						}
-					}
+					List<OpIndexColumn> dbIndexes = getDbIndexes(type);
 					List<Object[]> insertBatch = prepareInsertObjBatch(objects, type, superBlockHash, opsId, dbIndexes);
 					String table = dbSchema.getTableByType(type);
 					dbSchema.insertObjIntoTableBatch(insertBatch, table, jdbcTemplate, dbIndexes);
@@ -777,71 +1515,93 @@ public class DBConsensusManager {
 		});
 	}
 
+	private List<OpIndexColumn> getDbIndexes(String type) {
+		List<OpIndexColumn> dbIndexes = new ArrayList<OpIndexColumn>();
+		for (OpIndexColumn index : dbSchema.getIndicesForType(type)) {
+			if (index.getIdIndex() < 0) {
+				dbIndexes.add(index);
+			}
+		}
+		return dbIndexes;
+	}
+
+	private PGobject toJsonbObject(String js) {
+		PGobject obj = new PGobject();
+		obj.setType("jsonb");
+		try {
+			obj.setValue(js);
+		} catch (SQLException e) {
+			throw new IllegalArgumentException(e);
+		}
+		return obj;
+	}
+
 	protected List<Object[]> prepareInsertObjBatch(Stream<Map.Entry<CompoundKey, OpObject>> objects, String type,
 												   byte[] superBlockHash, Map<String, Long> opsId, Collection<OpIndexColumn> indexes) {
 
-		List<Object[]> insertBatch = new ArrayList<>();
 		int ksize = dbSchema.getKeySizeByType(type);
 		Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
-		try {
-			Connection conn = jdbcTemplate.getDataSource().getConnection();
-			while (it.hasNext()) {
-				Entry<CompoundKey, OpObject> e = it.next();
-				CompoundKey pkey = e.getKey();
-				OpObject obj = e.getValue();
-				// OpObject.NULL doesn't have parent hash otherwise it should be a separate object
-				Long l = opsId.get(obj.getParentHash());
-				if (obj == OpObject.NULL) {
-					l = 0l;
-				}
-				if(l == null) {
-					throw new IllegalArgumentException(String.format("Not found op: '%s'", obj.getParentHash()));
-				}
-				int sblockid = OUtils.first(l);
-				int sorder = OUtils.second(l);
-				if (pkey.size() > ksize) {
-					throw new UnsupportedOperationException("Key is too long to be stored: " + pkey.toString());
-				}
+		// connection is only needed to create sql arrays, so connection of current transaction is reused
+		// and it is returned to the pool by template even if preparation fails
+		return jdbcTemplate.execute(new ConnectionCallback<List<Object[]>>() {
 
-				Object[] args = new Object[6 + ksize + indexes.size()];
-				int ind = 0;
-				args[ind++] = type;
-				String ophash = obj.getParentHash();
-				args[ind++] = SecUtils.getHashBytes(ophash);
-				args[ind++] = superBlockHash;
-
-				args[ind++] = sblockid;
-				args[ind++] = sorder;
-				if (!obj.isDeleted()) {
-					PGobject contentObj = new PGobject();
-					contentObj.setType("jsonb");
-					try {
-						contentObj.setValue(formatter.objToJson(obj));
-					} catch (SQLException es) {
-						throw new IllegalArgumentException(es);
+			@Override
+			public List<Object[]> doInConnection(Connection conn) throws SQLException, DataAccessException {
+				List<Object[]> insertBatch = new ArrayList<>();
+				while (it.hasNext()) {
+					Entry<CompoundKey, OpObject> e = it.next();
+					CompoundKey pkey = e.getKey();
+					OpObject obj = e.getValue();
+					// OpObject.NULL doesn't have parent hash otherwise it should be a separate object
+					Long l = opsId.get(obj.getParentHash());
+					if (obj == OpObject.NULL) {
+						l = 0l;
+					}
+					if(l == null) {
+						throw new IllegalArgumentException(String.format("Not found op: '%s'", obj.getParentHash()));
+					}
+					int sblockid = OUtils.first(l);
+					int sorder = OUtils.second(l);
+					if (pkey.size() > ksize) {
+						throw new UnsupportedOperationException("Key is too long to be stored: " + pkey.toString());
 					}
-					args[ind++] = contentObj;
-				} else {
-					args[ind++] = null;
-				}
 
-				for (OpIndexColumn index : indexes) {
+					Object[] args = new Object[6 + ksize + indexes.size()];
+					int ind = 0;
+					args[ind++] = type;
+					String ophash = obj.getParentHash();
+					args[ind++] = SecUtils.getHashBytes(ophash);
+					args[ind++] = superBlockHash;
+
+					args[ind++] = sblockid;
+					args[ind++] = sorder;
 					if (!obj.isDeleted()) {
-						args[ind++] = index.evalDBValue(obj, conn);
+						PGobject contentObj = new PGobject();
+						contentObj.setType("jsonb");
+						try {
+							contentObj.setValue(formatter.objToJson(obj));
+						} catch (SQLException es) {
+							throw new IllegalArgumentException(es);
+						}
+						args[ind++] = contentObj;
 					} else {
 						args[ind++] = null;
 					}
-				}
-				pkey.toArray(args, ind);
 
-				insertBatch.add(args);
-			}
-			conn.close();
-		} catch (SQLException e) {
-			throw new IllegalArgumentException();
-		}
+					for (OpIndexColumn index : indexes) {
+						if (!obj.isDeleted()) {
+							args[ind++] = index.evalDBValue(obj, conn);
+						} else {
+							args[ind++] = null;
+						}
+					}
+					pkey.toArray(args, ind);
 
-		return insertBatch;
+					insertBatch.add(args);
+				}
+				return insertBatch;
+			}
+		});
 	}
 
 	public OpBlockChain compact(int prevSize, OpBlockChain blc, boolean db) {
@@ -938,6 +1698,9 @@ public class DBConsensusManager {
 										+ " set blocks = array_remove(blocks, ?) where hash = ?",
 								blockHash, SecUtils.getHashBytes(o.getRawHash()));
 					}
+					// queue is cleaned first: if history writer is flushing the block, delete waits for it to commit
+					int queued = jdbcTemplate.update("DELETE FROM " + OP_OBJ_HISTORY_QUEUE_TABLE + " WHERE blockhash = ?", SecUtils.getHashBytes(block.getFullHash()));
+					historyManager.removedFromQueue(queued);
 					jdbcTemplate.update("DELETE FROM " + OP_OBJ_HISTORY_TABLE + " WHERE blockhash = ?", SecUtils.getHashBytes(block.getFullHash()));
 					orphanedBlocks.remove(block.getRawHash());
 					blocks.remove(block.getRawHash());
@@ -1023,6 +1786,83 @@ public class DBConsensusManager {
 		}, status, DateUtils.addSeconds(new Date(), -addedMoreThanSecondsAgo));
 	}
 
+	/**
+	 * Page of resources ordered by hash starting after fromHash.
+	 */
+	public List<ResourceDTO> getResources(boolean status, int addedMoreThanSecondsAgo, String fromHash, int limit) {
+		// not active resources which are referenced by saved operations are not returned
+		return jdbcTemplate.query("SELECT cid, hash, extension FROM " + EXT_RESOURCE_TABLE
+				+ " r WHERE active = ? AND added < ? AND hash > ?" + (status ? "" : " AND NOT EXISTS (SELECT 1 FROM "
+				+ OPERATIONS_TABLE + " o WHERE o.resources @> ARRAY[r.hash])") + " ORDER BY hash LIMIT " + limit,
+				new ResultSetExtractor<List<ResourceDTO>>() {
+			@Override
+			public List<ResourceDTO> extractData(ResultSet rs) throws SQLException, DataAccessException {
+				List<ResourceDTO> resources = new ArrayList<>();
+				while (rs.next()) {
+					ResourceDTO imageDTO = new ResourceDTO();
+					imageDTO.setCid(rs.getString(1));
+					imageDTO.setHash(SecUtils.hexify(rs.getBytes(2)));
+					imageDTO.setExtension(rs.getString(3));
+					resources.add(imageDTO);
+				}
+				return resources;
+			}
+		}, status, DateUtils.addSeconds(new Date(), -addedMoreThanSecondsAgo), SecUtils.getHashBytes(fromHash));
+	}
+
+	/**
+	 * Activates resources with a single statement.
+	 * @return cids of resources which were not active before
+	 */
+	public List<String> activateResources(Collection<String> hashes) {
+		if (hashes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return jdbcTemplate.query("UPDATE " + EXT_RESOURCE_TABLE + " SET active = true WHERE NOT active AND hash = ANY("
+				+ HASH_ARRAY_SQL + ") RETURNING cid", new RowMapper<String>() {
+
+			@Override
+			public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+				return rs.getString(1);
+			}
+		}, joinRawHashes(hashes));
+	}
+
+	private static String joinRawHashes(Collection<String> hashes) {
+		StringBuilder sb = new StringBuilder();
+		for (String h : hashes) {
+			byte[] bhash;
+			try {
+				bhash = SecUtils.getHashBytes(h);
+			} catch (IllegalArgumentException e) {
+				// references are not validated, malformed one can't match any resource
+				continue;
+			}
+			if (bhash.length > 0) {
+				sb.append(sb.length() == 0 ? "" : ",").append(SecUtils.hexify(bhash));
+			}
+		}
+		return sb.toString();
+	}
+
+	public void removeResources(List<ResourceDTO> resources) {
+		List<Object[]> args = new ArrayList<>(resources.size());
+		for (ResourceDTO r : resources) {
+			args.add(new Object[] { SecUtils.getHashBytes(r.getHash()) });
+		}
+		if (!args.isEmpty()) {
+			jdbcTemplate.batchUpdate("DELETE FROM " + EXT_RESOURCE_TABLE + " WHERE hash = ?", args);
+		}
+	}
+
+	public String getSetting(String key) {
+		return dbSchema.getSetting(jdbcTemplate, key);
+	}
+
+	public boolean setSetting(String key, String value) {
+		return dbSchema.setSetting(jdbcTemplate, key, value);
+	}
+
 	public void removeResource(ResourceDTO resDTO) {
 		jdbcTemplate.update("DELETE FROM " + EXT_RESOURCE_TABLE + " WHERE hash = ?", new Object[]{SecUtils.getHashBytes(resDTO.getHash())});
 	}
@@ -1079,6 +1919,66 @@ public class DBConsensusManager {
 		});
 	}
 
+	/**
+	 * Validates operations against already stored ones with a single lookup and inserts missing ones in one batch.
+	 * @return number of inserted operations
+	 */
+	public int insertOperations(Collection<OpOperation> ops) {
+		if (ops.isEmpty()) {
+			return 0;
+		}
+		Metric m = mInsertOperations.start();
+		Object[] hashes = new Object[ops.size()];
+		StringBuilder placeholders = new StringBuilder();
+		int i = 0;
+		for (OpOperation op : ops) {
+			hashes[i++] = SecUtils.getHashBytes(op.getHash());
+			placeholders.append(placeholders.length() == 0 ? "?" : ", ?");
+		}
+		Map<String, String> existing = new HashMap<>();
+		jdbcTemplate.query("SELECT hash, content from " + OPERATIONS_TABLE + " where hash in (" + placeholders + ")",
+				hashes, new RowCallbackHandler() {
+
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						existing.put(SecUtils.hexify(rs.getBytes(1)), rs.getString(2));
+					}
+				});
+		List<Object[]> batch = new ArrayList<>();
+		for (OpOperation op : ops) {
+			String js = formatter.opToJson(op);
+			String existingContent = existing.get(SecUtils.hexify(SecUtils.getHashBytes(op.getHash())));
+			if (existingContent != null) {
+				String existingJs = formatter.opToJson(formatter.parseOperation(existingContent));
+				if (!js.equals(existingJs)) {
+					throw new IllegalArgumentException(String.format(
+							"Operation is duplicated with '%s' hash but different content: \n'%s'\n'%s'", op.getHash(),
+							existingJs.replace("\n", ""), js.replace("\n", "")));
+				}
+				continue;
+			}
+			PGobject pGobject = new PGobject();
+			pGobject.setType("jsonb");
+			try {
+				pGobject.setValue(js);
+			} catch (SQLException e) {
+				throw new IllegalArgumentException(e);
+			}
+			batch.add(new Object[] { SecUtils.getHashBytes(op.getHash()), op.getType(), pGobject });
+		}
+		if (!batch.isEmpty()) {
+			txTemplate.execute(new TransactionCallback<int[]>() {
+
+				@Override
+				public int[] doInTransaction(TransactionStatus status) {
+					return jdbcTemplate.batchUpdate("INSERT INTO " + OPERATIONS_TABLE + "(hash, type, content) VALUES (?, ?, ?)", batch);
+				}
+			});
+		}
+		m.capture();
+		return batch.size();
+	}
+
 	public OpOperation getOperationByHash(String hash) {
 		final byte[] bhash = SecUtils.getHashBytes(hash);
 		OpOperation[] res = new OpOperation[1];
@@ -1092,6 +1992,12 @@ public class DBConsensusManager {
 		return res[0];
 	}
 
-	
+	private static final PerformanceMetric mCheckpointSave = PerformanceMetrics.i().getMetric("db.checkpoint.save");
+	private static final PerformanceMetric mCheckpointLoad = PerformanceMetrics.i().getMetric("db.checkpoint.load");
+	private static final PerformanceMetric mSnapshotExport = PerformanceMetrics.i().getMetric("db.snapshot.export");
+	private static final PerformanceMetric mSnapshotImport = PerformanceMetrics.i().getMetric("db.snapshot.import");
+	private static final PerformanceMetric mStreamBlocks = PerformanceMetrics.i().getMetric("db.stream.blocks");
+	private static final PerformanceMetric mInsertOperations = PerformanceMetrics.i().getMetric("db.insert.operations");
+	private static final PerformanceMetric mIndexBackfillBatch = PerformanceMetrics.i().getMetric("db.index.backfill.batch");
 
 }
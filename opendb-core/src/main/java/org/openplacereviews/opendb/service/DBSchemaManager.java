@@ -9,8 +9,10 @@ import static org.openplacereviews.opendb.ops.de.ColumnDef.IndexType.NOT_INDEXED
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -18,6 +20,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -54,6 +58,14 @@ public class DBSchemaManager {
 	protected static final String BLOCKS_TRASH_TABLE = "blocks_trash";
 	protected static final String EXT_RESOURCE_TABLE = "resources";
 	protected static final String OP_OBJ_HISTORY_TABLE = "op_obj_history";
+	protected static final String OP_OBJ_HISTORY_QUEUE_TABLE = "op_obj_history_queue";
+	protected static final String OP_OBJ_HISTORY_ARCHIVE_PREFIX = OP_OBJ_HISTORY_TABLE + "_archive_";
+	private static final Pattern OP_OBJ_HISTORY_PARTITION = Pattern.compile(OP_OBJ_HISTORY_TABLE + "_(\\d{6})");
+	private static final Pattern OP_OBJ_HISTORY_ARCHIVE = Pattern.compile(OP_OBJ_HISTORY_ARCHIVE_PREFIX + "(\\d{6})");
+	// monthly partitions are indexed by few multi column indexes instead of single column index per column,
+	// sorder is included to read history pages by cursor in index order
+	private static final String[] OP_OBJ_HISTORY_PARTITION_INDEXES = new String[] {
+			"usr_1, login_1, sorder", "usr_2, login_2, sorder", "type, p1, sorder", "p1, p2, sorder", "ophash", "blockhash", "sorder" };
 
 	private static Map<String, List<ColumnDef>> schema = new HashMap<String, List<ColumnDef>>();
 	protected static final int MAX_KEY_SIZE = 5;
@@ -65,12 +77,19 @@ public class DBSchemaManager {
 	}
 	protected static final int HISTORY_USERS_SIZE = 2;
 	private static final int BATCH_SIZE = 1000;
+	private static final String INDEX_BACKFILL_SETTING = "opendb.index.backfill";
 
 	// loaded from config
 	private TreeMap<String, Map<String, Object>> objtables = new TreeMap<String, Map<String, Object>>();
 	private TreeMap<String, ObjectTypeTable> objTableDefs = new TreeMap<String, ObjectTypeTable>();
 	private TreeMap<String, String> typeToTables = new TreeMap<String, String>();
 	private TreeMap<String, Map<String, OpIndexColumn>> indexes = new TreeMap<>();
+	// columns added to existing object tables which values are not calculated yet (table.column)
+	private TreeMap<String, ColumnDef> indexBackfill = new TreeMap<>();
+	// existing op_obj_history partitions (yyyyMM)
+	private Set<String> historyPartitions = new TreeSet<>();
+	// archived op_obj_history partitions (yyyyMM), rows of these months are written into op_obj_history itself
+	private Set<String> archivedHistoryMonths = new TreeSet<>();
 	
 
 	@Autowired
@@ -130,6 +149,8 @@ public class DBSchemaManager {
 		registerColumn(OPERATIONS_TABLE, "sorder", "int", INDEXED);
 		registerColumn(OPERATIONS_TABLE, "blocks", "bytea[]", NOT_INDEXED);
 		registerColumn(OPERATIONS_TABLE, "content", "jsonb", NOT_INDEXED);
+		// hashes of resources referenced by operation (set when block is saved)
+		registerColumn(OPERATIONS_TABLE, "resources", "bytea[]", GIN);
 
 		registerColumn(OP_OBJ_HISTORY_TABLE, "sorder", "serial not null", NOT_INDEXED);
 		registerColumn(OP_OBJ_HISTORY_TABLE, "blockhash", "bytea", INDEXED);
@@ -146,6 +167,12 @@ public class DBSchemaManager {
 		registerColumn(OP_OBJ_HISTORY_TABLE, "obj", "jsonb", NOT_INDEXED);
 		registerColumn(OP_OBJ_HISTORY_TABLE, "status", "int", NOT_INDEXED);
 
+		// history rows of the blocks which are not yet written to op_obj_history
+		registerColumn(OP_OBJ_HISTORY_QUEUE_TABLE, "id", "serial PRIMARY KEY", NOT_INDEXED);
+		registerColumn(OP_OBJ_HISTORY_QUEUE_TABLE, "blockhash", "bytea", INDEXED);
+		registerColumn(OP_OBJ_HISTORY_QUEUE_TABLE, "time", "timestamp", NOT_INDEXED);
+		registerColumn(OP_OBJ_HISTORY_QUEUE_TABLE, "content", "jsonb", NOT_INDEXED);
+
 		registerColumn(OPERATIONS_TRASH_TABLE, "id", "int", INDEXED);
 		registerColumn(OPERATIONS_TRASH_TABLE, "hash", "bytea", INDEXED);
 		registerColumn(OPERATIONS_TRASH_TABLE, "type", "text", INDEXED);
@@ -264,6 +291,7 @@ public class DBSchemaManager {
 		createTable(metadataDB, jdbcTemplate, SETTINGS_TABLE, schema.get(SETTINGS_TABLE));
 		
 		prepareObjTableMapping();
+		loadIndexBackfill(jdbcTemplate);
 		for (String tableName : schema.keySet()) {
 			if(tableName.equals(SETTINGS_TABLE))  {
 				 continue;
@@ -274,6 +302,85 @@ public class DBSchemaManager {
 		migrateDBSchema(jdbcTemplate);
 		
 		migrateObjMappingIfNeeded(jdbcTemplate);
+		saveIndexBackfill(jdbcTemplate);
+		loadHistoryPartitions(metadataDB);
+	}
+
+	private synchronized void loadHistoryPartitions(MetadataDb metadataDB) {
+		for (String tableName : metadataDB.tablesSpec.keySet()) {
+			Matcher m = OP_OBJ_HISTORY_PARTITION.matcher(tableName);
+			if (m.matches()) {
+				historyPartitions.add(m.group(1));
+			}
+			m = OP_OBJ_HISTORY_ARCHIVE.matcher(tableName);
+			if (m.matches()) {
+				archivedHistoryMonths.add(m.group(1));
+			}
+		}
+	}
+
+	private void loadIndexBackfill(JdbcTemplate jdbcTemplate) {
+		String s = getSetting(jdbcTemplate, INDEX_BACKFILL_SETTING);
+		if (OUtils.isEmpty(s)) {
+			return;
+		}
+		for (String col : s.split(",")) {
+			String[] tc = col.split("\\.");
+			List<ColumnDef> cls = schema.get(tc[0]);
+			if (cls != null) {
+				for (ColumnDef c : cls) {
+					if (c.getColName().equals(tc[1])) {
+						indexBackfill.put(col, c);
+					}
+				}
+			}
+		}
+	}
+
+	private void saveIndexBackfill(JdbcTemplate jdbcTemplate) {
+		StringBuilder s = new StringBuilder();
+		for (String col : indexBackfill.keySet()) {
+			if (s.length() > 0) {
+				s.append(",");
+			}
+			s.append(col);
+		}
+		for (ColumnDef c : indexBackfill.values()) {
+			for (OpIndexColumn index : getIndicesForColumn(c)) {
+				index.setDbColumnReady(false);
+			}
+		}
+		setSetting(jdbcTemplate, INDEX_BACKFILL_SETTING, s.toString());
+	}
+
+	public Collection<ColumnDef> getIndexBackfillColumns() {
+		return new ArrayList<ColumnDef>(indexBackfill.values());
+	}
+
+	public List<OpIndexColumn> getIndicesForColumn(ColumnDef c) {
+		List<OpIndexColumn> res = new ArrayList<OpIndexColumn>();
+		for (Map<String, OpIndexColumn> tind : indexes.values()) {
+			for (OpIndexColumn index : tind.values()) {
+				ColumnDef ic = index.getColumnDef();
+				if (ic.getTableName().equals(c.getTableName()) && ic.getColName().equals(c.getColName())) {
+					res.add(index);
+				}
+			}
+		}
+		return res;
+	}
+
+	public synchronized void completeIndexBackfill(JdbcTemplate jdbcTemplate, ColumnDef c) {
+		String ind = generateIndexQuery(c);
+		if (ind != null) {
+			// build index without locking table for writes
+			jdbcTemplate.execute(ind.replaceFirst("create index", "create index concurrently if not exists"));
+		}
+		indexBackfill.remove(c.getTableName() + "." + c.getColName());
+		saveIndexBackfill(jdbcTemplate);
+		for (OpIndexColumn index : getIndicesForColumn(c)) {
+			index.setDbColumnReady(true);
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -442,7 +549,11 @@ public class DBSchemaManager {
 					String alterTable = String.format("alter table %s add column %s %s", tableName, 
 							c.getColName(), c.getColType());
 					jdbcTemplate.execute(alterTable);
-					if(c.getIndex() != NOT_INDEXED) {
+					if (objTableDefs.containsKey(tableName)) {
+						// values for existing objects are calculated in background and index is created after
+						LOGGER.info(String.format("Column '%s' added to '%s' requires backfill", c.getColName(), tableName));
+						indexBackfill.put(tableName + "." + c.getColName(), c);
+					} else if(c.getIndex() != NOT_INDEXED) {
 						jdbcTemplate.execute(generateIndexQuery(c));
 					}
 				}
@@ -466,7 +577,7 @@ public class DBSchemaManager {
 	}
 
 
-	private boolean setSetting(JdbcTemplate jdbcTemplate, String key, String v) {
+	public boolean setSetting(JdbcTemplate jdbcTemplate, String key, String v) {
 		return jdbcTemplate.update("insert into  " + SETTINGS_TABLE + "(key,value) values (?, ?) "
 				+ " ON CONFLICT (key) DO UPDATE SET value = ? ", key, v, v) != 0;
 	}
@@ -479,7 +590,7 @@ public class DBSchemaManager {
 		return Integer.parseInt(s);
 	}
 	
-	private String getSetting(JdbcTemplate jdbcTemplate, String key) {
+	public String getSetting(JdbcTemplate jdbcTemplate, String key) {
 		String s = null;
 		try {
 			s = jdbcTemplate.query("select value from " + SETTINGS_TABLE + " where key = ?", new ResultSetExtractor<String>() {
@@ -533,6 +644,12 @@ public class DBSchemaManager {
 				+ " values(?,?,?,?,?,?," + repeatString("?,", "", indexes.size()) + generatePKString(table, "?", ",") + ")", args);
 	}
 
+	public void updateObjIndexColumnBatch(List<Object[]> args, ColumnDef c, JdbcTemplate jdbcTemplate) {
+		String table = c.getTableName();
+		jdbcTemplate.batchUpdate("UPDATE " + table + " SET " + c.getColName() + " = ? WHERE type = ? AND ophash = ? AND "
+				+ generatePKString(table, "p%1$d IS NOT DISTINCT FROM ?", " AND "), args);
+	}
+
 	public void insertObjIntoHistoryTableBatch(List<Object[]> args, String table, JdbcTemplate jdbcTemplate) {
 		jdbcTemplate.batchUpdate("INSERT INTO " + table + "(blockhash, ophash, type, time, obj, status," +
 				generatePKString(table, "usr_%1$d, login_%1$d", ",", HISTORY_USERS_SIZE) + "," +
@@ -540,6 +657,79 @@ public class DBSchemaManager {
 				generatePKString(table, "?", ",", HISTORY_USERS_SIZE * 2 + MAX_KEY_SIZE + 6 ) + ")", args);
 	}
 
+	/**
+	 * @return partition of op_obj_history (inherited table with check constraint on time) for the month of the date,
+	 * partition is created if it doesn't exist. Archived months are not created again, op_obj_history is returned for them.
+	 */
+	public synchronized String createHistoryPartition(JdbcTemplate jdbcTemplate, Date time) {
+		Calendar start = Calendar.getInstance();
+		start.setTime(time);
+		start.set(Calendar.DAY_OF_MONTH, 1);
+		start.set(Calendar.HOUR_OF_DAY, 0);
+		start.set(Calendar.MINUTE, 0);
+		start.set(Calendar.SECOND, 0);
+		start.set(Calendar.MILLISECOND, 0);
+		String month = String.format("%1$tY%1$tm", start);
+		String tableName = OP_OBJ_HISTORY_TABLE + "_" + month;
+		if (archivedHistoryMonths.contains(month)) {
+			return OP_OBJ_HISTORY_TABLE;
+		}
+		if (!historyPartitions.contains(month)) {
+			Calendar end = (Calendar) start.clone();
+			end.add(Calendar.MONTH, 1);
+			LOGGER.info(String.format("Create history partition %s", tableName));
+			jdbcTemplate.execute(String.format("create table %s (CHECK (time >= '%2$tF' AND time < '%3$tF')) INHERITS (%4$s)",
+					tableName, start, end, OP_OBJ_HISTORY_TABLE));
+			for (String cols : OP_OBJ_HISTORY_PARTITION_INDEXES) {
+				jdbcTemplate.execute(String.format("create index %s_%s_ind on %s (%s)", tableName,
+						cols.replace(", ", "_"), tableName, cols));
+			}
+			historyPartitions.add(month);
+		}
+		return tableName;
+	}
+
+	/**
+	 * @return existing partition of op_obj_history for the date or op_obj_history itself
+	 */
+	public synchronized String getHistoryPartition(Date time) {
+		String month = String.format("%1$tY%1$tm", time);
+		return historyPartitions.contains(month) ? OP_OBJ_HISTORY_TABLE + "_" + month : OP_OBJ_HISTORY_TABLE;
+	}
+
+	/**
+	 * Detaches partitions of op_obj_history older than the date and renames them to op_obj_history_archive_yyyyMM,
+	 * so they're not part of history queries anymore and could be dumped or dropped.
+	 * Partition of the month which is already archived is merged into the archive table.
+	 * @return archived tables
+	 */
+	public synchronized List<String> archiveHistoryPartitions(JdbcTemplate jdbcTemplate, Date before) {
+		String beforeMonth = String.format("%1$tY%1$tm", before);
+		List<String> archived = new ArrayList<>();
+		Iterator<String> it = historyPartitions.iterator();
+		while (it.hasNext()) {
+			String month = it.next();
+			if (month.compareTo(beforeMonth) >= 0) {
+				break;
+			}
+			String tableName = OP_OBJ_HISTORY_TABLE + "_" + month;
+			String archiveName = OP_OBJ_HISTORY_ARCHIVE_PREFIX + month;
+			jdbcTemplate.execute("ALTER TABLE " + tableName + " NO INHERIT " + OP_OBJ_HISTORY_TABLE);
+			if (archivedHistoryMonths.contains(month)) {
+				jdbcTemplate.execute("INSERT INTO " + archiveName + " SELECT * FROM " + tableName);
+				jdbcTemplate.execute("DROP TABLE " + tableName);
+				LOGGER.info(String.format("History partition %s is merged into %s", tableName, archiveName));
+			} else {
+				jdbcTemplate.execute("ALTER TABLE " + tableName + " RENAME TO " + archiveName);
+				LOGGER.info(String.format("History partition %s is archived as %s", tableName, archiveName));
+			}
+			archived.add(archiveName);
+			archivedHistoryMonths.add(month);
+			it.remove();
+		}
+		return archived;
+	}
+
 	// Query / insert values
 	// select encode(b::bytea, 'hex') from test where b like (E'\\x39')::bytea||'%';
 	// insert into test(b) values (decode('39556d070fd95f54b554010207d42605a8d0adfbb3b8b8e134df7df0689d78ab', 'hex'));
@@ -3,79 +3,555 @@ package org.openplacereviews.opendb.service;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.util.BlockArchive;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.io.*;
-import java.util.zip.GZIPOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Writes every inserted block into {@link BlockArchive} files: directory per MAX_DIR_SIZE blocks and
+ * archive per MAX_FILE_SIZE blocks, so any block could be read by id without decompressing other blocks.
+ * Blocks are queued and written by a single writer thread which syncs the archive once per written batch,
+ * so block creation doesn't wait for the backup disk unless the queue is full.
+ */
 @Service
 public class FileBackupManager {
 
 	protected static final Log LOGGER = LogFactory.getLog(FileBackupManager.class);
-	private static final String SEPARATOR_STRING = "\n---------------------\n";
-	
+
+	private static final PerformanceMetric mBackupWrite = PerformanceMetrics.i().getMetric("backup.write");
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 60;
+	private static final PendingBlock STOP = new PendingBlock(null);
+	private static final String LEGACY_EXT = ".gz";
+	private static final String LEGACY_CONVERTED_EXT = ".converted";
+	private static final String LEGACY_SEPARATOR = "---------------------";
+
 	@Value("${opendb.files-backup.directory}")
 	private String DIRECTORY = "";
 	private File mainDirectory;
-	
+
 	@Value("${opendb.files-backup.file-prefix:}")
 	private String FILE_PREFIX;
-	
+
 	@Value("${opendb.db.file-max-blocks-size:1000}")
-	private int MAX_FILE_SIZE;
-	
+	private int MAX_FILE_SIZE = 1000;
+
 	@Value("${opendb.db.dir-max-size:100000}")
-	private int MAX_DIR_SIZE;
-	
+	private int MAX_DIR_SIZE = 100000;
+
+	@Value("${opendb.files-backup.async:true}")
+	private boolean async = false;
+
+	@Value("${opendb.files-backup.queue-size:1000}")
+	private int queueSize = 1000;
+
 	private boolean enabled = false;
-	
+
+	// archive which blocks are appended to
+	private BlockArchive currentArchive;
+
+	private BlockingQueue<PendingBlock> queue;
+	private ExecutorService backupWriter;
+	private Future<?> writerTask;
+	private final AtomicLong failedBlocks = new AtomicLong();
+	// enqueue time of the oldest block in the batch being written
+	private volatile long writingSince;
 
 	@Autowired
 	private JsonFormatter formatter;
-	
+
+	private static class PendingBlock {
+		final OpBlock block;
+		final long time = System.currentTimeMillis();
+
+		PendingBlock(OpBlock block) {
+			this.block = block;
+		}
+	}
+
 	public void init() {
-		if(DIRECTORY.length() > 0) {
+		if(DIRECTORY != null && DIRECTORY.length() > 0) {
 			mainDirectory = new File(DIRECTORY);
 			mainDirectory.mkdirs();
 		}
-		if(mainDirectory.exists()) {
+		if(mainDirectory != null && mainDirectory.exists()) {
 			enabled = true;
 		}
 		if (FILE_PREFIX == null) {
 			FILE_PREFIX = "";
 		}
+		if (enabled) {
+			convertLegacyBackups();
+		}
+	}
+
+	/**
+	 * Converts backups of the previous versions (gzip member with separator per block appended to <min>-<max>.gz)
+	 * into block archives once, converted files are kept as *.gz.converted.
+	 */
+	private void convertLegacyBackups() {
+		File[] dirs = mainDirectory.listFiles();
+		for (File dir : dirs == null ? new File[0] : dirs) {
+			File[] files = dir.isDirectory() && dir.getName().matches("\\d+") ? dir.listFiles() : null;
+			for (File f : files == null ? new File[0] : files) {
+				if (!f.getName().startsWith(FILE_PREFIX) || !f.getName().endsWith(LEGACY_EXT)) {
+					continue;
+				}
+				try {
+					int cnt = convertLegacyBackup(f);
+					if (!f.renameTo(new File(dir, f.getName() + LEGACY_CONVERTED_EXT))) {
+						LOGGER.error(String.format("Couldn't rename converted backup '%s'", f.getAbsolutePath()));
+					}
+					LOGGER.info(String.format("Converted %d blocks of legacy backup '%s'", cnt, f.getName()));
+				} catch (IOException | RuntimeException e) {
+					LOGGER.error(String.format("Error converting legacy backup '%s'", f.getAbsolutePath()), e);
+				}
+			}
+		}
+	}
+
+	private int convertLegacyBackup(File f) throws IOException {
+		int cnt = 0;
+		BlockArchive archive = null;
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(f)),
+				StandardCharsets.UTF_8))) {
+			StringBuilder content = new StringBuilder();
+			String line;
+			do {
+				line = r.readLine();
+				if (line == null || line.equals(LEGACY_SEPARATOR)) {
+					String json = content.toString().trim();
+					if (json.length() > 0) {
+						archive = appendLegacyBlock(archive, json);
+						cnt++;
+					}
+					content.setLength(0);
+				} else {
+					content.append(line).append('\n');
+				}
+			} while (line != null);
+			if (archive != null) {
+				archive.sync();
+			}
+		} finally {
+			if (archive != null) {
+				archive.close();
+			}
+		}
+		return cnt;
+	}
+
+	private BlockArchive appendLegacyBlock(BlockArchive archive, String json) throws IOException {
+		OpBlock block = formatter.parseBlock(json);
+		File af = getArchiveFile(block.getBlockId());
+		if (archive == null || !archive.getDataFile().equals(af)) {
+			if (archive != null) {
+				archive.sync();
+				archive.close();
+			}
+			archive = BlockArchive.open(af, true);
+		}
+		if (!contains(archive, block)) {
+			archive.append(block.getBlockId(), block.getRawHash(), block.getPrevRawHash(),
+					json.getBytes(StandardCharsets.UTF_8));
+		}
+		return archive;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void insertBlock(OpBlock opBlock) {
+		if (!enabled) {
+			return;
+		}
+		if (!async) {
+			writeBlocks(Collections.singletonList(new PendingBlock(opBlock)));
+			return;
+		}
+		// full queue slows down block creation instead of leaving a hole in the backup,
+		// interrupt is restored after the block is queued
+		boolean interrupted = false;
+		PendingBlock p = new PendingBlock(opBlock);
+		while (true) {
+			try {
+				getQueue().put(p);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return blocks which were not written to backup because of errors
+	 */
+	public long getBackupFailedBlocks() {
+		return failedBlocks.get();
+	}
+
+	/**
+	 * @return blocks which are queued and not yet written
+	 */
+	public int getBackupQueueSize() {
+		BlockingQueue<PendingBlock> q = queue;
+		return (q == null ? 0 : q.size()) + (writingSince > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return time in ms since the oldest not written block was queued
+	 */
+	public long getBackupLag() {
+		long t = writingSince;
+		BlockingQueue<PendingBlock> q = queue;
+		PendingBlock p = q == null ? null : q.peek();
+		if (t == 0 && p != null && p != STOP) {
+			t = p.time;
+		}
+		return t == 0 ? 0 : Math.max(0, System.currentTimeMillis() - t);
+	}
+
+	private synchronized BlockingQueue<PendingBlock> getQueue() {
+		if (backupWriter == null) {
+			queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+			backupWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "opendb-backup-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (writerTask == null || writerTask.isDone()) {
+			if (writerTask != null) {
+				LOGGER.error("Backup writer has stopped unexpectedly, restarting it");
+			}
+			final BlockingQueue<PendingBlock> q = queue;
+			writerTask = backupWriter.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					writeQueue(q);
+				}
+			});
+		}
+		return queue;
+	}
+
+	private void writeQueue(BlockingQueue<PendingBlock> q) {
+		List<PendingBlock> batch = new ArrayList<>();
+		boolean stop = false;
+		while (!stop) {
+			try {
+				batch.add(q.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			q.drainTo(batch);
+			stop = batch.remove(STOP);
+			try {
+				if (!batch.isEmpty()) {
+					writingSince = batch.get(0).time;
+					writeBlocks(batch);
+				}
+			} catch (RuntimeException e) {
+				// writer keeps running, otherwise nothing drains the queue
+				LOGGER.error("Error writing blocks to backup: " + e.getMessage(), e);
+			} finally {
+				writingSince = 0;
+				batch.clear();
+			}
+		}
+	}
+
+	private void writeBlocks(List<PendingBlock> batch) {
+		long m = mBackupWrite.startNs();
+		List<byte[]> contents = new ArrayList<>(batch.size());
+		for (PendingBlock p : batch) {
+			try {
+				contents.add(formatter.fullObjectToJson(p.block).getBytes(StandardCharsets.UTF_8));
+			} catch (RuntimeException e) {
+				contents.add(null);
+				failedBlocks.incrementAndGet();
+				LOGGER.error(String.format("Error serializing block '%s:%d'", p.block.getRawHash(), p.block.getBlockId()), e);
+			}
+		}
+		synchronized (this) {
+			for (int i = 0; i < batch.size(); i++) {
+				if (contents.get(i) != null) {
+					writeBlock(batch.get(i).block, contents.get(i));
+				}
+			}
+			if (currentArchive != null) {
+				try {
+					currentArchive.sync();
+				} catch (IOException e) {
+					LOGGER.error(String.format("Error syncing '%s'", currentArchive.getDataFile().getName()), e);
+					closeCurrentArchive();
+				}
+			}
+		}
+		mBackupWrite.capture(m);
+	}
+
+	private void writeBlock(OpBlock opBlock, byte[] content) {
+		File f = getArchiveFile(opBlock.getBlockId());
+		try {
+			if (currentArchive == null || !currentArchive.getDataFile().equals(f)) {
+				closeCurrentArchive();
+				currentArchive = BlockArchive.open(f, true);
+			}
+			if (!contains(currentArchive, opBlock)) {
+				currentArchive.append(opBlock.getBlockId(), opBlock.getRawHash(), opBlock.getPrevRawHash(), content);
+			}
+		} catch (IOException e) {
+			failedBlocks.incrementAndGet();
+			LOGGER.error(String.format("Error writing block '%s:%d' to '%s'",
+					opBlock.getRawHash(), opBlock.getBlockId(), f.getName()), e);
+			closeCurrentArchive();
+		} catch (RuntimeException e) {
+			failedBlocks.incrementAndGet();
+			LOGGER.error(String.format("Error writing block '%s:%d' to '%s'",
+					opBlock.getRawHash(), opBlock.getBlockId(), f.getName()), e);
+		}
+	}
+
+	/**
+	 * @return all backed up blocks with the id (including orphaned ones)
+	 */
+	public List<OpBlock> readBlocks(int blockId) throws IOException {
+		List<OpBlock> res = new ArrayList<>(1);
+		File f = getArchiveFile(blockId);
+		if (enabled && f.exists()) {
+			readArchive(f, new ArchiveReader() {
+
+				@Override
+				public void read(BlockArchive archive) throws IOException {
+					for (BlockArchive.Entry e : archive.find(blockId)) {
+						res.add(parseBlock(archive, e));
+					}
+				}
+			});
+		}
+		return res;
+	}
+
+	public OpBlock readBlock(int blockId, String rawHash) throws IOException {
+		for (OpBlock b : readBlocks(blockId)) {
+			if (b.getRawHash().equals(rawHash)) {
+				return b;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads backed up blocks with ids in range [fromBlockId, toBlockId] in the order they were written.
+	 * @return number of read blocks
+	 */
+	public int readBlocks(int fromBlockId, int toBlockId, Consumer<OpBlock> consumer) throws IOException {
+		if (!enabled) {
+			return 0;
+		}
+		int[] cnt = new int[1];
+		for (int fileStart = fromBlockId - fromBlockId % MAX_FILE_SIZE; fileStart <= toBlockId; fileStart += MAX_FILE_SIZE) {
+			File f = getArchiveFile(fileStart);
+			if (!f.exists()) {
+				continue;
+			}
+			readArchive(f, new ArchiveReader() {
+
+				@Override
+				public void read(BlockArchive archive) throws IOException {
+					for (BlockArchive.Entry e : archive.getEntries()) {
+						if (e.getBlockId() >= fromBlockId && e.getBlockId() <= toBlockId) {
+							consumer.accept(parseBlock(archive, e));
+							cnt[0]++;
+						}
+					}
+				}
+			});
+		}
+		return cnt[0];
+	}
+
+	/**
+	 * @return archive files ordered by block ids
+	 */
+	public List<File> getArchiveFiles() {
+		List<File> res = new ArrayList<>();
+		if (!enabled) {
+			return res;
+		}
+		TreeMap<Long, File> files = new TreeMap<>();
+		File[] dirs = mainDirectory.listFiles();
+		for (File dir : dirs == null ? new File[0] : dirs) {
+			File[] archives = dir.isDirectory() && dir.getName().matches("\\d+") ? dir.listFiles() : null;
+			for (File f : archives == null ? new File[0] : archives) {
+				String name = f.getName();
+				if (name.startsWith(FILE_PREFIX) && name.endsWith(BlockArchive.DATA_EXT)) {
+					String range = name.substring(FILE_PREFIX.length(), name.length() - BlockArchive.DATA_EXT.length());
+					int i = range.indexOf('-');
+					if (i > 0 && range.substring(0, i).matches("\\d+")) {
+						files.put(Long.parseLong(dir.getName()) * MAX_DIR_SIZE + Long.parseLong(range.substring(0, i)), f);
+					}
+				}
+			}
+		}
+		res.addAll(files.values());
+		return res;
+	}
+
+	/**
+	 * Reads headers of all blocks of the archive in the order they were written: only block id, hash and previous
+	 * block hash are set. They're read from the index without parsing blocks.
+	 * @return number of read blocks
+	 */
+	public int readBlockHeaders(File f, Consumer<OpBlock> consumer) throws IOException {
+		int[] cnt = new int[1];
+		readArchive(f, new ArchiveReader() {
+
+			@Override
+			public void read(BlockArchive archive) throws IOException {
+				for (BlockArchive.Entry e : archive.getEntries()) {
+					OpBlock header = new OpBlock();
+					header.putObjectValue(OpBlock.F_BLOCKID, e.getBlockId());
+					header.putStringValue(OpBlock.F_HASH, e.getRawHash());
+					header.putStringValue(OpBlock.F_PREV_BLOCK_HASH, e.getPrevRawHash());
+					header.makeImmutable();
+					consumer.accept(header);
+					cnt[0]++;
+				}
+			}
+		});
+		return cnt[0];
+	}
+
+	/**
+	 * Reads all blocks of the archive in the order they were written.
+	 * @return number of read blocks
+	 */
+	public int readAllBlocks(File f, Consumer<OpBlock> consumer) throws IOException {
+		int[] cnt = new int[1];
+		readArchive(f, new ArchiveReader() {
+
+			@Override
+			public void read(BlockArchive archive) throws IOException {
+				for (BlockArchive.Entry e : archive.getEntries()) {
+					consumer.accept(parseBlock(archive, e));
+					cnt[0]++;
+				}
+			}
+		});
+		return cnt[0];
+	}
+
+	/**
+	 * Writes queued blocks and closes the archive.
+	 */
+	@PreDestroy
+	public void close() {
+		ExecutorService writer;
+		Future<?> task;
+		synchronized (this) {
+			writer = backupWriter;
+			task = writerTask;
+			backupWriter = null;
+			writerTask = null;
+		}
+		if (writer != null) {
+			try {
+				if (task != null && !task.isDone()) {
+					queue.offer(STOP, SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				}
+				writer.shutdown();
+				writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// blocks left by a stopped writer are written by the closing thread
+			List<PendingBlock> rest = new ArrayList<>();
+			queue.drainTo(rest);
+			rest.remove(STOP);
+			if (!rest.isEmpty()) {
+				writeBlocks(rest);
+			}
+		}
+		synchronized (this) {
+			closeCurrentArchive();
+		}
+	}
+
+	private interface ArchiveReader {
+		void read(BlockArchive archive) throws IOException;
+	}
+
+	private void readArchive(File f, ArchiveReader reader) throws IOException {
+		synchronized (this) {
+			// archive which is being written is read by the same instance to see all appended blocks
+			if (currentArchive != null && currentArchive.getDataFile().equals(f)) {
+				reader.read(currentArchive);
+				return;
+			}
+		}
+		try (BlockArchive archive = BlockArchive.open(f, false)) {
+			reader.read(archive);
+		}
 	}
 
-	public synchronized void insertBlock(OpBlock opBlock) {
-		if(enabled) {
-			String fs = formatter.fullObjectToJson(opBlock);
-			
-			int blockId = opBlock.getBlockId();
-			int dirId = blockId / MAX_DIR_SIZE;
-			File parent = new File(mainDirectory, dirId+"");
-			parent.mkdirs();
-			
-			int rid = blockId % MAX_DIR_SIZE;
-			int minBlockId = (rid / MAX_FILE_SIZE) * MAX_FILE_SIZE;
-			int maxBlockId = (rid / MAX_FILE_SIZE + 1) * MAX_FILE_SIZE;
-			String file = FILE_PREFIX + minBlockId + "-"+maxBlockId +".gz";
-			File f = new File(parent, file);
-			try (GZIPOutputStream gout = new GZIPOutputStream(new FileOutputStream(f, true)) ){
-				Writer w = new OutputStreamWriter(gout);
-				w.write(SEPARATOR_STRING);
-				w.write(fs);
-				w.close();
+	private static boolean contains(BlockArchive archive, OpBlock opBlock) {
+		// blocks restored from the backup are not written again
+		for (BlockArchive.Entry e : archive.find(opBlock.getBlockId())) {
+			if (e.getRawHash().equals(opBlock.getRawHash())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private OpBlock parseBlock(BlockArchive archive, BlockArchive.Entry e) throws IOException {
+		return formatter.parseBlock(new String(archive.read(e), StandardCharsets.UTF_8));
+	}
+
+	private File getArchiveFile(int blockId) {
+		int dirId = blockId / MAX_DIR_SIZE;
+		File parent = new File(mainDirectory, dirId + "");
+		int rid = blockId % MAX_DIR_SIZE;
+		int minBlockId = (rid / MAX_FILE_SIZE) * MAX_FILE_SIZE;
+		int maxBlockId = (rid / MAX_FILE_SIZE + 1) * MAX_FILE_SIZE;
+		return new File(parent, FILE_PREFIX + minBlockId + "-" + maxBlockId + BlockArchive.DATA_EXT);
+	}
+
+	private void closeCurrentArchive() {
+		if (currentArchive != null) {
+			try (BlockArchive a = currentArchive) {
+				a.sync();
 			} catch (IOException e) {
-				LOGGER.error(String.format("Error writing block '%s:%d' to '%s'", 
-						opBlock.getRawHash(), opBlock.getBlockId(), f.getName()));
+				LOGGER.error(String.format("Error closing '%s'", currentArchive.getDataFile().getName()), e);
 			}
+			currentArchive = null;
 		}
-		
 	}
-	
-	
-	
+
 }
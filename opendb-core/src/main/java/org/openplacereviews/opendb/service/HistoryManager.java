@@ -1,25 +1,41 @@
 package org.openplacereviews.opendb.service;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PreDestroy;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static org.openplacereviews.opendb.ops.OpBlockChain.*;
 import static org.openplacereviews.opendb.ops.OpObject.F_FINAL;
@@ -29,6 +45,8 @@ import static org.openplacereviews.opendb.service.DBSchemaManager.*;
 @Service
 public class HistoryManager {
 
+	protected static final Log LOGGER = LogFactory.getLog(HistoryManager.class);
+
 	protected static final String ASC_SORT = "ASC";
 	protected static final String DESC_SORT = "DESC";
 
@@ -39,10 +57,33 @@ public class HistoryManager {
 	protected static final String HISTORY_BY_OPERATION_HASH = "operation";
 
 	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(OpObject.DATE_FORMAT);
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+	private static final int HISTORY_FETCH_SIZE = 500;
+	private static final String HISTORY_COLUMNS = "usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash, sorder";
+	private static final PerformanceMetric mHistoryFlush = PerformanceMetrics.i().getMetric("history.flush");
 
 	@Value("${opendb.db.store-history}")
 	private boolean isRunning;
 
+	// history is written synchronously unless configured (i.e. when manager is created by tests)
+	@Value("${opendb.db.history-async:true}")
+	private boolean async = false;
+
+	@Value("${opendb.db.history-batch:100}")
+	private int historyBatch = 100;
+
+	// rows are written into monthly partitions of op_obj_history unless configured (i.e. when manager is created by tests)
+	@Value("${opendb.db.history-partitions:true}")
+	private boolean partitions = false;
+
+	@Value("${opendb.db.history-archive-months:0}")
+	private int archiveMonths = 0;
+
+	private ExecutorService historyWriter;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicInteger queueSize = new AtomicInteger();
+	private final Object flushLock = new Object();
+
 	@Autowired
 	private DBSchemaManager dbSchema;
 
@@ -58,36 +99,230 @@ public class HistoryManager {
 	@Autowired
 	private JsonFormatter formatter;
 
+	@Autowired
+	private SlowLogService slowLog;
+
 	public boolean isRunning() {
 		return isRunning;
 	}
 	
+	/**
+	 * Generates history rows of the block and writes them into the queue table (single insert),
+	 * rows are moved to op_obj_history by history writer in batches of many blocks.
+	 * Queue is durable, so blocks which were not written before shutdown are written on the next start ({@link #init()}).
+	 */
 	public void saveHistoryForBlockOperations(OpBlock opBlock, DeletedObjectCtx hctx) {
 		if (!isRunning()) {
 			return;
 		}
-		txTemplate.execute(new TransactionCallback<Void>() {
+		Date date = new Date(opBlock.getDate(OpBlock.F_DATE));
+		List<HistoryRow> rows = new ArrayList<>();
+		for (OpOperation o : opBlock.getOperations()) {
+			rows.addAll(generateHistoryObjBatch(o, hctx));
+		}
+		PGobject content = new PGobject();
+		content.setType("jsonb");
+		try {
+			content.setValue(formatter.fullObjectToJson(rows.toArray(new HistoryRow[rows.size()])));
+		} catch (SQLException e) {
+			throw new IllegalArgumentException(e);
+		}
+		if (partitions) {
+			dbSchema.createHistoryPartition(jdbcTemplate, date);
+		}
+		jdbcTemplate.update("INSERT INTO " + OP_OBJ_HISTORY_QUEUE_TABLE + "(blockhash, time, content) VALUES (?, ?, ?)",
+				SecUtils.getHashBytes(opBlock.getFullHash()), date, content);
+		queueSize.incrementAndGet();
+		if (async) {
+			scheduleFlush();
+		} else {
+			flushHistoryQueue();
+		}
+	}
+
+	public void init() {
+		if (!isRunning()) {
+			return;
+		}
+		int sz = jdbcTemplate.queryForObject("SELECT count(*) FROM " + OP_OBJ_HISTORY_QUEUE_TABLE, Integer.class);
+		queueSize.set(sz);
+		if (sz > 0) {
+			LOGGER.info(String.format("History of %d blocks is not written yet, writing it", sz));
+			if (async) {
+				scheduleFlush();
+			} else {
+				flushHistoryQueue();
+			}
+		}
+	}
+
+	public int getHistoryQueueSize() {
+		return queueSize.get();
+	}
+
+	/**
+	 * Accounts queued blocks which were deleted without writing their history (i.e. block is removed).
+	 */
+	public void removedFromQueue(int blocks) {
+		if (blocks > 0) {
+			queueSize.addAndGet(-blocks);
+		}
+	}
+
+	/**
+	 * Archives history partitions older than opendb.db.history-archive-months (0 - never archive).
+	 */
+	public List<String> archiveHistory() {
+		if (!isRunning() || !partitions || archiveMonths <= 0) {
+			return Collections.emptyList();
+		}
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.MONTH, -archiveMonths);
+		return dbSchema.archiveHistoryPartitions(jdbcTemplate, c.getTime());
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			getHistoryWriter().submit(new Runnable() {
+
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					try {
+						flushHistoryQueue();
+					} catch (RuntimeException e) {
+						// blocks stay in the queue and will be written with the next block or after restart
+						LOGGER.error("Error writing history: " + e.getMessage(), e);
+					}
+				}
+			});
+		}
+	}
+
+	private synchronized ExecutorService getHistoryWriter() {
+		if (historyWriter == null) {
+			historyWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "opendb-history-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return historyWriter;
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (historyWriter != null) {
+			historyWriter.shutdown();
+			try {
+				historyWriter.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Moves history rows from the queue table into op_obj_history, every transaction writes up to
+	 * opendb.db.history-batch blocks with a single batch insert.
+	 * @return number of written blocks
+	 */
+	public int flushHistoryQueue() {
+		int total = 0;
+		synchronized (flushLock) {
+			int written;
+			do {
+				written = txTemplate.execute(new TransactionCallback<Integer>() {
+
+					@Override
+					public Integer doInTransaction(TransactionStatus status) {
+						return flushHistoryBatch();
+					}
+				});
+				total += written;
+			} while (written > 0);
+		}
+		return total;
+	}
+
+	private int flushHistoryBatch() {
+		long m = mHistoryFlush.startNs();
+		List<Object[]> ids = new ArrayList<>();
+		Map<String, List<Object[]>> allBatches = new LinkedHashMap<>();
+		// rows are locked, so block removal waits till they're written and deletes them from history
+		jdbcTemplate.query("SELECT id, blockhash, time, content FROM " + OP_OBJ_HISTORY_QUEUE_TABLE +
+				" ORDER BY id LIMIT " + historyBatch + " FOR UPDATE", new RowCallbackHandler() {
 
 			@Override
-			public Void doInTransaction(TransactionStatus status) {
-				Date date = new Date(opBlock.getDate(OpBlock.F_DATE));
-				for (OpOperation o : opBlock.getOperations()) {
-					List<Object[]> allBatches = generateHistoryObjBatch(opBlock, o, date, hctx);
-					dbSchema.insertObjIntoHistoryTableBatch(allBatches, OP_OBJ_HISTORY_TABLE, jdbcTemplate);
+			public void processRow(ResultSet rs) throws SQLException {
+				ids.add(new Object[] { rs.getInt(1) });
+				byte[] blockHash = rs.getBytes(2);
+				Date date = rs.getTimestamp(3);
+				HistoryRow[] rows = formatter.fromJson(new StringReader(rs.getString(4)), HistoryRow[].class);
+				String table = partitions ? dbSchema.getHistoryPartition(date) : OP_OBJ_HISTORY_TABLE;
+				List<Object[]> batch = allBatches.get(table);
+				if (batch == null) {
+					batch = new ArrayList<>();
+					allBatches.put(table, batch);
+				}
+				for (HistoryRow r : rows) {
+					batch.add(r.toBatchArgs(blockHash, date));
 				}
-				return null;
 			}
 		});
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		for (Map.Entry<String, List<Object[]>> e : allBatches.entrySet()) {
+			if (!e.getValue().isEmpty()) {
+				dbSchema.insertObjIntoHistoryTableBatch(e.getValue(), e.getKey(), jdbcTemplate);
+			}
+		}
+		jdbcTemplate.batchUpdate("DELETE FROM " + OP_OBJ_HISTORY_QUEUE_TABLE + " WHERE id = ?", ids);
+		queueSize.addAndGet(-ids.size());
+		mHistoryFlush.capture(m);
+		return ids.size();
 	}
 
 	public void retrieveHistory(HistoryObjectRequest historyObjectRequest) {
-		String sql;
+		String sql = getHistorySql(historyObjectRequest);
+		if (sql == null) {
+			return;
+		}
+		List<HistoryEdit> result = new ArrayList<>();
+		loadHistory(sql, historyObjectRequest, new Consumer<HistoryEdit>() {
+
+			@Override
+			public void accept(HistoryEdit historyEdit) {
+				result.add(historyEdit);
+			}
+		});
+		historyObjectRequest.historySearchResult = result;
+	}
+
+	/**
+	 * Passes history rows of the page to the consumer after they're fetched from db, so the consumer
+	 * doesn't hold db connection. Pass sorder of the last row as cursor of the request to get next page,
+	 * pages requested by cursor contain only stored deltas (see {@link HistoryObjectRequest#objects}).
+	 * @return number of rows
+	 */
+	public int streamHistory(HistoryObjectRequest historyObjectRequest, Consumer<HistoryEdit> consumer) {
+		String sql = getHistorySql(historyObjectRequest);
+		if (sql == null) {
+			return 0;
+		}
+		return loadHistory(sql, historyObjectRequest, consumer);
+	}
+
+	protected String getHistorySql(HistoryObjectRequest historyObjectRequest) {
+		String where;
 		switch (historyObjectRequest.historyType) {
 			case HISTORY_BY_USER: {
-				StringBuilder userString = getUserSqlRequestString(historyObjectRequest);
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE + " WHERE " +
-						userString + " ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = getUserSqlRequestString(historyObjectRequest).toString();
 				break;
 			}
 			case HISTORY_BY_OBJECT: {
@@ -95,33 +330,34 @@ public class HistoryManager {
 				if (historyObjectRequest.key.size() > 1) {
 					objType = historyObjectRequest.key.get(0);
 				}
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE + " WHERE " +
-						(objType == null ? "" : " type = ? AND ") + dbSchema.generatePKString(OP_OBJ_HISTORY_TABLE, "p%1$d = ?", " AND ",
-						(objType == null ? historyObjectRequest.key.size() : historyObjectRequest.key.size() - 1)) +
-						" ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = (objType == null ? "" : " type = ? AND ") + dbSchema.generatePKString(OP_OBJ_HISTORY_TABLE, "p%1$d = ?", " AND ",
+						(objType == null ? historyObjectRequest.key.size() : historyObjectRequest.key.size() - 1));
 				break;
 			}
 			case HISTORY_BY_TYPE: {
 				historyObjectRequest.key = Collections.singletonList(historyObjectRequest.key.get(0));
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE +
-						" WHERE type = ?" + " ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = " type = ?";
 				break;
 			}
 			case HISTORY_ALL: {
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE +
-						" ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = "";
 				break;
 			}
 			case HISTORY_BY_OPERATION_HASH: {
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE +
-						" WHERE ophash = ? ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = " ophash = ?";
 				break;
 			}
+			default:
+				return null;
 		}
+		boolean asc = ASC_SORT.equalsIgnoreCase(historyObjectRequest.sort);
+		if (historyObjectRequest.cursor != null) {
+			// keyset pagination, sorder is unique and ever increasing
+			String cursor = " sorder " + (asc ? ">" : "<") + " ?";
+			where = where.length() == 0 ? cursor : where + " AND" + cursor;
+		}
+		return "SELECT " + HISTORY_COLUMNS + " FROM " + OP_OBJ_HISTORY_TABLE + (where.length() == 0 ? "" : " WHERE " + where) +
+				" ORDER BY sorder " + (asc ? ASC_SORT : DESC_SORT) + " LIMIT " + historyObjectRequest.limit;
 	}
 
 	private StringBuilder getUserSqlRequestString(HistoryObjectRequest historyObjectRequest) {
@@ -146,63 +382,100 @@ public class HistoryManager {
 		return userString;
 	}
 
-	protected void loadHistory(String sql, HistoryObjectRequest historyObjectRequest) {
-		Object[] keyObject = null;
-		if (historyObjectRequest.key != null) {
+	protected int loadHistory(String sql, HistoryObjectRequest historyObjectRequest, Consumer<HistoryEdit> consumer) {
+		List<Object> args = new ArrayList<>();
+		if (historyObjectRequest.key != null && !HISTORY_ALL.equals(historyObjectRequest.historyType)) {
 			if (historyObjectRequest.historyType.equals(HISTORY_BY_OPERATION_HASH)) {
-				keyObject = new Object[] {SecUtils.getHashBytes(historyObjectRequest.key.get(0))};
+				args.add(SecUtils.getHashBytes(historyObjectRequest.key.get(0)));
 			} else {
-				keyObject = historyObjectRequest.key.toArray();
+				Object[] keyObject = historyObjectRequest.key.toArray();
 				keyObject = generateUserSearchObject(historyObjectRequest, keyObject);
+				args.addAll(Arrays.asList(keyObject));
 			}
 		}
-		historyObjectRequest.historySearchResult = jdbcTemplate.query(sql, keyObject, new ResultSetExtractor<List<HistoryEdit>>() {
+		if (historyObjectRequest.cursor != null) {
+			args.add(historyObjectRequest.cursor);
+		}
+		Object[] params = args.toArray();
+		long st = System.nanoTime();
+		List<HistoryEdit> page = new ArrayList<>();
+		txTemplate.execute(new TransactionCallback<Void>() {
+
 			@Override
-			public List<HistoryEdit> extractData(ResultSet rs) throws SQLException, DataAccessException {
-				List<HistoryEdit> result = new LinkedList<>();
-
-				while (rs.next()) {
-					List<String> users = new ArrayList<>();
-					String user = "";
-					for (int i = 1; i <= 4; i++) {
-						if (rs.getString(i) != null) {
-							if (user.length() == 0) {
-								user = rs.getString(i);
-							} else {
-								user += ":" + rs.getString(i);
-							}
-							if (i % 2 == 0) {
-								users.add(user);
-								user = "";
-							}
-						}
-					}
-					List<String> ids = new ArrayList<>();
-					ids.add(rs.getString(12));
-					for (int i = 5; i <= 4 + MAX_KEY_SIZE; i++) {
-						if (rs.getString(i) != null) {
-							ids.add(rs.getString(i));
-						}
-					}
-					HistoryEdit historyObject = new HistoryEdit(
-							users,
-							rs.getString(12),
-							formatter.parseObject(rs.getString(11)),
-							formatFullDate(rs.getTimestamp(10)),
-							HistoryManager.Status.getStatus(rs.getInt(13)),
-							SecUtils.hexify(rs.getBytes(14))
-					);
-					if (historyObject.getStatus().equals(HistoryManager.Status.EDITED)) {
-						historyObject.setDeltaChanges(formatter.fromJsonToTreeMap(rs.getString(11)));
+			public Void doInTransaction(TransactionStatus status) {
+				// cursor based fetch works only inside transaction
+				jdbcTemplate.query(new PreparedStatementCreator() {
+
+					@Override
+					public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+						PreparedStatement ps = con.prepareStatement(sql);
+						new ArgumentPreparedStatementSetter(params).setValues(ps);
+						ps.setFetchSize(HISTORY_FETCH_SIZE);
+						return ps;
 					}
-					historyObject.setId(ids);
-					result.add(historyObject);
-				}
+				}, new RowCallbackHandler() {
 
-				result = generateHistoryObj(result, historyObjectRequest.sort);
-				return result;
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						page.add(readHistoryEdit(rs));
+					}
+				});
+				return null;
 			}
 		});
+		slowLog.logQuery(sql, params, page.size(), st);
+		// versions are restored from the current object, so only the first page could be restored
+		HistoryEditChain chain = historyObjectRequest.objects && historyObjectRequest.cursor == null ?
+				new HistoryEditChain() : null;
+		for (HistoryEdit historyObject : page) {
+			if (chain != null) {
+				chain.process(historyObject);
+			}
+			consumer.accept(historyObject);
+		}
+		return page.size();
+	}
+
+	private HistoryEdit readHistoryEdit(ResultSet rs) throws SQLException {
+		List<String> users = new ArrayList<>();
+		String user = "";
+		for (int i = 1; i <= 4; i++) {
+			if (rs.getString(i) != null) {
+				if (user.length() == 0) {
+					user = rs.getString(i);
+				} else {
+					user += ":" + rs.getString(i);
+				}
+				if (i % 2 == 0) {
+					users.add(user);
+					user = "";
+				}
+			}
+		}
+		List<String> ids = new ArrayList<>();
+		ids.add(rs.getString(12));
+		for (int i = 5; i <= 4 + MAX_KEY_SIZE; i++) {
+			if (rs.getString(i) != null) {
+				ids.add(rs.getString(i));
+			}
+		}
+		Status status = HistoryManager.Status.getStatus(rs.getInt(13));
+		String obj = rs.getString(11);
+		// obj is parsed once: edited rows contain changes, deleted rows contain the object
+		HistoryEdit historyObject = new HistoryEdit(
+				users,
+				rs.getString(12),
+				status.equals(Status.EDITED) ? null : formatter.parseObject(obj),
+				formatFullDate(rs.getTimestamp(10)),
+				status,
+				SecUtils.hexify(rs.getBytes(14))
+		);
+		if (status.equals(Status.EDITED)) {
+			historyObject.setDeltaChanges(formatter.fromJsonToTreeMap(obj));
+		}
+		historyObject.setId(ids);
+		historyObject.sorder = rs.getLong(15);
+		return historyObject;
 	}
 
 	private Object[] generateUserSearchObject(HistoryObjectRequest historyObjectRequest, Object[] keyObject) {
@@ -241,19 +514,29 @@ public class HistoryManager {
 
 	public List<HistoryEdit> generateHistoryObj(List<HistoryEdit> historyList, String sort) {
 		List<HistoryEdit> newHistoryList = new ArrayList<>();
-
-		Map<List<String>, HistoryEdit> previousHistoryEditMap = new HashMap<>();
-		Map<List<String>, OpObject> originObjectMap = new HashMap<>();
+		HistoryEditChain chain = new HistoryEditChain();
 		for (HistoryEdit historyEdit : historyList) {
-			OpObject originObject = getPreviousOpObject(originObjectMap.get(historyEdit.id), previousHistoryEditMap.get(historyEdit.id), historyEdit);
-			previousHistoryEditMap.put(historyEdit.id, historyEdit);
+			chain.process(historyEdit);
 			newHistoryList.add(historyEdit);
-			originObjectMap.put(historyEdit.id, originObject);
 		}
 
 		return newHistoryList;
 	}
 
+	/**
+	 * Restores object versions of the history rows one by one, starting from the current object
+	 * and reverting changes of the rows in the order they're read.
+	 */
+	private class HistoryEditChain {
+		private final Map<List<String>, HistoryEdit> previousHistoryEditMap = new HashMap<>();
+		private final Map<List<String>, OpObject> originObjectMap = new HashMap<>();
+
+		void process(HistoryEdit historyEdit) {
+			OpObject originObject = getPreviousOpObject(originObjectMap.get(historyEdit.id), previousHistoryEditMap.get(historyEdit.id), historyEdit);
+			previousHistoryEditMap.put(historyEdit.id, historyEdit);
+			originObjectMap.put(historyEdit.id, originObject);
+		}
+	}
 
 	private String formatFullDate(Date date) {
 		if (date == null)
@@ -262,18 +545,6 @@ public class HistoryManager {
 		return DATE_FORMAT.format(date);
 	}
 
-	private void generateObjMapping(List<List<String>> objIds, List<HistoryEdit> allObjects, Map<List<String>, List<HistoryEdit>> history) {
-		for (List<String> id : objIds) {
-			List<HistoryEdit> objWithSameId = new LinkedList<>();
-			for (HistoryEdit hdto : allObjects) {
-				if (hdto.getId().equals(id)) {
-					objWithSameId.add(hdto);
-				}
-			}
-			history.put(id, objWithSameId);
-		}
-	}
-
 	protected OpObject getPreviousOpObject(OpObject originObject, HistoryEdit previousHistoryEdit, HistoryEdit historyEdit) {
 		if (historyEdit.getStatus().equals(Status.DELETED)) {
 			originObject = historyEdit.objEdit;
@@ -303,8 +574,16 @@ public class HistoryManager {
 	protected OpObject generateReverseEditObject(OpObject originObject, Map<String, Object> changes) {
 		Map<String, Object> changeEdit = (Map<String, Object>) changes.get(OpObject.F_CHANGE);
 		Map<String, Object> currentEdit = (Map<String, Object>) changes.get(OpObject.F_CURRENT);
+		Map<String, Object> delta = (Map<String, Object>) changes.get(OpObject.F_DELTA);
 
 		OpObject prevObj = new OpObject(originObject);
+		if (delta != null) {
+			// previous values are stored since history rows have precalculated delta, absent values are not stored
+			for (String fieldExpr : changeEdit.keySet()) {
+				prevObj.setFieldByExpr(fieldExpr, delta.get(fieldExpr));
+			}
+			return prevObj;
+		}
 		for (Map.Entry<String, Object> e : changeEdit.entrySet()) {
 			String fieldExpr = e.getKey();
 			Object op = e.getValue();
@@ -363,68 +642,50 @@ public class HistoryManager {
 	}
 
 
-	private Object getObjectByStatus(OpObject opObject, Status status) {
-		if (status.equals(Status.CREATED)) {
-			return null;
-		} else if (status.equals(Status.EDITED)) {
+	private String getObjectByStatus(OpObject opObject, Status status) {
+		if (status.equals(Status.EDITED)) {
 			Map<String, Object> editList = new LinkedHashMap<>();
 			editList.put(OpObject.F_CHANGE, opObject.getChangedEditFields());
 			editList.put(OpObject.F_CURRENT, opObject.getCurrentEditFields());
-
-			PGobject obj = new PGobject();
-			obj.setType("jsonb");
-			try {
-				obj.setValue(formatter.fullObjectToJson(editList));
-			} catch (SQLException e) {
-				e.printStackTrace();
+			Object delta = opObject.getCacheObject(OpObject.F_DELTA);
+			if (delta != null) {
+				editList.put(OpObject.F_DELTA, delta);
 			}
-
-			return obj;
+			return formatter.fullObjectToJson(editList);
 		} else if (status.equals(Status.DELETED)) {
-			PGobject obj = new PGobject();
-			obj.setType("jsonb");
-			try {
-				obj.setValue(formatter.fullObjectToJson(opObject));
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
-
-			return obj;
+			return formatter.fullObjectToJson(opObject);
 		}
-
 		return null;
 	}
 	
-	private List<Object[]> generateHistoryObjBatch(OpBlock opBlock, OpOperation op, Date date, DeletedObjectCtx hctx) {
-		byte[] blockHash = SecUtils.getHashBytes(opBlock.getFullHash());
-		List<Object[]> args = new LinkedList<>();
+	private List<HistoryRow> generateHistoryObjBatch(OpOperation op, DeletedObjectCtx hctx) {
+		List<HistoryRow> args = new ArrayList<>();
 
-		args.addAll(prepareArgumentsForHistoryBatch(blockHash, op.getCreated(), op, date, Status.CREATED));
+		args.addAll(prepareArgumentsForHistoryBatch(op.getCreated(), op, Status.CREATED));
 		if (hctx != null) {
 			for (String key : hctx.deletedObjsCache.keySet()) {
 				if (key.equals(op.getHash())) {
-					args.addAll(prepareArgumentsForHistoryBatch(blockHash, hctx.deletedObjsCache.get(key), op, date, Status.DELETED));
+					args.addAll(prepareArgumentsForHistoryBatch(hctx.deletedObjsCache.get(key), op, Status.DELETED));
 				}
 			}
 		}
-		args.addAll(prepareArgumentsForHistoryBatch(blockHash, op.getEdited(), op, date, Status.EDITED));
+		args.addAll(prepareArgumentsForHistoryBatch(op.getEdited(), op, Status.EDITED));
 
 		return args;
 	}
 
-	private List<Object[]> prepareArgumentsForHistoryBatch(byte[] blockHash, List<OpObject> opObjectList, OpOperation op, Date date, Status status) {
-		List<Object[]> insertBatch = new ArrayList<>(opObjectList.size());
+	private List<HistoryRow> prepareArgumentsForHistoryBatch(List<OpObject> opObjectList, OpOperation op, Status status) {
+		List<HistoryRow> insertBatch = new ArrayList<>(opObjectList.size());
 
 		for (int i = 0; i < opObjectList.size(); i++) {
-			Object[] args = new Object[6 + DBSchemaManager.HISTORY_USERS_SIZE * 2 + DBSchemaManager.MAX_KEY_SIZE];
-			args[0] = blockHash;
-			args[1] = SecUtils.getHashBytes(op.getRawHash());
-			args[2] = op.getType();
-			args[3] = date;
-			args[4] = getObjectByStatus(opObjectList.get(i), status);
-			args[5] = status.getValue();
+			HistoryRow row = new HistoryRow();
+			row.ophash = op.getRawHash();
+			row.type = op.getType();
+			row.obj = getObjectByStatus(opObjectList.get(i), status);
+			row.status = status.getValue();
+			row.usr = new String[HISTORY_USERS_SIZE * 2];
 			for(int userInd = 0; userInd < HISTORY_USERS_SIZE; userInd++) {
-				putUserKey(6, userInd, args, op.getSignedBy());
+				putUserKey(userInd, row.usr, op.getSignedBy());
 			}
 			List<String> objIds = opObjectList.get(i).getId();
 			if (objIds.isEmpty()) {
@@ -432,33 +693,69 @@ public class HistoryManager {
 				objIds.add(op.getRawHash());
 				objIds.add(String.valueOf(i));
 			}
-			int k = 6 + DBSchemaManager.HISTORY_USERS_SIZE * 2;
+			row.p = new String[MAX_KEY_SIZE];
+			int k = 0;
 			for (String id : objIds) {
-				args[k] = id;
+				row.p[k] = id;
 				k++;
 			}
 
-			insertBatch.add(args);
+			insertBatch.add(row);
 		}
 
 		return insertBatch;
 	}
 
-	private void putUserKey(int arrInd, int userInd, Object[] args, List<String> ls) {
+	private void putUserKey(int userInd, String[] args, List<String> ls) {
 		if(ls.size() > userInd) {
 			String[] un = ls.get(userInd).split(":");
-			args[arrInd + userInd * 2] = un[0];
+			args[userInd * 2] = un[0];
 			if(un.length > 1) {
-				args[arrInd + userInd * 2 + 1] = un[1];
+				args[userInd * 2 + 1] = un[1];
 			}
 		}
 	}
 
+	/**
+	 * History row as it's stored in the queue table, block hash and time are shared by all rows of the block.
+	 */
+	private static class HistoryRow {
+		String ophash;
+		String type;
+		int status;
+		String obj;
+		String[] usr;
+		String[] p;
+
+		Object[] toBatchArgs(byte[] blockHash, Date date) throws SQLException {
+			Object[] args = new Object[6 + HISTORY_USERS_SIZE * 2 + MAX_KEY_SIZE];
+			args[0] = blockHash;
+			args[1] = SecUtils.getHashBytes(ophash);
+			args[2] = type;
+			args[3] = date;
+			if (obj != null) {
+				PGobject pg = new PGobject();
+				pg.setType("jsonb");
+				pg.setValue(obj);
+				args[4] = pg;
+			}
+			args[5] = status;
+			System.arraycopy(usr, 0, args, 6, usr.length);
+			System.arraycopy(p, 0, args, 6 + HISTORY_USERS_SIZE * 2, p.length);
+			return args;
+		}
+	}
+
 	public static class HistoryObjectRequest {
 		public String historyType;
 		public List<String> key;
 		public int limit;
 		public String sort;
+		// sorder of the last row of the previous page
+		public Long cursor;
+		// restore object versions, otherwise only stored deltas and deleted objects are returned;
+		// ignored with cursor since versions are restored starting from the current object
+		public boolean objects = true;
 		public List<HistoryEdit> historySearchResult;
 
 		public HistoryObjectRequest(String historyType, List<String> key, int limit, String sort) {
@@ -467,6 +764,11 @@ public class HistoryManager {
 			this.key = key;
 			this.sort = sort;
 		}
+
+		public HistoryObjectRequest(String historyType, List<String> key, int limit, String sort, Long cursor) {
+			this(historyType, key, limit, sort);
+			this.cursor = cursor;
+		}
 	}
 
 	public static class HistoryEdit {
@@ -478,6 +780,7 @@ public class HistoryManager {
 		private String date;
 		private Status status;
 		private String opHash;
+		private long sorder;
 
 		public HistoryEdit(List<String> userId, String objType, OpObject objEdit, String date, Status status, String ophash) {
 			this.userId = userId;
@@ -543,6 +846,10 @@ public class HistoryManager {
 		public void setStatus(Status status) {
 			this.status = status;
 		}
+
+		public long getSorder() {
+			return sorder;
+		}
 	}
 
 	public enum Status {
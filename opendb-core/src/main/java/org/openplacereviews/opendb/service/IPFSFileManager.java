@@ -1,6 +1,7 @@
 package org.openplacereviews.opendb.service;
 
 import com.mashape.unirest.http.exceptions.UnirestException;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
@@ -8,20 +9,24 @@ import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.dto.IpfsStatusDTO;
 import org.openplacereviews.opendb.dto.ResourceDTO;
-import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.util.OUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 @Service
 public class IPFSFileManager {
@@ -30,6 +35,15 @@ public class IPFSFileManager {
 
 	private static final int SPLIT_FOLDERS_DEPTH = 3;
 	private static final int FOLDER_LENGTH = 4;
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+	// files which are missing in the local storage and were downloaded from IPFS
+	private static final String CID_CACHE_FOLDER = "ipfs-cache";
+	private static final String MAINTENANCE_CHECKPOINT_PREFIX = "opendb.ipfs.maintenance.";
+	private static final String MAINTENANCE_UPLOAD = "upload-missing";
+	private static final String MAINTENANCE_REMOVE = "remove-unused";
+
+	private static final PerformanceMetric mUploadMissing = PerformanceMetrics.i().getMetric("ipfs.maintenance.upload");
+	private static final PerformanceMetric mRemoveUnused = PerformanceMetrics.i().getMetric("ipfs.maintenance.remove");
 
 	@Value("${opendb.storage.local-storage:}")
 	private String directory;
@@ -37,8 +51,32 @@ public class IPFSFileManager {
 	@Value("${opendb.storage.timeToStoreUnusedSec:86400}")
 	private int timeToStoreUnusedObjectsSeconds;
 
+	@Value("${opendb.storage.ipfs.maintenance.parallelism:4}")
+	private int maintenanceParallelism = 4;
+
+	@Value("${opendb.storage.ipfs.maintenance.batch:100}")
+	private int maintenanceBatch = 100;
+
+	@Value("${opendb.storage.ipfs.maintenance.rate:0}")
+	private int maintenanceRate;
+
+	// least recently used files are removed from ipfs-cache when it grows over the limit (0 - unlimited)
+	@Value("${opendb.storage.ipfs.cache.maxSizeMb:1024}")
+	private int cacheMaxSizeMb = 1024;
+
 	private File folder;
 
+	private ExecutorService maintenanceService;
+	private ExecutorService pinService;
+	private final Object maintenanceLock = new Object();
+	private final Object maintenanceRateLock = new Object();
+	private long nextMaintenanceSlotNs;
+	private final AtomicLong maintenanceProcessed = new AtomicLong();
+	private final AtomicLong maintenanceFailed = new AtomicLong();
+	private final Object cacheLock = new Object();
+	// size of ipfs-cache folder, calculated on the first download
+	private long cacheSize = -1;
+
 	@Autowired
 	private DBConsensusManager dbManager;
 
@@ -58,6 +96,21 @@ public class IPFSFileManager {
 		}
 	}
 
+	@PreDestroy
+	public synchronized void shutdown() {
+		// stops maintenance jobs and pin requests which wait for IPFS
+		for (ExecutorService es : Arrays.asList(maintenanceService, pinService)) {
+			if (es != null) {
+				es.shutdownNow();
+				try {
+					es.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
 	public boolean isRunning() {
 		return folder != null;
 	}
@@ -67,12 +120,22 @@ public class IPFSFileManager {
 	}
 
 	public ResourceDTO addFile(ResourceDTO resourceDTO) throws IOException {
-		resourceDTO.setHash(SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, resourceDTO.getMultipartFile().getBytes()));
-		if (isIPFSRunning()) {
-			resourceDTO.setCid(ipfsService.writeContent(resourceDTO.getMultipartFile().getBytes()));
+		// upload is streamed to the local storage while hashing and written to IPFS from the stored file
+		File tmp = File.createTempFile("upload", ".tmp", folder);
+		try {
+			MessageDigest digest = DigestUtils.getSha256Digest();
+			try (InputStream is = new DigestInputStream(resourceDTO.getMultipartFile().getInputStream(), digest)) {
+				FileUtils.copyInputStreamToFile(is, tmp);
+			}
+			resourceDTO.setHash(SecUtils.formatHashWithAlgo(SecUtils.HASH_SHA256, digest.digest()));
+			File f = getFileByHash(resourceDTO.getHash(), resourceDTO.getExtension());
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if (isIPFSRunning()) {
+				resourceDTO.setCid(ipfsService.writeContent(f));
+			}
+		} finally {
+			tmp.delete();
 		}
-		File f = getFileByHash(resourceDTO.getHash(), resourceDTO.getExtension());
-		FileUtils.writeByteArrayToFile(f, resourceDTO.getMultipartFile().getBytes());
 		dbManager.storeResourceObject(resourceDTO);
 		return resourceDTO;
 	}
@@ -82,9 +145,106 @@ public class IPFSFileManager {
 		return getFileByHashImpl(hash, extension);
 	}
 
+	/**
+	 * Returns file from the local storage or from the local cache of IPFS files keyed by CID,
+	 * file missing in both is downloaded from IPFS into the cache.
+	 */
+	public File getResourceFile(String hash, String extension) throws IOException {
+		try {
+			File f = getFileByHash(hash, extension);
+			if (f.exists() || !isIPFSRunning()) {
+				return f;
+			}
+		} catch (FileNotFoundException e) {
+			if (!isIPFSRunning()) {
+				throw e;
+			}
+		}
+		ResourceDTO res = dbManager.getResourceObjectIfExists(ResourceDTO.of(hash, extension, null));
+		if (res == null || OUtils.isEmpty(res.getCid())) {
+			throw new FileNotFoundException("File with hash: " + hash + " was not found");
+		}
+		return getFileByCid(res.getCid());
+	}
+
+	public File getFileByCid(String cid) throws IOException {
+		File f = getCachedFile(cid);
+		if (f.exists()) {
+			// modification time is access time of cached file
+			f.setLastModified(System.currentTimeMillis());
+			return f;
+		}
+		f.getParentFile().mkdirs();
+		// concurrent downloads of the same cid write to own temporary files and the last rename wins
+		File tmp = File.createTempFile(cid, ".tmp", f.getParentFile());
+		try {
+			try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+				ipfsService.read(cid, os);
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+		cacheFileAdded(f);
+		return f;
+	}
+
+	private File getCachedFile(String cid) {
+		return new File(folder, CID_CACHE_FOLDER + "/" + generateFileDirAndName(cid, null) + cid);
+	}
+
+	private void cacheFileAdded(File f) {
+		if (cacheMaxSizeMb <= 0) {
+			return;
+		}
+		File cacheFolder = new File(folder, CID_CACHE_FOLDER);
+		synchronized (cacheLock) {
+			if (cacheSize < 0) {
+				cacheSize = FileUtils.sizeOfDirectory(cacheFolder);
+			} else {
+				cacheSize += f.length();
+			}
+			long maxSize = cacheMaxSizeMb * 1024L * 1024L;
+			if (cacheSize <= maxSize) {
+				return;
+			}
+			// cache is cleaned to 90% of the limit, so the folder is not listed on every download
+			List<File> files = new ArrayList<>();
+			for (File c : FileUtils.listFiles(cacheFolder, null, true)) {
+				if (!c.equals(f) && !c.getName().endsWith(".tmp")) {
+					files.add(c);
+				}
+			}
+			files.sort(Comparator.comparingLong(File::lastModified));
+			int removed = 0;
+			for (File c : files) {
+				if (cacheSize <= maxSize / 10 * 9) {
+					break;
+				}
+				long len = c.length();
+				if (c.delete()) {
+					cacheSize -= len;
+					removed++;
+				}
+			}
+			LOGGER.info(String.format("%d files are removed from IPFS cache, cache size is %d MB", removed,
+					cacheSize >> 20));
+		}
+	}
+
+	private void removeCachedFile(String cid) {
+		File f = getCachedFile(cid);
+		synchronized (cacheLock) {
+			long len = f.length();
+			if (f.delete() && cacheSize >= 0) {
+				cacheSize -= len;
+			}
+		}
+	}
+
 
 	public List<ResourceDTO> getMissingImagesInIPFS() {
-		List<String> pinnedImagesOnIPFS = ipfsService.getPinnedResources();
+		Set<String> pinnedImagesOnIPFS = new HashSet<>(ipfsService.getPinnedResources());
 		List<ResourceDTO> activeResources = dbManager.getResources(true, 0);
 		List<ResourceDTO> missingResources = new ArrayList<ResourceDTO>();
 		activeResources.forEach(r -> {
@@ -107,95 +267,201 @@ public class IPFSFileManager {
 		return stat;
 	}
 
+	public long getMaintenanceProcessed() {
+		return maintenanceProcessed.get();
+	}
+
+	public long getMaintenanceFailed() {
+		return maintenanceFailed.get();
+	}
+
 	public List<ResourceDTO> uploadMissingResourcesToIPFS() {
-		List<ResourceDTO> missingResources = getMissingImagesInIPFS();
-		missingResources.forEach(r -> {
-			try {
-				LOGGER.info("Start uploading image from/to node for cid: " + r.getCid() + " " + r.getHash());
-				File f = getFileByHash(r.getHash(), r.getExtension());
-				FileInputStream fis = new FileInputStream(f);
-				String newCid = ipfsService.writeContent(fis);
-				fis.close();
-				LOGGER.info("Uploaded with cid: " + newCid);
-				if (!OUtils.equals(newCid, r.getCid())) {
-					// ?????
-					LOGGER.error(String.format("CID mismatch ! %s != %s for %s.", newCid, r.getCid(), r.getHash()));
-				}
-				ipfsService.pin(newCid);
-			} catch (Exception e) {
-				LOGGER.error(String.format("Error while pinning missing object [hash: %s, cid: %s] : %s",
-						r.getCid(), r.getHash(), e.getMessage()), e);
+		Set<String> pinnedImagesOnIPFS = new HashSet<>(ipfsService.getPinnedResources());
+		return runMaintenance(MAINTENANCE_UPLOAD, true, 0, mUploadMissing, r -> {
+			if (pinnedImagesOnIPFS.contains(r.getCid())) {
+				return false;
 			}
-		});
-
-		return missingResources;
+			LOGGER.info("Start uploading image from/to node for cid: " + r.getCid() + " " + r.getHash());
+			File f = getFileByHash(r.getHash(), r.getExtension());
+			String newCid = ipfsService.writeContent(f);
+			LOGGER.info("Uploaded with cid: " + newCid);
+			if (!OUtils.equals(newCid, r.getCid())) {
+				// ?????
+				LOGGER.error(String.format("CID mismatch ! %s != %s for %s.", newCid, r.getCid(), r.getHash()));
+			}
+			ipfsService.pin(newCid);
+			return true;
+		}, null);
 	}
 
 	public List<ResourceDTO> removeUnusedImageObjectsFromSystemAndUnpinningThem() throws IOException {
-		List<ResourceDTO> notActiveImageObjects = dbManager.getResources(false, timeToStoreUnusedObjectsSeconds);
-		notActiveImageObjects.parallelStream().forEach(res -> {
-			try {
-				removeImageObject(res);
-			} catch (FileNotFoundException e) {
-				LOGGER.error("File with hash " + res.getHash() + " was not found", e);
-			}
-		});
+		List<ResourceDTO> notActiveImageObjects = runMaintenance(MAINTENANCE_REMOVE, false, timeToStoreUnusedObjectsSeconds,
+				mRemoveUnused, r -> {
+					removeImageObject(r);
+					return true;
+				}, removed -> dbManager.removeResources(removed));
 		ipfsService.clearNotPinnedImagesFromIPFSLocalStorage();
 		return notActiveImageObjects;
 	}
 
 	private void removeImageObject(ResourceDTO resourceDTO) throws FileNotFoundException {
 		ipfsService.unpin(resourceDTO.getCid());
-		dbManager.removeResource(resourceDTO);
 		File file = getFileByHash(resourceDTO.getHash(), resourceDTO.getExtension());
 		if (file.delete()) {
 			LOGGER.info(String.format("File %s is deleted", file.getName()));
 		} else {
 			LOGGER.error(String.format("Deleting %s has failed", file.getAbsolutePath()));
 		}
+		if (!OUtils.isEmpty(resourceDTO.getCid())) {
+			removeCachedFile(resourceDTO.getCid());
+		}
 	}
 
+	/**
+	 * Activates and pins resources referenced by block operations. Pins don't use maintenance pool
+	 * since block creation shouldn't wait for the rate limit of background jobs.
+	 */
 	public void processOperations(List<OpOperation> candidates) {
-		List<ResourceDTO> array = new ArrayList<ResourceDTO>();
-		candidates.forEach(operation -> {
-			List<OpObject> nw = operation.getCreated();
-			for (OpObject o : nw) {
-				array.clear();
-				getImageObject(o.getRawOtherFields(), array);
-				array.forEach(resDTO -> {
-					dbManager.updateResourceActiveStatus(resDTO, true);
-					ipfsService.pin(resDTO.getCid());
-				});
-			}
-		});
+		Set<String> hashes = new TreeSet<String>();
+		for (OpOperation operation : candidates) {
+			hashes.addAll(operation.getResourceHashes());
+		}
+		if (hashes.isEmpty()) {
+			return;
+		}
+		List<Future<Boolean>> pins = new ArrayList<>();
+		for (String cid : dbManager.activateResources(hashes)) {
+			pins.add(getPinService().submit(() -> ipfsService.pin(cid)));
+		}
+		for (Future<Boolean> f : pins) {
+			waitFor(f);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private void getImageObjectFromList(List<?> l, List<ResourceDTO> array) {
-		for (Object o : l) {
-			if (o instanceof Map) {
-				getImageObject((Map<String, ?>) o, array);
-			}
-			if (o instanceof List) {
-				getImageObjectFromList((List<?>) o, array);
+	private interface ResourceTask {
+
+		/**
+		 * @return true if resource was processed and false if it was skipped
+		 */
+		boolean process(ResourceDTO r) throws Exception;
+	}
+
+	/**
+	 * Processes resources by pages ordered by hash: resources of the page are processed in parallel
+	 * (opendb.storage.ipfs.maintenance.parallelism) limited by rate (operations per second), processed resources of the page
+	 * are saved with bulk db update and checkpoint is saved, so interrupted job continues after the last processed page.
+	 * Failed resources are logged and skipped, they are processed again by the next run.
+	 */
+	private List<ResourceDTO> runMaintenance(String job, boolean active, int addedMoreThanSecondsAgo,
+			PerformanceMetric metric, ResourceTask task, Consumer<List<ResourceDTO>> savePage) {
+		synchronized (maintenanceLock) {
+			String checkpoint = MAINTENANCE_CHECKPOINT_PREFIX + job;
+			String from = dbManager.getSetting(checkpoint);
+			if (!OUtils.isEmpty(from)) {
+				LOGGER.info(String.format("Continue %s from checkpoint %s", job, from));
 			}
+			int batch = Math.max(1, maintenanceBatch);
+			List<ResourceDTO> res = new ArrayList<>();
+			List<ResourceDTO> page;
+			do {
+				page = dbManager.getResources(active, addedMoreThanSecondsAgo, from == null ? "" : from, batch);
+				List<Future<Boolean>> results = new ArrayList<>(page.size());
+				for (ResourceDTO r : page) {
+					results.add(getMaintenanceService().submit(() -> processResource(job, metric, task, r)));
+				}
+				List<ResourceDTO> processed = new ArrayList<>();
+				for (int i = 0; i < page.size(); i++) {
+					if (waitFor(results.get(i))) {
+						processed.add(page.get(i));
+					}
+				}
+				if (savePage != null) {
+					savePage.accept(processed);
+				}
+				res.addAll(processed);
+				if (!page.isEmpty()) {
+					from = page.get(page.size() - 1).getHash();
+					dbManager.setSetting(checkpoint, from);
+				}
+			} while (page.size() == batch);
+			dbManager.setSetting(checkpoint, "");
+			LOGGER.info(String.format("Finished %s: %d resources processed", job, res.size()));
+			return res;
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private void getImageObject(Map<String, ?> map, List<ResourceDTO> array) {
-		if (map.containsKey(OpOperation.F_TYPE) && map.get(OpOperation.F_TYPE).equals("#image")) {
-			array.add(ResourceDTO.of(map.get("hash").toString(), map.get("extension").toString(), map.get("cid").toString()));
-		} else {
-			map.entrySet().forEach(e -> {
-				if (e.getValue() instanceof Map) {
-					getImageObject((Map<String, ?>) e.getValue(), array);
+	private boolean processResource(String job, PerformanceMetric metric, ResourceTask task, ResourceDTO r)
+			throws InterruptedException {
+		acquireMaintenanceRate();
+		long m = metric.startNs();
+		try {
+			boolean processed = task.process(r);
+			maintenanceProcessed.incrementAndGet();
+			return processed;
+		} catch (Exception e) {
+			maintenanceFailed.incrementAndGet();
+			LOGGER.error(String.format("Error while running %s [hash: %s, cid: %s] : %s",
+					job, r.getHash(), r.getCid(), e.getMessage()), e);
+			return false;
+		} finally {
+			metric.capture(m);
+		}
+	}
+
+	private void acquireMaintenanceRate() throws InterruptedException {
+		if (maintenanceRate <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (maintenanceRateLock) {
+			long now = System.nanoTime();
+			long slot = Math.max(now, nextMaintenanceSlotNs);
+			nextMaintenanceSlotNs = slot + TimeUnit.SECONDS.toNanos(1) / maintenanceRate;
+			wait = slot - now;
+		}
+		TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	private boolean waitFor(Future<Boolean> f) {
+		try {
+			return Boolean.TRUE.equals(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("IPFS request was interrupted", e);
+		} catch (ExecutionException e) {
+			LOGGER.error(e.getCause().getMessage(), e.getCause());
+			return false;
+		}
+	}
+
+	private synchronized ExecutorService getMaintenanceService() {
+		if (maintenanceService == null) {
+			maintenanceService = Executors.newFixedThreadPool(Math.max(1, maintenanceParallelism), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ipfs-maintenance");
+					t.setDaemon(true);
+					return t;
 				}
-				if (e.getValue() instanceof List) {
-					getImageObjectFromList((List<?>) e.getValue(), array);
+			});
+		}
+		return maintenanceService;
+	}
+
+	private synchronized ExecutorService getPinService() {
+		if (pinService == null) {
+			pinService = Executors.newFixedThreadPool(Math.max(1, maintenanceParallelism), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ipfs-pin");
+					t.setDaemon(true);
+					return t;
 				}
 			});
 		}
+		return pinService;
 	}
 
 	private File getFileByHashImpl(String hash, String extension) throws FileNotFoundException {
@@ -21,6 +21,7 @@ import org.openplacereviews.opendb.util.exception.TechnicalException;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,6 +38,7 @@ import static io.ipfs.api.IPFS.PinType.recursive;
 public class IPFSService {
 
 	public static final String BASE_URI = "%s://%s:%s/";
+	private static final int BUFFER_SIZE = 64 * 1024;
 	protected static final Log LOGGER = LogFactory.getLog(IPFSService.class);
 	@Value("${opendb.storage.ipfs.node.host:}")
 	public String ipfsHost;
@@ -121,22 +123,28 @@ public class IPFSService {
 		return ipfsStatusDTO;
 	}
 
+	/**
+	 * Streams content to IPFS, stream can't be replayed so the write is not retried.
+	 */
 	public String writeContent(InputStream content) {
-		try {
-			return writeContent(IOUtils.toByteArray(content));
-		} catch (IOException ex) {
-			throw new TechnicalException("Exception converting Inputstream to byte array", ex);
-		}
+		return writeContent(new NamedStreamable.InputStreamWrapper(content), false);
+	}
+
+	public String writeContent(File content) {
+		return writeContent(new NamedStreamable.FileWrapper(content), true);
 	}
 
 	public String writeContent(byte[] content) {
+		return writeContent(new NamedStreamable.ByteArrayWrapper(content), true);
+	}
+
+	private String writeContent(NamedStreamable file, boolean retry) {
 		LOGGER.debug("Write file on IPFS");
-		return Failsafe.with(retryPolicy)
+		return Failsafe.with(retry ? retryPolicy : new RetryPolicy<>().withMaxRetries(0))
 				.onFailure(event -> LOGGER.error(String.format("Exception writting file on IPFS after %d attemps. %s",
 						event.getAttemptCount(), event.getResult())))
 				.onSuccess(event -> LOGGER.debug(String.format("File written on IPFS: hash=%s ", event.getResult())))
 				.get(() -> {
-					NamedStreamable.ByteArrayWrapper file = new NamedStreamable.ByteArrayWrapper(content);
 					MerkleNode response = this.ipfs.add(file).get(0);
 					return response.hash.toString();
 				});
@@ -189,35 +197,55 @@ public class IPFSService {
 				});
 	}
 
+	/**
+	 * Copies content to the output by chunks, so the file is never fully loaded in memory and slow client
+	 * slows down reading from IPFS. Opening of the stream is limited by readTimeoutMs and retried.
+	 */
 	public OutputStream read(String id, OutputStream output) {
 		LOGGER.debug(String.format("Read file on IPFS [id: %s]", id));
+		try (InputStream is = openStream(id)) {
+			IOUtils.copyLarge(is, output, new byte[BUFFER_SIZE]);
+			LOGGER.debug(String.format("File read on IPFS: [id: %s] ", id));
+			return output;
+		} catch (IOException ex) {
+			LOGGER.error(String.format("Exception while reading file from IPFS [id: %s]", id), ex);
+			throw new TechnicalException("Exception while reading file from IPFS [id: " + id + "]", ex);
+		}
+	}
 
+	private InputStream openStream(String id) {
 		return Failsafe.with(retryPolicy)
 				.onFailure(event -> LOGGER.error(String.format("Exception reading file [id: %s] on IPFS after %d attemps. %s", id, event.getAttemptCount(), event.getResult())))
-				.onSuccess(event -> LOGGER.debug(String.format("File read on IPFS: [id: %s] ", id)))
 				.get(() -> {
+					Future<InputStream> ipfsFetcherResult = null;
+					IPFSContentFetcher fetcher = null;
 					try {
 						Multihash filePointer = Multihash.fromBase58(id);
-						Future<byte[]> ipfsFetcherResult = pool.submit(new IPFSContentFetcher(ipfs, filePointer));
-						byte[] content = ipfsFetcherResult.get(this.ipfsReadTimeoutMs, TimeUnit.MILLISECONDS);
-						IOUtils.write(content, output);
-						return output;
+						fetcher = new IPFSContentFetcher(ipfs, filePointer);
+						ipfsFetcherResult = pool.submit(fetcher);
+						return ipfsFetcherResult.get(this.ipfsReadTimeoutMs, TimeUnit.MILLISECONDS);
 					} catch (java.util.concurrent.TimeoutException ex) {
+						ipfsFetcherResult.cancel(true);
+						fetcher.abandon();
 						LOGGER.error(String.format("Timeout Exception while fetching file from IPFS [id: %s, timeout: %d ms]", id,
 								ipfsReadTimeoutMs));
 						throw new TimeoutException("Timeout Exception while fetching file from IPFS [id: " + id + "]");
 					} catch (Exception ex) {
+						if (fetcher != null) {
+							fetcher.abandon();
+						}
 						LOGGER.error(String.format("Execution Exception while fetching file from IPFS [id: %s]", id), ex);
 						throw new TechnicalException("Execution Exception while fetching file from IPFS [id: " + id + "]", ex);
 					}
 				});
-
 	}
 
-	private class IPFSContentFetcher implements Callable<byte[]> {
+	private class IPFSContentFetcher implements Callable<InputStream> {
 
 		private final IPFS ipfs;
 		private final Multihash multihash;
+		private InputStream stream;
+		private boolean abandoned;
 
 		public IPFSContentFetcher(IPFS ipfs, Multihash multihash) {
 			this.ipfs = ipfs;
@@ -225,14 +253,41 @@ public class IPFSService {
 		}
 
 		@Override
-		public byte[] call() {
+		public InputStream call() {
 			try {
-				return this.ipfs.cat(multihash);
+				InputStream is = this.ipfs.catStream(multihash);
+				synchronized (this) {
+					if (!abandoned) {
+						stream = is;
+						return is;
+					}
+				}
+				// caller doesn't wait for the stream anymore
+				close(is);
+				return null;
 			} catch (IOException ex) {
 				LOGGER.error(String.format("Exception while fetching file from IPFS [hash: %s]", multihash), ex);
 				throw new TechnicalException("Exception while fetching file from IPFS " + multihash, ex);
 			}
 		}
+
+		/**
+		 * Closes the stream if it was opened after the caller stopped waiting (i.e. on timeout).
+		 */
+		public synchronized void abandon() {
+			abandoned = true;
+			if (stream != null) {
+				close(stream);
+			}
+		}
+
+		private void close(InputStream is) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				// stream isn't used anymore
+			}
+		}
 	}
 
 
@@ -1,5 +1,6 @@
 package org.openplacereviews.opendb.service;
 
+import com.google.gson.JsonElement;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.OpBlock;
@@ -7,70 +8,332 @@ import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
 import org.openplacereviews.opendb.ops.OpBlockchainRules.ValidationListener;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.util.OUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Keeps last log entries in a ring buffer, so adding entry is lock free and cheap even under flood of invalid operations.
+ * Entries are printed to the log and optionally persisted to daily rotated files (json line per entry)
+ * by a background writer; entries which don't fit into writer queue are only kept in memory.
+ * Persisted entries are loaded back to memory on start and could be queried by type and time.
+ */
 @Service
 public class LogOperationService implements ValidationListener {
 
 	protected static final Log LOGGER = LogFactory.getLog(LogOperationService.class);
 
 	private static final int LIMIT = 1000;
-	
+	private static final int WRITE_QUEUE_SIZE = 10000;
+	private static final String FILE_PREFIX = "oplog-";
+	private static final String FILE_EXT = ".log";
+	public static final String TYPE_SUCCESS = "SUCCESS";
+
 	@Autowired
 	private JsonFormatter formatter;
-	
-	ConcurrentLinkedDeque<LogEntry> log  = new ConcurrentLinkedDeque<LogOperationService.LogEntry>();
-	
+
+	@Value("${opendb.logs.directory:}")
+	private String directory = "";
+
+	@Value("${opendb.logs.keepDays:14}")
+	private int keepDays = 14;
+
+	private final AtomicReferenceArray<LogEntry> ring = new AtomicReferenceArray<LogEntry>(LIMIT);
+	private final AtomicLong seq = new AtomicLong();
+	private volatile long clearedSeq = 0;
+	private final BlockingQueue<LogEntry> writeQueue = new ArrayBlockingQueue<LogEntry>(WRITE_QUEUE_SIZE);
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicBoolean writerStarted = new AtomicBoolean();
+	private volatile boolean stopped;
+	private Thread writerThread;
+	private File logDirectory;
+	// accessed only by writer thread
+	private Writer fileWriter;
+	private String fileDay;
+
+	@PostConstruct
+	public void init() {
+		if (!OUtils.isEmpty(directory)) {
+			logDirectory = new File(directory);
+			logDirectory.mkdirs();
+			if (!logDirectory.isDirectory()) {
+				LOGGER.error("Operation log directory is not available: " + logDirectory.getAbsolutePath());
+				logDirectory = null;
+			} else {
+				loadPersistedEntries();
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		stopped = true;
+		Thread t = writerThread;
+		if (t != null) {
+			t.interrupt();
+			t.join(TimeUnit.SECONDS.toMillis(5));
+		}
+	}
+
+	/**
+	 * @return last entries ordered from oldest to newest
+	 */
 	public Collection<LogEntry> getLog() {
-		return log;
+		return getLog(null, 0, Long.MAX_VALUE, LIMIT);
+	}
+
+	/**
+	 * @param type error type name or {@link #TYPE_SUCCESS}, null for any
+	 * @return last matching entries ordered from oldest to newest, entries older than ones kept in memory are read from files
+	 */
+	public List<LogEntry> getLog(String type, long from, long to, int limit) {
+		LinkedList<LogEntry> res = new LinkedList<LogEntry>();
+		long s = seq.get();
+		long oldestTime = Long.MAX_VALUE;
+		for (long i = s - 1; i >= Math.max(clearedSeq, s - LIMIT) && res.size() < limit; i--) {
+			LogEntry le = ring.get((int) (i % LIMIT));
+			if (le == null || le.seq != i) {
+				// not published yet or already overwritten
+				continue;
+			}
+			oldestTime = Math.min(oldestTime, le.utcTime);
+			if (matches(le, type, from, to)) {
+				res.addFirst(le);
+			}
+		}
+		if (res.size() < limit && logDirectory != null && from < oldestTime && clearedSeq == 0) {
+			List<LogEntry> persisted = readPersistedEntries(type, from, Math.min(to, oldestTime - 1), limit - res.size());
+			res.addAll(0, persisted);
+		}
+		return res;
+	}
+
+	public long getDroppedEntries() {
+		return dropped.get();
 	}
-	
+
 	@Override
 	public void logError(OpObject o, ErrorType e, String msg, Exception cause) {
 		LogEntry le = new LogEntry(cause, e, msg);
 		le.obj = o;
-		addLogEntry(le);		
+		addLogEntry(le);
 	}
-	
+
 	public void logSuccessBlock(OpBlock op, String message) {
 		logError(op, null, message, null);
 	}
-	
+
 
 	private void addLogEntry(LogEntry le) {
-		while(log.size() > LIMIT) {
-			log.removeLast();
+		le.seq = seq.getAndIncrement();
+		ring.set((int) (le.seq % LIMIT), le);
+		startWriter();
+		if (!writeQueue.offer(le)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	public void clearLogs() {
+		clearedSeq = seq.get();
+	}
+
+	private static boolean matches(LogEntry le, String type, long from, long to) {
+		if (le.utcTime < from || le.utcTime > to) {
+			return false;
 		}
-		log.add(le);
+		return type == null || type.equals(le.status == null ? TYPE_SUCCESS : le.status.name());
+	}
+
+	private void startWriter() {
+		if (writerStarted.get() || !writerStarted.compareAndSet(false, true)) {
+			return;
+		}
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "opendb-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	private void writeEntries() {
+		List<LogEntry> batch = new ArrayList<LogEntry>();
+		while (!stopped || !writeQueue.isEmpty()) {
+			try {
+				LogEntry le = stopped ? writeQueue.poll() : writeQueue.take();
+				if (le == null) {
+					break;
+				}
+				batch.add(le);
+				writeQueue.drainTo(batch);
+				for (LogEntry l : batch) {
+					printEntry(l);
+					persistEntry(l);
+				}
+				batch.clear();
+				if (fileWriter != null) {
+					fileWriter.flush();
+				}
+			} catch (InterruptedException e) {
+				// stopped, write the rest of the queue
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Failed to write operation log: " + e.getMessage(), e);
+				batch.clear();
+				closeFile();
+			}
+		}
+		closeFile();
+	}
+
+	private void printEntry(LogEntry le) {
 		if(le.status == null) {
-			LOGGER.info("SUCCESS: " + getMessage(le));
+			LOGGER.info("SUCCESS: " + le.message);
 		} else {
-			LOGGER.warn("FAILURE: " + getMessage(le), le.cause);
+			LOGGER.warn("FAILURE: " + le.message, le.cause);
 			if(le.obj != null && formatter != null) {
 				LOGGER.info("FAILURE OBJECT: " + formatter.objToJson(le.obj));
 			}
 		}
 	}
 
-	private String getMessage(LogEntry le) {
-		String msg = le.message;
-//		if(le.operation != null) {
-//			msg += String.format(", operation: %s, %s, %s", le.operation.getOperationType(), 
-//					le.operation.getName(), le.operation.getHash()); 
-//		}
-//		if(le.block != null) {
-//			msg += String.format(", block: %s, %s, %s", le.block.getBlockId() +"", 
-//					le.block.getDateString(), le.block.getHash());
-//		}
-		return msg;
+	private void persistEntry(LogEntry le) throws IOException {
+		if (logDirectory == null || formatter == null) {
+			return;
+		}
+		String day = formatDay(le.utcTime);
+		if (fileWriter == null || !day.equals(fileDay)) {
+			closeFile();
+			fileDay = day;
+			fileWriter = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(logDirectory, FILE_PREFIX + day + FILE_EXT), true), StandardCharsets.UTF_8));
+			deleteOldFiles();
+		}
+		PersistedLogEntry p = new PersistedLogEntry();
+		p.utcTime = le.utcTime;
+		p.status = le.status;
+		p.message = le.message;
+		p.causeMessage = le.causeMessage;
+		p.obj = le.obj == null ? null : formatter.toJsonElement(le.obj);
+		fileWriter.write(formatter.fullObjectToJson(p).replace('\n', ' '));
+		fileWriter.write('\n');
 	}
-	
-	public void clearLogs() {
-		log.clear();
+
+	private void closeFile() {
+		if (fileWriter != null) {
+			try {
+				fileWriter.close();
+			} catch (IOException e) {
+				LOGGER.warn("Failed to close operation log file: " + e.getMessage());
+			}
+			fileWriter = null;
+		}
+	}
+
+	private void deleteOldFiles() {
+		String oldestDay = formatDay(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(keepDays));
+		for (File f : listLogFiles()) {
+			if (getFileDay(f).compareTo(oldestDay) < 0 && !f.delete()) {
+				LOGGER.warn("Failed to delete old operation log " + f.getName());
+			}
+		}
+	}
+
+	// files are sorted from oldest to newest
+	private List<File> listLogFiles() {
+		File[] files = logDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXT);
+			}
+		});
+		List<File> res = files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(res);
+		return res;
+	}
+
+	private static String getFileDay(File f) {
+		return f.getName().substring(FILE_PREFIX.length(), f.getName().length() - FILE_EXT.length());
+	}
+
+	private static String formatDay(long time) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df.format(new Date(time));
+	}
+
+	private void loadPersistedEntries() {
+		List<LogEntry> entries = readPersistedEntries(null, 0, Long.MAX_VALUE, LIMIT);
+		for (LogEntry le : entries) {
+			le.seq = seq.getAndIncrement();
+			ring.set((int) (le.seq % LIMIT), le);
+		}
+		LOGGER.info(String.format("Loaded %d operation log entries from %s", entries.size(), logDirectory.getAbsolutePath()));
+	}
+
+	private List<LogEntry> readPersistedEntries(String type, long from, long to, int limit) {
+		LinkedList<LogEntry> res = new LinkedList<LogEntry>();
+		if (formatter == null) {
+			return res;
+		}
+		String fromDay = formatDay(from);
+		String toDay = formatDay(to == Long.MAX_VALUE ? System.currentTimeMillis() : to);
+		List<File> files = listLogFiles();
+		Collections.reverse(files);
+		for (File f : files) {
+			String day = getFileDay(f);
+			if (day.compareTo(toDay) > 0) {
+				continue;
+			}
+			if (day.compareTo(fromDay) < 0 || res.size() >= limit) {
+				break;
+			}
+			// entries of the file are ordered, so only last ones are kept
+			LinkedList<LogEntry> fileEntries = new LinkedList<LogEntry>();
+			try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (line.isEmpty()) {
+						continue;
+					}
+					LogEntry le = parseEntry(line);
+					if (matches(le, type, from, to)) {
+						fileEntries.add(le);
+						if (fileEntries.size() > limit - res.size()) {
+							fileEntries.removeFirst();
+						}
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.warn(String.format("Failed to read operation log %s: %s", f.getName(), e.getMessage()));
+			}
+			res.addAll(0, fileEntries);
+		}
+		return res;
+	}
+
+	private LogEntry parseEntry(String line) {
+		PersistedLogEntry p = formatter.fromJson(new StringReader(line), PersistedLogEntry.class);
+		LogEntry le = new LogEntry(null, p.status, p.message);
+		le.utcTime = p.utcTime;
+		le.causeMessage = p.causeMessage;
+		le.obj = p.obj == null ? null : formatter.parseObject(p.obj);
+		return le;
 	}
 
 	public static class OperationFailException extends RuntimeException {
@@ -81,28 +344,37 @@ public class LogOperationService implements ValidationListener {
 			super(l.message, l.cause);
 			this.logEntry = l;
 		}
-		
+
 		public LogEntry getLogEntry() {
 			return logEntry;
 		}
-		
+
 	}
-	
+
 	public static class LogEntry {
+		transient long seq;
 		OpObject obj;
 		String message;
 		ErrorType status;
 		Exception cause;
+		String causeMessage;
 		long utcTime;
-		
+
 		public LogEntry(Exception cause, ErrorType status, String message) {
 			this.utcTime = System.currentTimeMillis();
 			this.cause = cause;
+			this.causeMessage = cause == null ? null : cause.getMessage();
 			this.message = message;
 			this.status = status;
 		}
 	}
 
-	
+	private static class PersistedLogEntry {
+		long utcTime;
+		ErrorType status;
+		String message;
+		String causeMessage;
+		JsonElement obj;
+	}
 
 }
@@ -0,0 +1,203 @@
+package org.openplacereviews.opendb.service;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.openplacereviews.opendb.ops.LatencyHistogram;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
+import org.openplacereviews.opendb.ops.OpTypeMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.util.InstrumentedJdbcTemplate;
+import org.openplacereviews.opendb.util.InstrumentedJdbcTemplate.StatementType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bridges {@link PerformanceMetrics} and blockchain state into actuator registry (i.e. /actuator/prometheus).
+ * Every performance metric is exported as opendb.metric timer (count and total time) tagged by metric name
+ * and as opendb.metric.latency gauges with p50, p90, p99 and max of the last minute window.
+ * Operation type counters are exported as opendb.op.* tagged by op_type, rows and failures of db statements
+ * as opendb.db.* tagged by statement type.
+ */
+@Service
+public class PerformanceMetricsExporter implements MeterBinder {
+
+	private static final String TAG_METRIC = "metric";
+	private static final String TAG_QUANTILE = "quantile";
+	private static final String TAG_OP_TYPE = "op_type";
+	private static final String TAG_ACTION = "action";
+	private static final String TAG_ERROR = "error";
+	private static final String TAG_STATEMENT = "statement";
+	private static final int LATENCY_WINDOW = 1;
+	private static final long SNAPSHOT_TTL_MS = 1000;
+	// performance metrics are registered lazily by the code, so registry is checked for new ones periodically
+	private static final int REGISTER_NEW_METRICS_INTERVAL_MS = 30 * 1000;
+
+	@Autowired
+	private BlocksManager blocksManager;
+
+	@Autowired
+	private DBConsensusManager dbManager;
+
+	@Autowired
+	private HistoryManager historyManager;
+
+	@Autowired
+	private FileBackupManager backupManager;
+
+	@Autowired
+	private IPFSFileManager ipfsFileManager;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private volatile MeterRegistry registry;
+	private final Map<String, WindowSnapshot> exported = new ConcurrentHashMap<>();
+	private final Set<String> exportedOpTypes = ConcurrentHashMap.newKeySet();
+	private final Set<String> exportedRejections = ConcurrentHashMap.newKeySet();
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		this.registry = registry;
+		Gauge.builder("opendb.queue.size", this, e -> e.getBlockchain() == null ? 0 :
+				e.getBlockchain().getQueueOperations().size())
+				.description("Operations in the queue").register(registry);
+		Gauge.builder("opendb.blocks.depth", this, e -> e.getBlockchain() == null ? 0 :
+				e.getBlockchain().getDepth())
+				.description("Number of blocks in the chain").register(registry);
+		Gauge.builder("opendb.superblocks.depth", this, e -> e.getBlockchain() == null ? 0 :
+				e.getBlockchain().getSuperblocksDepth())
+				.description("Number of superblocks in the chain").register(registry);
+		Gauge.builder("opendb.superblocks.runtime", this, e -> e.getRuntimeSuperblocks())
+				.description("Number of superblocks kept in memory").register(registry);
+		Gauge.builder("opendb.blocks.orphaned", dbManager, m -> m.getOrphanedBlocks().size())
+				.description("Blocks saved in db but not part of the chain").register(registry);
+		Gauge.builder("opendb.cache.blocks", dbManager, m -> m.getCachedBlocksCount())
+				.description("Block headers cached in memory").register(registry);
+		Gauge.builder("opendb.cache.superblocks", dbManager, m -> m.getCachedDbSuperblocksCount())
+				.description("Db superblocks accessors cached in memory").register(registry);
+		Gauge.builder("opendb.history.queue", historyManager, m -> m.getHistoryQueueSize())
+				.description("Blocks which history is not yet written").register(registry);
+		Gauge.builder("opendb.backup.queue", backupManager, m -> m.getBackupQueueSize())
+				.description("Blocks which are not yet written to file backup").register(registry);
+		Gauge.builder("opendb.backup.lag", backupManager, m -> m.getBackupLag() / 1000.0)
+				.description("Time since the oldest block not written to file backup was queued").baseUnit("seconds")
+				.register(registry);
+		FunctionCounter.builder("opendb.backup.failed", backupManager, m -> m.getBackupFailedBlocks())
+				.description("Blocks which were not written to file backup").register(registry);
+		FunctionCounter.builder("opendb.ipfs.maintenance.processed", ipfsFileManager, m -> m.getMaintenanceProcessed())
+				.description("Resources processed by IPFS maintenance jobs").register(registry);
+		FunctionCounter.builder("opendb.ipfs.maintenance.failed", ipfsFileManager, m -> m.getMaintenanceFailed())
+				.description("Resources failed by IPFS maintenance jobs").register(registry);
+		if (jdbcTemplate instanceof InstrumentedJdbcTemplate) {
+			InstrumentedJdbcTemplate t = (InstrumentedJdbcTemplate) jdbcTemplate;
+			for (StatementType st : StatementType.values()) {
+				Tags tags = Tags.of(TAG_STATEMENT, st.getMetricName());
+				FunctionCounter.builder("opendb.db.rows", t, j -> j.getRows(st))
+						.tags(tags).description("Rows returned or updated by db statements").register(registry);
+				FunctionCounter.builder("opendb.db.errors", t, j -> j.getErrors(st))
+						.tags(tags).description("Failed db statements").register(registry);
+			}
+		}
+		registerNewMetrics();
+	}
+
+	@Scheduled(fixedRate = REGISTER_NEW_METRICS_INTERVAL_MS)
+	public void registerNewMetrics() {
+		MeterRegistry r = registry;
+		if (r == null) {
+			return;
+		}
+		for (PerformanceMetric pm : PerformanceMetrics.i().getMetrics().values()) {
+			if (!exported.containsKey(pm.getName())) {
+				WindowSnapshot s = new WindowSnapshot(pm);
+				exported.put(pm.getName(), s);
+				register(r, s);
+			}
+		}
+		for (OpTypeMetrics om : OpTypeMetrics.getMetrics().values()) {
+			if (exportedOpTypes.add(om.getType())) {
+				register(r, om);
+			}
+			// most of the error types never happen, so rejection counters are registered once they're not 0
+			for (ErrorType e : ErrorType.values()) {
+				if (om.getRejected(e) > 0 && exportedRejections.add(om.getType() + ":" + e.name())) {
+					FunctionCounter.builder("opendb.op.rejected", om, m -> m.getRejected(e))
+							.tags(Tags.of(TAG_OP_TYPE, om.getType(), TAG_ERROR, e.name()))
+							.description("Operations rejected by validation").register(r);
+				}
+			}
+		}
+	}
+
+	private void register(MeterRegistry r, OpTypeMetrics om) {
+		Tags tags = Tags.of(TAG_OP_TYPE, om.getType());
+		FunctionCounter.builder("opendb.op.accepted", om, m -> m.getOperations())
+				.tags(tags).description("Operations accepted to the queue").register(r);
+		FunctionCounter.builder("opendb.op.size", om, m -> m.getBytes())
+				.tags(tags).baseUnit("bytes").description("Size of operations accepted to the queue").register(r);
+		FunctionCounter.builder("opendb.op.objects", om, m -> m.getCreatedObjects())
+				.tags(tags.and(TAG_ACTION, "create")).description("Objects touched by accepted operations").register(r);
+		FunctionCounter.builder("opendb.op.objects", om, m -> m.getEditedObjects())
+				.tags(tags.and(TAG_ACTION, "edit")).description("Objects touched by accepted operations").register(r);
+		FunctionCounter.builder("opendb.op.objects", om, m -> m.getDeletedObjects())
+				.tags(tags.and(TAG_ACTION, "delete")).description("Objects touched by accepted operations").register(r);
+	}
+
+	private void register(MeterRegistry r, WindowSnapshot s) {
+		PerformanceMetric pm = s.metric;
+		Tags tags = Tags.of(TAG_METRIC, pm.getName());
+		FunctionTimer.builder("opendb.metric", pm, m -> m.getInvocations(0), m -> m.getDuration(0), TimeUnit.NANOSECONDS)
+				.tags(tags).description(pm.getDescription()).register(r);
+		Gauge.builder("opendb.metric.latency", s, w -> w.get().getPercentileMs(50) / 1e3)
+				.tags(tags.and(TAG_QUANTILE, "0.5")).baseUnit("seconds").register(r);
+		Gauge.builder("opendb.metric.latency", s, w -> w.get().getPercentileMs(90) / 1e3)
+				.tags(tags.and(TAG_QUANTILE, "0.9")).baseUnit("seconds").register(r);
+		Gauge.builder("opendb.metric.latency", s, w -> w.get().getPercentileMs(99) / 1e3)
+				.tags(tags.and(TAG_QUANTILE, "0.99")).baseUnit("seconds").register(r);
+		Gauge.builder("opendb.metric.latency", s, w -> w.get().getMaxNanos() / 1e9)
+				.tags(tags.and(TAG_QUANTILE, "1.0")).baseUnit("seconds").register(r);
+	}
+
+	private OpBlockChain getBlockchain() {
+		return blocksManager.getBlockchain();
+	}
+
+	private int getRuntimeSuperblocks() {
+		int cnt = 0;
+		OpBlockChain p = getBlockchain();
+		while (p != null && !p.isNullBlock() && !p.isDbAccessed()) {
+			cnt++;
+			p = p.getParent();
+		}
+		return cnt;
+	}
+
+	// window histogram is merged on read, so it is shared by all gauges of the metric during the scrape
+	private static class WindowSnapshot {
+		private final PerformanceMetric metric;
+		private LatencyHistogram histogram;
+		private long time;
+
+		WindowSnapshot(PerformanceMetric metric) {
+			this.metric = metric;
+		}
+
+		synchronized LatencyHistogram get() {
+			long now = System.currentTimeMillis();
+			if (histogram == null || now - time > SNAPSHOT_TTL_MS) {
+				histogram = metric.getHistogram(LATENCY_WINDOW);
+				time = now;
+			}
+			return histogram;
+		}
+	}
+}
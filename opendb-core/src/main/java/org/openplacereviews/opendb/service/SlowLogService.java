@@ -0,0 +1,159 @@
+package org.openplacereviews.opendb.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openplacereviews.opendb.ops.OpBlockchainRules.SlowOperationListener;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.OpValidationTrace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps last operations which validation took longer than threshold and last slow db queries,
+ * so periodic latency spikes could be matched with particular operations or sql.
+ */
+@Service
+public class SlowLogService implements SlowOperationListener {
+
+	protected static final Log LOGGER = LogFactory.getLog(SlowLogService.class);
+
+	private static final int MAX_PARAM_LENGTH = 100;
+
+	@Value("${opendb.slowlog.opThresholdMs:200}")
+	private long opThresholdMs = 200;
+
+	@Value("${opendb.slowlog.queryThresholdMs:500}")
+	private long queryThresholdMs = 500;
+
+	@Value("${opendb.slowlog.size:200}")
+	private int size = 200;
+
+	private final ConcurrentLinkedDeque<SlowOperationEntry> operations = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger operationsSize = new AtomicInteger();
+	private final ConcurrentLinkedDeque<SlowQueryEntry> queries = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger queriesSize = new AtomicInteger();
+
+	public long getOpThresholdMs() {
+		return opThresholdMs;
+	}
+
+	public long getQueryThresholdMs() {
+		return queryThresholdMs;
+	}
+
+	public Collection<SlowOperationEntry> getOperations() {
+		return operations;
+	}
+
+	public Collection<SlowQueryEntry> getQueries() {
+		return queries;
+	}
+
+	public void clear() {
+		operations.clear();
+		operationsSize.set(0);
+		queries.clear();
+		queriesSize.set(0);
+	}
+
+	@Override
+	public void logSlowOperation(OpOperation op, OpValidationTrace trace, long durationNs, boolean valid) {
+		SlowOperationEntry e = new SlowOperationEntry();
+		e.hash = op.getRawHash();
+		e.type = op.getType();
+		e.valid = valid;
+		e.durationMs = toMs(durationNs);
+		e.phasesMs.put("prepare", toMs(trace.getPrepareNs()));
+		e.phasesMs.put("prepare.delete", toMs(trace.getPrepareDeleteNs()));
+		e.phasesMs.put("prepare.create", toMs(trace.getPrepareCreateNs()));
+		e.phasesMs.put("prepare.edit", toMs(trace.getPrepareEditNs()));
+		e.phasesMs.put("prepare.ref", toMs(trace.getPrepareRefNs()));
+		e.phasesMs.put("validate", toMs(trace.getValidateNs()));
+		e.phasesMs.put("validate.sig", toMs(trace.getSigNs()));
+		for (int i = 0; i < trace.getRulesCount(); i++) {
+			e.rulesMs.put(trace.getRuleId(i), toMs(trace.getRuleNs(i)));
+		}
+		LOGGER.warn(String.format("Slow operation %s '%s' validated in %.1f ms", e.type, e.hash, e.durationMs));
+		add(operations, operationsSize, e);
+	}
+
+	/**
+	 * @param startNs System.nanoTime() before query was executed
+	 */
+	public boolean isSlowQuery(long startNs) {
+		return System.nanoTime() - startNs > TimeUnit.MILLISECONDS.toNanos(queryThresholdMs);
+	}
+
+	/**
+	 * Records query if it took longer than threshold
+	 * @param rows number of rows returned or updated, -1 if unknown
+	 */
+	public void logQuery(String sql, Object[] params, int rows, long startNs) {
+		long durationNs = System.nanoTime() - startNs;
+		if (durationNs <= TimeUnit.MILLISECONDS.toNanos(queryThresholdMs)) {
+			return;
+		}
+		SlowQueryEntry e = new SlowQueryEntry();
+		e.sql = sql;
+		e.rows = rows;
+		e.durationMs = toMs(durationNs);
+		if (params != null) {
+			for (Object p : params) {
+				e.params.add(formatParam(p));
+			}
+		}
+		LOGGER.warn(String.format("Slow query (%.1f ms, %d rows): %s", e.durationMs, rows, sql));
+		add(queries, queriesSize, e);
+	}
+
+	private <T> void add(ConcurrentLinkedDeque<T> log, AtomicInteger logSize, T e) {
+		log.addFirst(e);
+		if (logSize.incrementAndGet() > size) {
+			if (log.pollLast() != null) {
+				logSize.decrementAndGet();
+			}
+		}
+	}
+
+	private static String formatParam(Object p) {
+		String s;
+		if (p instanceof byte[]) {
+			s = "bytes[" + ((byte[]) p).length + "]";
+		} else if (p instanceof Object[]) {
+			s = Arrays.toString((Object[]) p);
+		} else {
+			s = String.valueOf(p);
+		}
+		if (s.length() > MAX_PARAM_LENGTH) {
+			s = s.substring(0, MAX_PARAM_LENGTH) + "...";
+		}
+		return s;
+	}
+
+	private static double toMs(long ns) {
+		return ns / 1e6;
+	}
+
+	public static class SlowOperationEntry {
+		public long utcTime = System.currentTimeMillis();
+		public String hash;
+		public String type;
+		public boolean valid;
+		public double durationMs;
+		public Map<String, Double> phasesMs = new LinkedHashMap<>();
+		public Map<String, Double> rulesMs = new LinkedHashMap<>();
+	}
+
+	public static class SlowQueryEntry {
+		public long utcTime = System.currentTimeMillis();
+		public String sql;
+		public List<String> params = new ArrayList<>();
+		public int rows;
+		public double durationMs;
+	}
+}
@@ -0,0 +1,360 @@
+package org.openplacereviews.opendb.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openplacereviews.opendb.SecUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archive of blocks: data file with independently compressed (deflate) blocks and index file with offsets of the blocks.
+ * Frame of the data file: magic, block id, raw block hash (32 bytes), raw previous block hash (32 bytes, zeros for
+ * the genesis block), compressed length, length, crc32 of compressed bytes, compressed block. Index entry: block id,
+ * raw block hash, raw previous block hash, frame offset, compressed length, so the chain of blocks could be built
+ * without reading blocks.
+ * Data file is the source of truth: missing index entries are restored and partially written frame is truncated on open.
+ */
+public class BlockArchive implements Closeable {
+
+	protected static final Log LOGGER = LogFactory.getLog(BlockArchive.class);
+
+	public static final String DATA_EXT = ".blocks";
+	public static final String INDEX_EXT = ".idx";
+	private static final int MAGIC = 0x4f50424b;
+	private static final int HASH_SIZE = 32;
+	private static final int FRAME_HEADER_SIZE = 4 + 4 + HASH_SIZE + HASH_SIZE + 4 + 4 + 4;
+	private static final int INDEX_ENTRY_SIZE = 4 + HASH_SIZE + HASH_SIZE + 8 + 4;
+	private static final byte[] EMPTY_HASH = new byte[HASH_SIZE];
+
+	private final File dataFile;
+	private final File indexFile;
+	private final boolean writable;
+	private final List<Entry> entries = new ArrayList<>();
+	private RandomAccessFile data;
+	private RandomAccessFile index;
+	private long dataSize;
+
+	public static class Entry {
+		private final int blockId;
+		private final byte[] hash;
+		private final byte[] prevHash;
+		private final long offset;
+		private final int length;
+
+		private Entry(int blockId, byte[] hash, byte[] prevHash, long offset, int length) {
+			this.blockId = blockId;
+			this.hash = hash;
+			this.prevHash = prevHash;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int getBlockId() {
+			return blockId;
+		}
+
+		public String getRawHash() {
+			return SecUtils.hexify(hash);
+		}
+
+		/**
+		 * @return raw hash of the previous block, empty for the genesis block
+		 */
+		public String getPrevRawHash() {
+			return Arrays.equals(prevHash, EMPTY_HASH) ? "" : SecUtils.hexify(prevHash);
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		private long getEnd() {
+			return offset + FRAME_HEADER_SIZE + length;
+		}
+	}
+
+	private BlockArchive(File dataFile, boolean writable) {
+		this.dataFile = dataFile;
+		String name = dataFile.getName();
+		if (name.endsWith(DATA_EXT)) {
+			name = name.substring(0, name.length() - DATA_EXT.length());
+		}
+		this.indexFile = new File(dataFile.getParentFile(), name + INDEX_EXT);
+		this.writable = writable;
+	}
+
+	/**
+	 * Opens archive for reading or appending, archive is created on first append.
+	 */
+	public static BlockArchive open(File dataFile, boolean writable) throws IOException {
+		BlockArchive a = new BlockArchive(dataFile, writable);
+		try {
+			a.load();
+		} catch (IOException | RuntimeException e) {
+			a.close();
+			throw e;
+		}
+		return a;
+	}
+
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<>(entries));
+	}
+
+	public synchronized List<Entry> find(int blockId) {
+		List<Entry> res = new ArrayList<>(1);
+		for (Entry e : entries) {
+			if (e.blockId == blockId) {
+				res.add(e);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @param prevRawHash raw hash of the previous block, empty for the genesis block
+	 */
+	public synchronized Entry append(int blockId, String rawHash, String prevRawHash, byte[] content) throws IOException {
+		if (!writable) {
+			throw new IllegalStateException("Archive is opened for reading: " + dataFile.getName());
+		}
+		byte[] hash = SecUtils.getHashBytes(rawHash);
+		if (hash == null || hash.length != HASH_SIZE) {
+			throw new IllegalArgumentException(String.format("Unexpected block hash '%s'", rawHash));
+		}
+		byte[] prevHash = prevRawHash == null || prevRawHash.isEmpty() ? EMPTY_HASH : SecUtils.getHashBytes(prevRawHash);
+		if (prevHash == null || prevHash.length != HASH_SIZE) {
+			throw new IllegalArgumentException(String.format("Unexpected previous block hash '%s'", prevRawHash));
+		}
+		byte[] compressed = compress(content);
+		CRC32 crc = new CRC32();
+		crc.update(compressed);
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + compressed.length);
+		frame.putInt(MAGIC).putInt(blockId).put(hash).put(prevHash).putInt(compressed.length).putInt(content.length)
+				.putInt((int) crc.getValue()).put(compressed);
+		if (data == null) {
+			dataFile.getParentFile().mkdirs();
+			data = new RandomAccessFile(dataFile, "rw");
+			index = new RandomAccessFile(indexFile, "rw");
+			// index without data file is stale
+			index.setLength(0);
+		}
+		Entry e = new Entry(blockId, hash, prevHash, dataSize, compressed.length);
+		writeFully(data.getChannel(), frame, dataSize);
+		dataSize = e.getEnd();
+		writeIndexEntry(e);
+		entries.add(e);
+		return e;
+	}
+
+	public synchronized byte[] read(Entry e) throws IOException {
+		if (data == null) {
+			throw new FileNotFoundException(dataFile.getAbsolutePath());
+		}
+		ByteBuffer bf = ByteBuffer.allocate(FRAME_HEADER_SIZE + e.length);
+		readFully(data.getChannel(), bf, e.offset);
+		bf.flip();
+		Frame f = readFrameHeader(bf);
+		if (f == null || f.blockId != e.blockId || f.compressedLength != e.length) {
+			throw new IOException(String.format("Broken frame of block %d at %d in '%s'", e.blockId, e.offset, dataFile.getName()));
+		}
+		byte[] compressed = new byte[e.length];
+		bf.get(compressed);
+		CRC32 crc = new CRC32();
+		crc.update(compressed);
+		if ((int) crc.getValue() != f.crc) {
+			throw new IOException(String.format("Checksum mismatch of block %d in '%s'", e.blockId, dataFile.getName()));
+		}
+		return decompress(compressed, f.length);
+	}
+
+	/**
+	 * Flushes written blocks to the disk.
+	 */
+	public synchronized void sync() throws IOException {
+		if (data != null && writable) {
+			data.getChannel().force(false);
+			index.getChannel().force(false);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (data != null) {
+				data.close();
+			}
+		} finally {
+			data = null;
+			if (index != null) {
+				index.close();
+				index = null;
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		if (!dataFile.exists()) {
+			return;
+		}
+		data = new RandomAccessFile(dataFile, writable ? "rw" : "r");
+		long length = data.length();
+		if (indexFile.exists()) {
+			try (RandomAccessFile idx = new RandomAccessFile(indexFile, "r")) {
+				ByteBuffer bf = ByteBuffer.allocate((int) (idx.length() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE));
+				readFully(idx.getChannel(), bf, 0);
+				bf.flip();
+				while (bf.remaining() >= INDEX_ENTRY_SIZE) {
+					int blockId = bf.getInt();
+					byte[] hash = new byte[HASH_SIZE];
+					bf.get(hash);
+					byte[] prevHash = new byte[HASH_SIZE];
+					bf.get(prevHash);
+					Entry e = new Entry(blockId, hash, prevHash, bf.getLong(), bf.getInt());
+					if (e.getEnd() > length) {
+						break;
+					}
+					entries.add(e);
+				}
+			}
+		}
+		dataSize = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).getEnd();
+		boolean rebuildIndex = indexFile.length() != (long) entries.size() * INDEX_ENTRY_SIZE;
+		// restore entries of the blocks which were written after index
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		while (dataSize + FRAME_HEADER_SIZE <= length) {
+			header.clear();
+			readFully(data.getChannel(), header, dataSize);
+			header.flip();
+			Frame f = readFrameHeader(header);
+			if (f == null || dataSize + FRAME_HEADER_SIZE + f.compressedLength > length) {
+				break;
+			}
+			Entry e = new Entry(f.blockId, f.hash, f.prevHash, dataSize, f.compressedLength);
+			entries.add(e);
+			dataSize = e.getEnd();
+			rebuildIndex = true;
+		}
+		if (!writable) {
+			return;
+		}
+		index = new RandomAccessFile(indexFile, "rw");
+		if (dataSize < length) {
+			LOGGER.warn(String.format("Truncate incomplete block frame in '%s' at %d", dataFile.getName(), dataSize));
+			data.setLength(dataSize);
+		}
+		if (rebuildIndex) {
+			LOGGER.info(String.format("Restore index of '%s' with %d blocks", dataFile.getName(), entries.size()));
+			index.setLength(0);
+			for (Entry e : entries) {
+				writeIndexEntry(e);
+			}
+		}
+	}
+
+	private void writeIndexEntry(Entry e) throws IOException {
+		ByteBuffer bf = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		bf.putInt(e.blockId).put(e.hash).put(e.prevHash).putLong(e.offset).putInt(e.length);
+		writeFully(index.getChannel(), bf, index.length());
+	}
+
+	private static class Frame {
+		int blockId;
+		byte[] hash;
+		byte[] prevHash;
+		int compressedLength;
+		int length;
+		int crc;
+	}
+
+	/**
+	 * @return header of the frame or null if buffer doesn't start with a complete frame header
+	 */
+	private static Frame readFrameHeader(ByteBuffer bf) {
+		if (bf.remaining() < FRAME_HEADER_SIZE || bf.getInt() != MAGIC) {
+			return null;
+		}
+		Frame f = new Frame();
+		f.blockId = bf.getInt();
+		f.hash = new byte[HASH_SIZE];
+		bf.get(f.hash);
+		f.prevHash = new byte[HASH_SIZE];
+		bf.get(f.prevHash);
+		f.compressedLength = bf.getInt();
+		f.length = bf.getInt();
+		f.crc = bf.getInt();
+		return f.compressedLength < 0 || f.length < 0 ? null : f;
+	}
+
+	private static byte[] compress(byte[] content) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(content);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private byte[] decompress(byte[] compressed, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			byte[] res = new byte[length];
+			int off = 0;
+			while (off < length && !inflater.finished()) {
+				int n = inflater.inflate(res, off, length - off);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				off += n;
+			}
+			if (off != length) {
+				throw new IOException(String.format("Unexpected length of block in '%s'", dataFile.getName()));
+			}
+			return res;
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer bf, long position) throws IOException {
+		bf.flip();
+		while (bf.hasRemaining()) {
+			position += ch.write(bf, position);
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer bf, long position) throws IOException {
+		while (bf.hasRemaining()) {
+			int n = ch.read(bf, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package org.openplacereviews.opendb.util;
+
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.*;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * JdbcTemplate which measures every statement by its type (db.select, db.insert, ...) including time to get connection
+ * from the pool, and counts returned / updated rows and failures.
+ * Rows are counted when they're known from the result (lists, update counts), so statements processed by
+ * RowCallbackHandler or custom ResultSetExtractor are measured only by time.
+ */
+public class InstrumentedJdbcTemplate extends JdbcTemplate {
+
+	public enum StatementType {
+		SELECT, INSERT, UPDATE, DELETE, DDL, OTHER, CONNECTION;
+
+		private final String metricName = name().toLowerCase();
+
+		public String getMetricName() {
+			return metricName;
+		}
+	}
+
+	private static final StatementType[] TYPES = StatementType.values();
+	private final PerformanceMetric[] metrics = new PerformanceMetric[TYPES.length];
+	private final AtomicLongArray rows = new AtomicLongArray(TYPES.length);
+	private final AtomicLongArray errors = new AtomicLongArray(TYPES.length);
+
+	public InstrumentedJdbcTemplate(DataSource dataSource) {
+		super(dataSource);
+		for (StatementType t : TYPES) {
+			metrics[t.ordinal()] = PerformanceMetrics.i().getMetric("db", t.getMetricName());
+		}
+	}
+
+	public long getRows(StatementType t) {
+		return rows.get(t.ordinal());
+	}
+
+	public long getErrors(StatementType t) {
+		return errors.get(t.ordinal());
+	}
+
+	public PerformanceMetric getMetric(StatementType t) {
+		return metrics[t.ordinal()];
+	}
+
+	@Override
+	public <T> T execute(ConnectionCallback<T> action) throws DataAccessException {
+		return measure(StatementType.CONNECTION, () -> super.execute(action));
+	}
+
+	@Override
+	public <T> T execute(StatementCallback<T> action) throws DataAccessException {
+		return measure(getStatementType(action), () -> super.execute(action));
+	}
+
+	@Override
+	public <T> T execute(PreparedStatementCreator psc, PreparedStatementCallback<T> action) throws DataAccessException {
+		return measure(getStatementType(psc), () -> super.execute(psc, action));
+	}
+
+	@Override
+	public <T> T execute(CallableStatementCreator csc, CallableStatementCallback<T> action) throws DataAccessException {
+		return measure(getStatementType(csc), () -> super.execute(csc, action));
+	}
+
+	private <T> T measure(StatementType t, Supplier<T> call) {
+		int ind = t.ordinal();
+		long m = metrics[ind].startNs();
+		boolean success = false;
+		try {
+			T res = call.get();
+			success = true;
+			long r = countRows(res);
+			if (r > 0) {
+				rows.addAndGet(ind, r);
+			}
+			return res;
+		} finally {
+			metrics[ind].capture(m);
+			if (!success) {
+				errors.incrementAndGet(ind);
+			}
+		}
+	}
+
+	private static long countRows(Object res) {
+		if (res instanceof Collection) {
+			return ((Collection<?>) res).size();
+		} else if (res instanceof Integer) {
+			return (Integer) res;
+		} else if (res instanceof int[]) {
+			long s = 0;
+			for (int r : (int[]) res) {
+				// batch statements could return SUCCESS_NO_INFO
+				if (r > 0) {
+					s += r;
+				}
+			}
+			return s;
+		}
+		return 0;
+	}
+
+	static StatementType getStatementType(Object sqlProvider) {
+		if (!(sqlProvider instanceof SqlProvider)) {
+			return StatementType.OTHER;
+		}
+		return getStatementType(((SqlProvider) sqlProvider).getSql());
+	}
+
+	static StatementType getStatementType(String sql) {
+		if (sql == null) {
+			return StatementType.OTHER;
+		}
+		int s = 0;
+		while (s < sql.length() && Character.isWhitespace(sql.charAt(s))) {
+			s++;
+		}
+		if (startsWith(sql, s, "select")) {
+			return StatementType.SELECT;
+		} else if (startsWith(sql, s, "insert")) {
+			return StatementType.INSERT;
+		} else if (startsWith(sql, s, "update")) {
+			return StatementType.UPDATE;
+		} else if (startsWith(sql, s, "delete")) {
+			return StatementType.DELETE;
+		} else if (startsWith(sql, s, "create") || startsWith(sql, s, "alter") || startsWith(sql, s, "drop")) {
+			return StatementType.DDL;
+		}
+		return StatementType.OTHER;
+	}
+
+	private static boolean startsWith(String sql, int offset, String keyword) {
+		return sql.regionMatches(true, offset, keyword, 0, keyword.length());
+	}
+}
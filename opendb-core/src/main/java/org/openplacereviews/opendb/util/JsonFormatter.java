@@ -103,6 +103,10 @@ public class JsonFormatter {
 		return gson.fromJson(opJson, OpObject.class);
 	}
 	
+	public OpObject parseObject(JsonElement opJson) {
+		return gson.fromJson(opJson, OpObject.class);
+	}
+	
 	public OpBlock parseBlock(String opJson) {
 		return gson.fromJson(opJson, OpBlock.class);
 	}
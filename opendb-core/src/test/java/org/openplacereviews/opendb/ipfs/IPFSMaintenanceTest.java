@@ -0,0 +1,219 @@
+package org.openplacereviews.opendb.ipfs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openplacereviews.opendb.dto.ResourceDTO;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.service.DBConsensusManager;
+import org.openplacereviews.opendb.service.IPFSFileManager;
+import org.openplacereviews.opendb.service.IPFSService;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class IPFSMaintenanceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DBConsensusManager dbManager;
+	private FakeIPFSService ipfsService;
+	private IPFSFileManager fileManager;
+	// hash -> resource, active resources are stored with cid
+	private final TreeMap<String, ResourceDTO> resources = new TreeMap<>();
+	private final Set<String> activeResources = new HashSet<>();
+	private final Map<String, String> settings = new HashMap<>();
+
+	private static final int CONTENT_SIZE = 768 * 1024;
+
+	/**
+	 * In-process IPFS node: cid of the content is its file name.
+	 */
+	private static class FakeIPFSService extends IPFSService {
+		final Set<String> pinned = ConcurrentHashMap.newKeySet();
+		final Set<String> written = ConcurrentHashMap.newKeySet();
+		final Set<String> pinThreads = ConcurrentHashMap.newKeySet();
+
+		@Override
+		public boolean isRunning() {
+			return true;
+		}
+
+		@Override
+		public String writeContent(File content) {
+			String cid = content.getName().substring(0, content.getName().lastIndexOf('.'));
+			written.add(cid);
+			return cid;
+		}
+
+		@Override
+		public boolean pin(String cid) {
+			pinThreads.add(Thread.currentThread().getName());
+			return pinned.add(cid);
+		}
+
+		@Override
+		public boolean unpin(String cid) {
+			return pinned.remove(cid);
+		}
+
+		@Override
+		public List<String> getPinnedResources() {
+			return new ArrayList<>(pinned);
+		}
+
+		@Override
+		public void clearNotPinnedImagesFromIPFSLocalStorage() {
+		}
+
+		@Override
+		public OutputStream read(String id, OutputStream output) {
+			try {
+				output.write(new byte[CONTENT_SIZE]);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return output;
+		}
+	}
+
+	@Before
+	public void beforeEachTestMethod() {
+		dbManager = mock(DBConsensusManager.class);
+		ipfsService = new FakeIPFSService();
+		fileManager = new IPFSFileManager();
+		ReflectionTestUtils.setField(fileManager, "dbManager", dbManager);
+		ReflectionTestUtils.setField(fileManager, "ipfsService", ipfsService);
+		ReflectionTestUtils.setField(fileManager, "folder", folder.getRoot());
+		ReflectionTestUtils.setField(fileManager, "maintenanceBatch", 100);
+		ReflectionTestUtils.setField(fileManager, "maintenanceParallelism", 4);
+
+		when(dbManager.getResources(anyBoolean(), anyInt(), anyString(), anyInt())).thenAnswer(i -> {
+			boolean active = i.getArgument(0);
+			String from = i.getArgument(2);
+			int limit = i.getArgument(3);
+			List<ResourceDTO> page = new ArrayList<>();
+			synchronized (resources) {
+				for (ResourceDTO r : resources.tailMap(from, false).values()) {
+					if (activeResources.contains(r.getHash()) == active && page.size() < limit) {
+						page.add(r);
+					}
+				}
+			}
+			return page;
+		});
+		doAnswer(i -> {
+			List<ResourceDTO> removed = i.getArgument(0);
+			synchronized (resources) {
+				removed.forEach(r -> resources.remove(r.getHash()));
+			}
+			return null;
+		}).when(dbManager).removeResources(anyList());
+		when(dbManager.getSetting(anyString())).thenAnswer(i -> settings.get(i.<String>getArgument(0)));
+		when(dbManager.setSetting(anyString(), anyString())).thenAnswer(i -> {
+			settings.put(i.getArgument(0), i.getArgument(1));
+			return true;
+		});
+	}
+
+	private void addResources(int count, boolean active) throws IOException {
+		for (int i = 0; i < count; i++) {
+			String hash = String.format("%064x", resources.size() + 1);
+			ResourceDTO r = ResourceDTO.of(hash, "jpg", hash);
+			resources.put(hash, r);
+			if (active) {
+				activeResources.add(hash);
+			}
+			fileManager.getFileByHash(hash, "jpg").createNewFile();
+		}
+	}
+
+	@Test
+	public void testUploadMissingResources() throws IOException {
+		addResources(250, true);
+		addResources(10, false);
+		int i = 0;
+		for (String hash : activeResources) {
+			if (i++ % 5 == 0) {
+				ipfsService.pinned.add(hash);
+			}
+		}
+
+		List<ResourceDTO> uploaded = fileManager.uploadMissingResourcesToIPFS();
+
+		assertEquals(200, uploaded.size());
+		assertEquals(200, ipfsService.written.size());
+		assertEquals(activeResources, ipfsService.pinned);
+		assertEquals("", settings.get("opendb.ipfs.maintenance.upload-missing"));
+		assertEquals(250, fileManager.getMaintenanceProcessed());
+	}
+
+	@Test
+	public void testRemoveUnusedResourcesFromCheckpoint() throws IOException {
+		addResources(250, false);
+		ipfsService.pinned.addAll(resources.keySet());
+		// previous run was interrupted after first page
+		String checkpoint = String.format("%064x", 100);
+		settings.put("opendb.ipfs.maintenance.remove-unused", checkpoint);
+
+		List<ResourceDTO> removed = fileManager.removeUnusedImageObjectsFromSystemAndUnpinningThem();
+
+		assertEquals(150, removed.size());
+		assertEquals(100, resources.size());
+		assertEquals(checkpoint, resources.lastKey());
+		assertEquals(100, ipfsService.pinned.size());
+		assertEquals(true, fileManager.getFileByHash(resources.lastKey(), "jpg").exists());
+		assertEquals(false, fileManager.getFileByHash(String.format("%064x", 101), "jpg").exists());
+		// db is updated by page
+		verify(dbManager, times(2)).removeResources(anyList());
+		assertEquals("", settings.get("opendb.ipfs.maintenance.remove-unused"));
+	}
+
+	@Test
+	public void testBlockResourcesArePinnedWithoutMaintenanceRate() {
+		ReflectionTestUtils.setField(fileManager, "maintenanceRate", 1);
+		List<String> hashes = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			hashes.add(String.format("%064x", i + 1));
+		}
+		OpOperation op = mock(OpOperation.class);
+		when(op.getResourceHashes()).thenReturn(hashes);
+		when(dbManager.activateResources(anyCollection())).thenReturn(hashes);
+
+		fileManager.processOperations(Collections.singletonList(op));
+
+		assertEquals(new HashSet<>(hashes), ipfsService.pinned);
+		assertEquals(Collections.singleton("ipfs-pin"), ipfsService.pinThreads);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedFilesAreRemovedFromCache() throws IOException {
+		ReflectionTestUtils.setField(fileManager, "cacheMaxSizeMb", 2);
+		File a = fileManager.getFileByCid("QmA");
+		File b = fileManager.getFileByCid("QmB");
+		long now = System.currentTimeMillis();
+		a.setLastModified(now - 20000);
+		b.setLastModified(now - 10000);
+		// cached file is used again
+		assertEquals(a, fileManager.getFileByCid("QmA"));
+
+		File c = fileManager.getFileByCid("QmC");
+		assertTrue(a.exists());
+		assertFalse(b.exists());
+		assertTrue(c.exists());
+		assertEquals(CONTENT_SIZE, c.length());
+	}
+}
@@ -0,0 +1,51 @@
+package org.openplacereviews.opendb.ops;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketBounds() {
+		for (long micros = 0; micros < 100000; micros++) {
+			int ind = LatencyHistogram.bucketIndex(micros);
+			assertTrue(LatencyHistogram.bucketLowerBound(ind) <= micros);
+			assertTrue(LatencyHistogram.bucketLowerBound(ind + 1) > micros);
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex((1L << 40) - 1));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		// 1..1000 ms
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i * 1000000L);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(500.5, h.getAvgMs(), 0.001);
+		assertEquals(1000, h.getMaxNanos() / 1000000);
+		assertEquals(500, h.getPercentileMs(50), 500 * 0.07);
+		assertEquals(900, h.getPercentileMs(90), 900 * 0.07);
+		assertEquals(990, h.getPercentileMs(99), 990 * 0.07);
+		assertEquals(1000, h.getPercentileMs(100), 0.001);
+	}
+
+	@Test
+	public void testAdd() {
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			a.record(1000000L);
+		}
+		b.record(5000000000L);
+		LatencyHistogram sum = new LatencyHistogram();
+		sum.add(a);
+		sum.add(b);
+		assertEquals(100, sum.getCount());
+		assertEquals(1, sum.getPercentileMs(99), 0.07);
+		assertEquals(5000, sum.getPercentileMs(100), 0.001);
+	}
+}
@@ -195,6 +195,64 @@ public class OpBlockchainEditOpTest {
 		assertEquals(123, opObject.getFieldByExpr("def"));
 	}
 
+	@Test
+	public void testEditSetPreviouslyAbsentField() throws FailedVerificationException {
+		OpOperation editOp = new OpOperation();
+		editOp.setType(OP_ID);
+		editOp.setSignedBy(serverName);
+
+		OpObject editObj = new OpObject();
+		editObj.setId(OBJ_ID);
+		TreeMap<String, Object> changed = new TreeMap<>();
+		TreeMap<String, Object> setObj = new TreeMap<>();
+		setObj.put("set", "Mark");
+		changed.put("cat", setObj);
+		editObj.putObjectValue(OpObject.F_CHANGE, changed);
+		editObj.putObjectValue(OpObject.F_CURRENT, new TreeMap<>());
+
+		editOp.addEdited(editObj);
+		blc.getRules().generateHashAndSign(editOp, serverKeyPair);
+		editOp.makeImmutable();
+		blc.addOperation(editOp);
+
+		// delta keeps absent previous value and operation is copied with it
+		TreeMap<String, Object> delta = new TreeMap<>();
+		delta.put("cat", null);
+		assertEquals(delta, editObj.getCacheObject(OpObject.F_DELTA));
+		OpObject copy = new OpOperation(editOp, true).getEdited().get(0);
+		assertEquals(delta, copy.getCacheObject(OpObject.F_DELTA));
+		assertEquals("Mark", blc.getObjectByName(OP_ID, OBJ_ID).getFieldByExpr("cat"));
+	}
+
+	@Test
+	public void testEditSetResourceReference() throws FailedVerificationException {
+		OpOperation editOp = new OpOperation();
+		editOp.setType(OP_ID);
+		editOp.setSignedBy(serverName);
+
+		OpObject editObj = new OpObject();
+		editObj.setId(OBJ_ID);
+		TreeMap<String, Object> changed = new TreeMap<>();
+		TreeMap<String, Object> image = new TreeMap<>();
+		image.put(OpOperation.F_TYPE, OpOperation.RESOURCE_TYPE);
+		image.put("hash", "sha256:0102");
+		image.put("cid", "Qm01");
+		TreeMap<String, Object> setObj = new TreeMap<>();
+		setObj.put("set", Arrays.asList(image));
+		changed.put("images", setObj);
+		editObj.putObjectValue(OpObject.F_CHANGE, changed);
+		editObj.putObjectValue(OpObject.F_CURRENT, new TreeMap<>());
+
+		editOp.addEdited(editObj);
+		blc.getRules().generateHashAndSign(editOp, serverKeyPair);
+		editOp.makeImmutable();
+		blc.addOperation(editOp);
+
+		// references are collected on validation and copied with operation
+		assertEquals(Collections.singletonList("sha256:0102"), editOp.getCacheObject(OpOperation.F_RESOURCES));
+		assertEquals(Collections.singletonList("sha256:0102"), new OpOperation(editOp, true).getResourceHashes());
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testEditSetOpWithoutExistedCurrentValue() throws FailedVerificationException {
 		OpOperation editOp = new OpOperation();
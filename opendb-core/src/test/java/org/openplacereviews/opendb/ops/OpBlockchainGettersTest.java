@@ -9,6 +9,7 @@ import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.List;
@@ -124,6 +125,31 @@ public class OpBlockchainGettersTest {
 		assertFalse(blockHeaders.isEmpty());
 	}
 
+	@Test
+	public void testGetBlockHeadersByIdRange() throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		blc.removeAllQueueOperations();
+		// blocks 0-1 are in the parent chain, blocks 2-3 are in the child chain
+		OpBlockChain chain = blc;
+		for (int i = 0; i < 4; i++) {
+			if (i == 2) {
+				chain = new OpBlockChain(blc, blc.getRules());
+			}
+			for (OpOperation o : ops.subList(ops.size() * i / 4, ops.size() * (i + 1) / 4)) {
+				chain.addOperation(o);
+			}
+			assertNotNull(chain.createBlock(serverName, serverKeyPair));
+		}
+
+		List<OpBlock> headers = chain.getBlockHeaders(1, 2);
+		assertEquals(2, headers.size());
+		assertEquals(2, headers.get(0).getBlockId());
+		assertEquals(1, headers.get(1).getBlockId());
+		assertEquals(4, chain.getBlockHeaders(0, 10).size());
+		assertEquals(1, chain.getBlockHeaders(3, 3).size());
+		assertTrue(chain.getBlockHeaders(4, 10).isEmpty());
+	}
+
 	@Test
 	@Parameters(method = "opblockchainBasicParameterWithBlock")
 	public void testGetBlockHeadersById(OpBlockChain opBlockChain) {
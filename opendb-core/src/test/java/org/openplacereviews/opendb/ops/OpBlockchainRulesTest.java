@@ -59,6 +59,28 @@ public class OpBlockchainRulesTest {
 		opOperation.makeImmutable();
 
 		blc.addOperation(opOperation);
+		// type defined by sys.operation gets own metrics
+		assertTrue(OpTypeMetrics.getMetrics().containsKey(OpBlockchainRules.OP_GRANT));
+	}
+
+	@Test
+	public void testTypeMetricsOfUndefinedTypes() throws FailedVerificationException {
+		OpObject opObject = new OpObject();
+		opObject.setId("undefined");
+		OpOperation opOperation = new OpOperation();
+		opOperation.setType("test.undefined-type");
+		opOperation.addCreated(opObject);
+		opOperation.putObjectValue(OpOperation.F_HASH, "sha256:00");
+		opOperation.makeImmutable();
+		long rejected = OpTypeMetrics.get(null).getRejected();
+		try {
+			blc.addOperation(opOperation);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertFalse(OpTypeMetrics.getMetrics().containsKey("test.undefined-type"));
+		assertEquals(rejected + 1, OpTypeMetrics.get("test.undefined-type").getRejected());
 	}
 
 	/**
@@ -208,6 +208,29 @@ public class OpBlockchainTest {
 		assertEquals(0, opBlockChain.getLastBlockId());
 	}
 
+	@Test
+	public void testReplicateTrustedBlock() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+
+		OpBlockChain opBlockChain = new OpBlockChain(blc.getParent(), blc.getRules());
+
+		assertNotNull(opBlockChain.replicateBlock(opBlock, null, false));
+		assertEquals(blc.getLastBlockRawHash(), opBlockChain.getLastBlockRawHash());
+	}
+
+	@Test
+	public void testReplicateTrustedBlockWithWrongMerkleTreeHash() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+		OpBlock wrongBlock = new OpBlock(opBlock, true, false);
+		wrongBlock.putStringValue(OpBlock.F_MERKLE_TREE_HASH, opBlock.getFullHash());
+		wrongBlock.makeImmutable();
+
+		OpBlockChain opBlockChain = new OpBlockChain(blc.getParent(), blc.getRules());
+
+		exceptionRule.expect(IllegalArgumentException.class);
+		opBlockChain.replicateBlock(wrongBlock, null, false);
+	}
+
 	@Test
 	public void testReplicateBlockWithNotEmptyOperationQueue() throws FailedVerificationException {
 		OpOperation opOperation = blc.getQueueOperations().removeFirst();
@@ -233,6 +256,39 @@ public class OpBlockchainTest {
 		assertEquals(blcDB.getParent(), opBlockChain1);
 	}
 
+	@Test
+	public void testRestoreFromCheckpoint() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+
+		Map<String, Map<List<String>, OpObject>> objects = new TreeMap<>();
+		for (String type : blc.getRawSuperblockTypes()) {
+			Map<List<String>, OpObject> objs = new LinkedHashMap<>();
+			blc.getRawSuperblockObjects(type).forEach(e -> objs.put(new ArrayList<>(e.getKey()), e.getValue()));
+			objects.put(type, objs);
+		}
+		OpBlockChain opBlockChain = new OpBlockChain(blc.getParent(), blc.getRules());
+		opBlockChain.restoreFromCheckpoint(Collections.singletonList(opBlock), Collections.emptyList(), objects);
+
+		assertEquals(blc.getLastBlockRawHash(), opBlockChain.getLastBlockRawHash());
+		assertEquals(blc.getSuperBlockHash(), opBlockChain.getSuperBlockHash());
+		for (String type : objects.keySet()) {
+			assertEquals(blc.countAllObjects(type), opBlockChain.countAllObjects(type));
+		}
+		OpOperation op = opBlock.getOperations().get(0);
+		assertEquals(op, opBlockChain.getOperationByHash(op.getRawHash()));
+		assertEquals(OpBlockChain.UNLOCKED, opBlockChain.getStatus());
+	}
+
+	@Test
+	public void testRestoreFromCheckpointNotConnectedBlock() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain opBlockChain = new OpBlockChain(blc, blc.getRules());
+
+		exceptionRule.expect(IllegalArgumentException.class);
+		opBlockChain.restoreFromCheckpoint(Collections.singletonList(opBlock), Collections.emptyList(),
+				Collections.emptyMap());
+	}
+
 	@Test
 	public void testRebaseOperationsWithNotEmptyOperationQueue() throws FailedVerificationException {
 		OpOperation opOperation = blc.getQueueOperations().removeFirst();
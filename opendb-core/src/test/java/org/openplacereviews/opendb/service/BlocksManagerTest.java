@@ -1,11 +1,13 @@
 package org.openplacereviews.opendb.service;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.InjectMocks;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.openplacereviews.opendb.OpenDBServer;
+import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
@@ -18,9 +20,11 @@ import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -45,6 +49,9 @@ public class BlocksManagerTest {
 	@Rule
 	public final PostgreSQLServer.Wiper databaseWiper = new PostgreSQLServer.Wiper();
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Spy
 	@InjectMocks
 	private DBConsensusManager dbConsensusManager;
@@ -63,6 +70,9 @@ public class BlocksManagerTest {
 	@Spy
 	private JsonFormatter formatter;
 
+	@Spy
+	private SlowLogService slowLogService;
+
 	@Spy
 	private LogOperationService logOperationService;
 
@@ -87,9 +97,11 @@ public class BlocksManagerTest {
 		ReflectionTestUtils.setField(dbConsensusManager, "jdbcTemplate", jdbcTemplate);
 		ReflectionTestUtils.setField(dbConsensusManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "backupManager", fileBackupManager);
+		ReflectionTestUtils.setField(dbConsensusManager, "historyManager", historyManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "txTemplate", txTemplate);
 		ReflectionTestUtils.setField(historyManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(historyManager, "jdbcTemplate", jdbcTemplate);
+		ReflectionTestUtils.setField(historyManager, "slowLog", slowLogService);
 		ReflectionTestUtils.setField(historyManager, "blocksManager", blocksManager);
 		ReflectionTestUtils.setField(historyManager, "formatter", formatter);
 		ReflectionTestUtils.setField(blocksManager, "dataManager", dbConsensusManager);
@@ -229,6 +241,121 @@ public class BlocksManagerTest {
 		blocksManager.addOperation(generateRemoveOp(OBJ_ID + 1));
 	}
 
+	@Test
+	public void testSelectLongestChain() {
+		List<OpBlock> headers = new ArrayList<>(Arrays.asList(header(0, "a0", ""), header(1, "a1", "a0"),
+				header(1, "b1", "a0"), header(2, "b2", "b1"), header(3, "b3", "b2"), header(2, "a2", "a1")));
+		assertEquals(new HashSet<>(Arrays.asList("a0", "b1", "b2", "b3")), BlocksManager.selectLongestChain(headers));
+		assertEquals(Collections.emptySet(), BlocksManager.selectLongestChain(Collections.emptyList()));
+	}
+
+	@Test
+	public void testSelectLongestChainFailsOnMissingBlocks() {
+		// blocks 4-5 are missing in the backup
+		List<OpBlock> headers = new ArrayList<>(Arrays.asList(header(0, "a0", ""), header(1, "a1", "a0"),
+				header(2, "a2", "a1"), header(3, "a3", "a2"), header(6, "a6", "a5"), header(7, "a7", "a6")));
+		assertMissingBlocks(headers, "[4, 5]");
+		// block 3 of another chain
+		assertMissingBlocks(Arrays.asList(header(0, "a0", ""), header(1, "a1", "a0"), header(2, "a2", "a1"),
+				header(3, "a3", "a2"), header(4, "c4", "c3")), "[3]");
+		// genesis block is missing
+		assertMissingBlocks(Collections.singletonList(header(1, "a1", "a0")), "[0]");
+	}
+
+	private static void assertMissingBlocks(List<OpBlock> headers, String missing) {
+		try {
+			BlocksManager.selectLongestChain(headers);
+			fail("Restore should fail on missing blocks " + missing);
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("missing blocks: " + missing));
+		}
+	}
+
+	@Test
+	public void testRestoreFromBackup() throws Exception {
+		File dir = folder.newFolder("blocks");
+		List<OpBlock> mainChain = writeBackupWithOrphanedBlock(dir, false);
+		ReflectionTestUtils.setField(blocksManager, "backupManager", createBackupManager(dir));
+		ReflectionTestUtils.setField(blocksManager, "restoreFromBackup", true);
+		assertTrue(blocksManager.isRestoreFromBackupOn());
+
+		assertEquals(2, blocksManager.restoreFromBackup());
+		assertEquals(mainChain.get(1).getRawHash(), blocksManager.getBlockchain().getLastBlockRawHash());
+		assertNotNull(blocksManager.getBlockchain().getObjectByName(OP_ID, OBJ_ID));
+	}
+
+	@Test
+	public void testRestoreFromBackupFailsOnInvalidBlock() throws Exception {
+		File dir = folder.newFolder("blocks");
+		writeBackupWithOrphanedBlock(dir, true);
+		ReflectionTestUtils.setField(blocksManager, "backupManager", createBackupManager(dir));
+		try {
+			blocksManager.restoreFromBackup();
+			fail("Restore should fail on block with wrong hash");
+		} catch (IllegalStateException e) {
+			assertEquals(0, blocksManager.getBlockchain().getLastBlockId());
+		}
+	}
+
+	@Test
+	public void testShutdownStopsReplicateDownloads() {
+		ExecutorService replicateService = ReflectionTestUtils.invokeMethod(blocksManager, "getReplicateService");
+		replicateService.submit(() -> {
+			Thread.sleep(60000);
+			return null;
+		});
+		blocksManager.shutdown();
+		assertTrue(replicateService.isTerminated());
+	}
+
+	private static OpBlock header(int blockId, String hash, String prevHash) {
+		OpBlock b = new OpBlock();
+		b.putObjectValue(OpBlock.F_BLOCKID, blockId);
+		b.putStringValue(OpBlock.F_HASH, hash);
+		b.putStringValue(OpBlock.F_PREV_BLOCK_HASH, prevHash);
+		b.makeImmutable();
+		return b;
+	}
+
+	private FileBackupManager createBackupManager(File dir) {
+		FileBackupManager backup = new FileBackupManager();
+		ReflectionTestUtils.setField(backup, "DIRECTORY", dir.getAbsolutePath());
+		ReflectionTestUtils.setField(backup, "formatter", formatter);
+		backup.init();
+		return backup;
+	}
+
+	/**
+	 * Writes blocks of another node to the backup: 2 blocks of the main chain and orphaned block 1.
+	 * @return blocks of the main chain
+	 */
+	private List<OpBlock> writeBackupWithOrphanedBlock(File dir, boolean brokenLastBlock) throws FailedVerificationException {
+		OpBlockChain src = new OpBlockChain(OpBlockChain.NULL, blockChain.getRules());
+		for (OpOperation op : blockChain.getQueueOperations()) {
+			src.addOperation(op);
+		}
+		OpBlock first = src.createBlock(serverName, serverKeyPair);
+		OpBlockChain fork = new OpBlockChain(src, src.getRules());
+		fork.addOperation(generateStartOperationAndObject().get(0));
+		OpBlock orphaned = fork.createBlock(serverName, serverKeyPair);
+		OpBlockChain main = new OpBlockChain(src, src.getRules());
+		for (OpOperation op : generateStartOperationAndObject()) {
+			main.addOperation(op);
+		}
+		OpBlock last = main.createBlock(serverName, serverKeyPair);
+		if (brokenLastBlock) {
+			last = new OpBlock(last, true, false);
+			last.putStringValue(OpBlock.F_DETAILS, "changed");
+			last.makeImmutable();
+		}
+		FileBackupManager backup = createBackupManager(dir);
+		backup.insertBlock(first);
+		backup.insertBlock(orphaned);
+		backup.insertBlock(last);
+		backup.close();
+		return Arrays.asList(first, last);
+	}
+
 	private OpOperation generateRemoveOp(String id) throws FailedVerificationException {
 		OpOperation opOperation = new OpOperation();
 		opOperation.setType(OP_ID);
@@ -1,6 +1,8 @@
 package org.openplacereviews.opendb.service;
 
+import com.google.gson.JsonParser;
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.InjectMocks;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -18,6 +20,10 @@ import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.util.*;
 
@@ -36,6 +42,9 @@ public class DBConsensusManagerTest {
 	@Rule
 	public final PostgreSQLServer.Wiper databaseWiper = new PostgreSQLServer.Wiper();
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Spy
 	@InjectMocks
 	private DBConsensusManager dbConsensusManager;
@@ -47,9 +56,13 @@ public class DBConsensusManagerTest {
 	@Spy
 	private JsonFormatter formatter;
 
+	@Spy
+	private SlowLogService slowLogService;
+
 	@Spy
 	@InjectMocks
 	private FileBackupManager fileBackupManager;
+	private HistoryManager historyManager = new HistoryManager();
 	private JdbcTemplate jdbcTemplate;
 	private OpenDBServer.MetadataDb metadataDb;
 
@@ -67,6 +80,7 @@ public class DBConsensusManagerTest {
 		ReflectionTestUtils.setField(dbConsensusManager, "jdbcTemplate", jdbcTemplate);
 		ReflectionTestUtils.setField(dbConsensusManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "backupManager", fileBackupManager);
+		ReflectionTestUtils.setField(dbConsensusManager, "historyManager", historyManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "txTemplate", txTemplate);
 
 		Mockito.doCallRealMethod().when(dbSchemaManager).initializeDatabaseSchema(metadataDb, jdbcTemplate);
@@ -282,6 +296,50 @@ public class DBConsensusManagerTest {
 		assertFalse(dbConsensusManager.validateExistingOperation(opOperation));
 	}
 
+	@Test
+	public void testSnapshotExportImport() throws Exception {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+		opBlockChain = dbConsensusManager.saveMainBlockchain(opBlockChain);
+		StringWriter exported = new StringWriter();
+		assertTrue(dbConsensusManager.exportSnapshot(opBlockChain, exported) > 0);
+
+		File snapshot = folder.newFile("snapshot.json");
+		Files.write(snapshot.toPath(), exported.toString().getBytes(StandardCharsets.UTF_8));
+		String topSuperblock = new JsonParser().parse(exported.toString().split("\n")[0]).getAsJsonObject()
+				.get("superblock").getAsString();
+		List<String> tables = new ArrayList<>(dbSchemaManager.getObjectTables());
+		tables.add(BLOCKS_TABLE);
+		tables.add(OPERATIONS_TABLE);
+		jdbcTemplate.execute("TRUNCATE " + String.join(", ", tables));
+
+		DBConsensusManager replica = new DBConsensusManager();
+		ReflectionTestUtils.setField(replica, "jdbcTemplate", jdbcTemplate);
+		ReflectionTestUtils.setField(replica, "txTemplate", ReflectionTestUtils.getField(dbConsensusManager, "txTemplate"));
+		ReflectionTestUtils.setField(replica, "dbSchema", dbSchemaManager);
+		ReflectionTestUtils.setField(replica, "backupManager", fileBackupManager);
+		ReflectionTestUtils.setField(replica, "formatter", formatter);
+		ReflectionTestUtils.setField(replica, "slowLog", slowLogService);
+		ReflectionTestUtils.setField(replica, "snapshotUrl", snapshot.toURI().toString());
+		ReflectionTestUtils.setField(replica, "snapshotSuperblock", topSuperblock);
+		OpBlockChain imported = replica.init(metadataDb);
+
+		assertEquals(opBlockChain.getLastBlockRawHash(), imported.getLastBlockRawHash());
+		assertEquals(40, getAmountFromDbByTable(BLOCKS_TABLE));
+		assertEquals(0, getAmountFromDbByTable(OPERATIONS_TABLE));
+		StringWriter reexported = new StringWriter();
+		replica.exportSnapshot(imported, reexported);
+		// replica has all blocks in one superblock
+		assertEquals(sortedContent(exported.toString()), sortedContent(reexported.toString()));
+	}
+
+	private static List<String> sortedContent(String snapshot) {
+		List<String> lines = new ArrayList<>(Arrays.asList(snapshot.split("\n")));
+		lines.remove(0);
+		Collections.sort(lines);
+		return lines;
+	}
+
 	private long getAmountFromDbByTable(String table) {
 		final long[] amount = new long[1];
 
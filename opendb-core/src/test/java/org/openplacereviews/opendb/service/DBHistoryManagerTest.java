@@ -18,6 +18,7 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import java.sql.Connection;
@@ -25,12 +26,21 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.*;
 import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
 import static org.openplacereviews.opendb.VariableHelperTest.serverName;
+import static org.openplacereviews.opendb.service.DBSchemaManager.OP_OBJ_HISTORY_QUEUE_TABLE;
 import static org.openplacereviews.opendb.service.DBSchemaManager.OP_OBJ_HISTORY_TABLE;
 
 public class DBHistoryManagerTest {
@@ -56,6 +66,9 @@ public class DBHistoryManagerTest {
 	@Spy
 	private JsonFormatter formatter;
 
+	@Spy
+	private SlowLogService slowLogService;
+
 	private HistoryManager historyManager = new HistoryManager();
 	private BlocksManager blocksManager = new BlocksManager();
 	private JdbcTemplate jdbcTemplate;
@@ -63,6 +76,13 @@ public class DBHistoryManagerTest {
 
 	@After
 	public void tearDown() throws Exception {
+		if (jdbcTemplate != null) {
+			// partitions aren't part of the schema, so they're not truncated but dropped
+			for (String table : jdbcTemplate.queryForList("SELECT table_name FROM information_schema.tables " +
+					"WHERE table_name ~ '^" + OP_OBJ_HISTORY_TABLE + "_(archive_)?\\d{6}$'", String.class)) {
+				jdbcTemplate.execute("DROP TABLE " + table);
+			}
+		}
 		databaseServer.wipeDatabase();
 	}
 
@@ -105,6 +125,250 @@ public class DBHistoryManagerTest {
 
 	}
 
+	@Test
+	public void pagingHistoryByCursor() throws SQLException, FailedVerificationException {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		generateOperationsByList(formatter, opBlockChain, BLOCKCHAIN_LIST);
+		OpBlock opBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+		ReflectionTestUtils.setField(historyManager, "isRunning", true);
+		ReflectionTestUtils.setField(historyManager, "txTemplate", generateTxTemplate());
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+
+		List<HistoryManager.HistoryEdit> rows = new ArrayList<>();
+		HistoryManager.HistoryObjectRequest r = new HistoryManager.HistoryObjectRequest(
+				HistoryManager.HISTORY_BY_OBJECT, Arrays.asList("osm.place", "12345662"), 1, HistoryManager.DESC_SORT);
+		assertEquals(1, historyManager.streamHistory(r, e -> {
+			// page is written out after the transaction is finished
+			assertFalse(TransactionSynchronizationManager.isActualTransactionActive());
+			rows.add(e);
+		}));
+		assertNotNull(rows.get(0).getObjEdit());
+
+		r = new HistoryManager.HistoryObjectRequest(HistoryManager.HISTORY_BY_OBJECT,
+				Arrays.asList("osm.place", "12345662"), 1, HistoryManager.DESC_SORT, rows.get(0).getSorder());
+		assertEquals(1, historyManager.streamHistory(r, rows::add));
+		HistoryManager.HistoryEdit next = rows.get(1);
+		assertTrue(next.getSorder() < rows.get(0).getSorder());
+		// versions aren't restored for the next pages
+		if (next.getStatus() == HistoryManager.Status.EDITED) {
+			assertNull(next.getObjEdit());
+		}
+	}
+
+	@Test
+	public void historyQueueIsWritten() throws SQLException, FailedVerificationException {
+		checkHistoryQueueIsWritten(false);
+	}
+
+	@Test
+	public void historyQueueIsWrittenAsync() throws SQLException, FailedVerificationException {
+		checkHistoryQueueIsWritten(true);
+	}
+
+	private void checkHistoryQueueIsWritten(boolean async) throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(false);
+		ReflectionTestUtils.setField(historyManager, "async", async);
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+		historyManager.shutdown();
+
+		assertEquals(0, historyManager.getHistoryQueueSize());
+		assertEquals(0, countRows(OP_OBJ_HISTORY_QUEUE_TABLE));
+		assertEquals(2, getAmountFromHistoryTableByObj("osm.place", Arrays.asList("12345662")));
+	}
+
+	@Test
+	public void historyQueueIsWrittenOnRestart() throws SQLException, FailedVerificationException {
+		checkHistoryQueueIsWrittenOnRestart(false);
+	}
+
+	@Test
+	public void historyQueueIsWrittenOnRestartAsync() throws SQLException, FailedVerificationException {
+		checkHistoryQueueIsWrittenOnRestart(true);
+	}
+
+	private void checkHistoryQueueIsWrittenOnRestart(boolean async) throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(false);
+		// writer is not started, so block stays in the queue as if server was stopped before writing it
+		ReflectionTestUtils.setField(historyManager, "async", true);
+		((AtomicBoolean) ReflectionTestUtils.getField(historyManager, "flushScheduled")).set(true);
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+		assertEquals(1, countRows(OP_OBJ_HISTORY_QUEUE_TABLE));
+		assertEquals(0, countRows(OP_OBJ_HISTORY_TABLE));
+
+		HistoryManager restarted = new HistoryManager();
+		for (String field : Arrays.asList("isRunning", "dbSchema", "jdbcTemplate", "txTemplate", "slowLog",
+				"blocksManager", "formatter")) {
+			ReflectionTestUtils.setField(restarted, field, ReflectionTestUtils.getField(historyManager, field));
+		}
+		ReflectionTestUtils.setField(restarted, "async", async);
+		restarted.init();
+		restarted.shutdown();
+
+		assertEquals(0, restarted.getHistoryQueueSize());
+		assertEquals(0, countRows(OP_OBJ_HISTORY_QUEUE_TABLE));
+		assertEquals(2, getAmountFromHistoryTableByObj("osm.place", Arrays.asList("12345662")));
+	}
+
+	@Test
+	public void queuedBlockIsRemovedAfterHistoryIsWritten() throws Exception {
+		OpBlock opBlock = generateBlock(false);
+		dbConsensusManager.insertBlock(opBlock);
+		ReflectionTestUtils.setField(historyManager, "async", true);
+		CountDownLatch locked = new CountDownLatch(1);
+		Mockito.doAnswer(invocation -> {
+			locked.countDown();
+			Thread.sleep(500);
+			return invocation.callRealMethod();
+		}).when(dbSchemaManager).insertObjIntoHistoryTableBatch(any(), any(), any());
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+		assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+		// queue rows are locked by the writer: removal waits till history is written and deletes it
+		SingleConnectionDataSource ds = new SingleConnectionDataSource(databaseServer.getConnection(), false);
+		try {
+			JdbcTemplate other = new JdbcTemplate(ds);
+			ReflectionTestUtils.setField(dbConsensusManager, "jdbcTemplate", other);
+			ReflectionTestUtils.setField(dbConsensusManager, "txTemplate", generateTxTemplate(other));
+			assertTrue(dbConsensusManager.removeFullBlock(opBlock));
+		} finally {
+			ds.destroy();
+		}
+		historyManager.shutdown();
+
+		assertEquals(0, historyManager.getHistoryQueueSize());
+		assertEquals(0, countRows(OP_OBJ_HISTORY_QUEUE_TABLE));
+		assertEquals(0, countRows(OP_OBJ_HISTORY_TABLE));
+	}
+
+	@Test
+	public void writtenBlockIsRemoved() throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(false);
+		dbConsensusManager.insertBlock(opBlock);
+		ReflectionTestUtils.setField(dbConsensusManager, "txTemplate", generateTxTemplate());
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+		assertTrue(countRows(OP_OBJ_HISTORY_TABLE) > 0);
+
+		assertTrue(dbConsensusManager.removeFullBlock(opBlock));
+		assertEquals(0, historyManager.getHistoryQueueSize());
+		assertEquals(0, countRows(OP_OBJ_HISTORY_TABLE));
+	}
+
+	@Test
+	public void queuedBlockIsRemoved() throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(false);
+		dbConsensusManager.insertBlock(opBlock);
+		ReflectionTestUtils.setField(dbConsensusManager, "txTemplate", generateTxTemplate());
+		ReflectionTestUtils.setField(historyManager, "async", true);
+		((AtomicBoolean) ReflectionTestUtils.getField(historyManager, "flushScheduled")).set(true);
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+		assertEquals(1, historyManager.getHistoryQueueSize());
+
+		assertTrue(dbConsensusManager.removeFullBlock(opBlock));
+		assertEquals(0, historyManager.getHistoryQueueSize());
+		assertEquals(0, countRows(OP_OBJ_HISTORY_QUEUE_TABLE));
+		assertEquals(0, historyManager.flushHistoryQueue());
+		assertEquals(0, countRows(OP_OBJ_HISTORY_TABLE));
+	}
+
+	@Test
+	public void historyIsWrittenIntoMonthlyPartitions() throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(true);
+		historyManager.saveHistoryForBlockOperations(blockAt(opBlock, "2020-01-15T10:00:00.000+0000"), null);
+		historyManager.saveHistoryForBlockOperations(blockAt(opBlock, "2020-02-15T10:00:00.000+0000"), null);
+
+		assertTrue(tableExists(OP_OBJ_HISTORY_TABLE + "_202001"));
+		assertTrue(tableExists(OP_OBJ_HISTORY_TABLE + "_202002"));
+		long rows = countRows(OP_OBJ_HISTORY_TABLE + "_202001");
+		assertTrue(rows > 0);
+		assertEquals(rows, countRows(OP_OBJ_HISTORY_TABLE + "_202002"));
+		assertEquals(0, countRows("ONLY " + OP_OBJ_HISTORY_TABLE));
+		assertEquals(2 * rows, countRows(OP_OBJ_HISTORY_TABLE));
+		assertEquals(0, historyManager.getHistoryQueueSize());
+	}
+
+	@Test
+	public void archivedMonthIsWrittenIntoParentTable() throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(true);
+		ReflectionTestUtils.setField(historyManager, "archiveMonths", 1);
+		historyManager.saveHistoryForBlockOperations(blockAt(opBlock, "2020-01-15T10:00:00.000+0000"), null);
+		long rows = countRows(OP_OBJ_HISTORY_TABLE);
+
+		assertEquals(Arrays.asList(OP_OBJ_HISTORY_TABLE + "_archive_202001"), historyManager.archiveHistory());
+		assertFalse(tableExists(OP_OBJ_HISTORY_TABLE + "_202001"));
+		assertEquals(rows, countRows(OP_OBJ_HISTORY_TABLE + "_archive_202001"));
+		assertEquals(0, countRows(OP_OBJ_HISTORY_TABLE));
+
+		// partition of archived month is not created again
+		historyManager.saveHistoryForBlockOperations(blockAt(opBlock, "2020-01-20T10:00:00.000+0000"), null);
+		assertFalse(tableExists(OP_OBJ_HISTORY_TABLE + "_202001"));
+		assertEquals(rows, countRows("ONLY " + OP_OBJ_HISTORY_TABLE));
+		assertTrue(historyManager.archiveHistory().isEmpty());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void partitionOfArchivedMonthIsMergedIntoArchive() throws SQLException, FailedVerificationException {
+		OpBlock opBlock = generateBlock(true);
+		ReflectionTestUtils.setField(historyManager, "archiveMonths", 1);
+		historyManager.saveHistoryForBlockOperations(blockAt(opBlock, "2020-01-15T10:00:00.000+0000"), null);
+		long rows = countRows(OP_OBJ_HISTORY_TABLE);
+		historyManager.archiveHistory();
+
+		// partition was created again for the archived month (i.e. by the previous versions)
+		Set<String> archivedMonths = (Set<String>) ReflectionTestUtils.getField(dbSchemaManager, "archivedHistoryMonths");
+		archivedMonths.clear();
+		historyManager.saveHistoryForBlockOperations(blockAt(opBlock, "2020-01-20T10:00:00.000+0000"), null);
+		assertTrue(tableExists(OP_OBJ_HISTORY_TABLE + "_202001"));
+		// archive table is found on the next start
+		archivedMonths.add("202001");
+
+		assertEquals(Arrays.asList(OP_OBJ_HISTORY_TABLE + "_archive_202001"), historyManager.archiveHistory());
+		assertFalse(tableExists(OP_OBJ_HISTORY_TABLE + "_202001"));
+		assertEquals(2 * rows, countRows(OP_OBJ_HISTORY_TABLE + "_archive_202001"));
+		assertEquals(0, countRows(OP_OBJ_HISTORY_TABLE));
+	}
+
+	private OpBlock generateBlock(boolean partitions) throws SQLException, FailedVerificationException {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		generateOperationsByList(formatter, opBlockChain, BLOCKCHAIN_LIST);
+		OpBlock opBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+		ReflectionTestUtils.setField(historyManager, "isRunning", true);
+		ReflectionTestUtils.setField(historyManager, "partitions", partitions);
+		ReflectionTestUtils.setField(historyManager, "txTemplate", generateTxTemplate());
+		return opBlock;
+	}
+
+	private OpBlock blockAt(OpBlock opBlock, String date) {
+		OpBlock cp = new OpBlock(opBlock, true, false);
+		cp.putStringValue(OpBlock.F_DATE, date);
+		return cp;
+	}
+
+	private boolean tableExists(String table) {
+		return jdbcTemplate.queryForObject("SELECT count(*) FROM information_schema.tables WHERE table_name = ?",
+				Integer.class, table) > 0;
+	}
+
+	private long countRows(String table) {
+		return jdbcTemplate.queryForObject("SELECT count(*) FROM " + table, Long.class);
+	}
+
+	private TransactionTemplate generateTxTemplate() {
+		return generateTxTemplate(jdbcTemplate);
+	}
+
+	private TransactionTemplate generateTxTemplate(JdbcTemplate jdbcTemplate) {
+		DataSourceTransactionManager txManager = new DataSourceTransactionManager();
+		txManager.setDataSource(jdbcTemplate.getDataSource());
+		TransactionTemplate txTemplate = new TransactionTemplate();
+		txTemplate.setTransactionManager(txManager);
+		return txTemplate;
+	}
+
 	private void generateDBConnection() throws SQLException {
 		MockitoAnnotations.initMocks(this);
 
@@ -114,8 +378,10 @@ public class DBHistoryManagerTest {
 		ReflectionTestUtils.setField(dbConsensusManager, "jdbcTemplate", jdbcTemplate);
 		ReflectionTestUtils.setField(dbConsensusManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "backupManager", fileBackupManager);
+		ReflectionTestUtils.setField(dbConsensusManager, "historyManager", historyManager);
 		ReflectionTestUtils.setField(historyManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(historyManager, "jdbcTemplate", jdbcTemplate);
+		ReflectionTestUtils.setField(historyManager, "slowLog", slowLogService);
 		ReflectionTestUtils.setField(historyManager, "blocksManager", blocksManager);
 		ReflectionTestUtils.setField(historyManager, "formatter", formatter);
 		Mockito.doNothing().when(fileBackupManager).init();
@@ -0,0 +1,157 @@
+package org.openplacereviews.opendb.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileBackupManagerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileBackupManager backupManager;
+	private JsonFormatter formatter;
+
+	@Before
+	public void beforeEachTestMethod() {
+		formatter = Mockito.spy(new JsonFormatter());
+		backupManager = new FileBackupManager();
+		ReflectionTestUtils.setField(backupManager, "DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(backupManager, "formatter", formatter);
+		ReflectionTestUtils.setField(backupManager, "async", true);
+		ReflectionTestUtils.setField(backupManager, "MAX_FILE_SIZE", 10);
+		backupManager.init();
+	}
+
+	@After
+	public void afterEachTestMethod() {
+		backupManager.close();
+	}
+
+	private static OpBlock block(int id) {
+		OpBlock b = new OpBlock();
+		b.putObjectValue(OpBlock.F_BLOCKID, id);
+		b.putStringValue(OpBlock.F_HASH, String.format("json:sha256:%064x", id + 1));
+		b.makeImmutable();
+		return b;
+	}
+
+	@Test
+	public void testQueuedBlocksAreWrittenOnClose() throws Exception {
+		List<OpBlock> blocks = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			blocks.add(block(i));
+			backupManager.insertBlock(blocks.get(i));
+		}
+		backupManager.close();
+		assertEquals(0, backupManager.getBackupQueueSize());
+		assertEquals(0, backupManager.getBackupFailedBlocks());
+		List<OpBlock> read = new ArrayList<>();
+		assertEquals(25, backupManager.readBlocks(0, 24, read::add));
+		for (int i = 0; i < 25; i++) {
+			assertEquals(blocks.get(i).getRawHash(), read.get(i).getRawHash());
+		}
+	}
+
+	@Test
+	public void testFullQueueBlocksInsert() throws Exception {
+		ReflectionTestUtils.setField(backupManager, "queueSize", 1);
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		OpBlock first = block(0);
+		Mockito.doAnswer(invocation -> {
+			writing.countDown();
+			release.await();
+			return invocation.callRealMethod();
+		}).when(formatter).fullObjectToJson(first);
+		backupManager.insertBlock(first);
+		assertTrue(writing.await(10, TimeUnit.SECONDS));
+		backupManager.insertBlock(block(1));
+		Thread inserting = new Thread(() -> backupManager.insertBlock(block(2)));
+		inserting.start();
+		inserting.join(300);
+		// block waits for the queue instead of being skipped
+		assertTrue(inserting.isAlive());
+
+		release.countDown();
+		inserting.join();
+		backupManager.close();
+		assertEquals(0, backupManager.getBackupFailedBlocks());
+		List<OpBlock> read = new ArrayList<>();
+		assertEquals(3, backupManager.readBlocks(0, 2, read::add));
+	}
+
+	@Test
+	public void testLegacyBackupIsConverted() throws Exception {
+		File dir = new File(folder.getRoot(), "0");
+		dir.mkdirs();
+		File legacy = new File(dir, "0-10.gz");
+		// gzip member per block as it was written by the previous versions
+		for (int i = 0; i < 3; i++) {
+			try (Writer w = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(legacy, true)),
+					StandardCharsets.UTF_8)) {
+				w.write("\n---------------------\n");
+				w.write(formatter.fullObjectToJson(block(i)));
+			}
+		}
+		backupManager.init();
+
+		assertFalse(legacy.exists());
+		assertTrue(new File(dir, "0-10.gz.converted").exists());
+		List<OpBlock> read = new ArrayList<>();
+		assertEquals(3, backupManager.readBlocks(0, 9, read::add));
+		assertEquals(block(2).getRawHash(), read.get(2).getRawHash());
+	}
+
+	@Test
+	public void testWriterSurvivesFailedBlock() throws Exception {
+		OpBlock failed = block(1);
+		Mockito.doThrow(new IllegalStateException("test")).when(formatter).fullObjectToJson(failed);
+		backupManager.insertBlock(block(0));
+		backupManager.insertBlock(failed);
+		backupManager.insertBlock(block(2));
+		backupManager.close();
+		assertEquals(1, backupManager.getBackupFailedBlocks());
+		assertNotNull(backupManager.readBlock(0, block(0).getRawHash()));
+		assertNull(backupManager.readBlock(1, failed.getRawHash()));
+		assertNotNull(backupManager.readBlock(2, block(2).getRawHash()));
+	}
+
+	@Test
+	public void testWriterSurvivesInvalidHash() throws Exception {
+		OpBlock invalid = new OpBlock();
+		invalid.putObjectValue(OpBlock.F_BLOCKID, 1);
+		invalid.putStringValue(OpBlock.F_HASH, "json:sha256:01");
+		invalid.makeImmutable();
+		backupManager.insertBlock(block(0));
+		backupManager.insertBlock(invalid);
+		backupManager.insertBlock(block(2));
+		backupManager.close();
+		assertEquals(1, backupManager.getBackupFailedBlocks());
+		List<OpBlock> read = new ArrayList<>();
+		assertEquals(2, backupManager.readBlocks(0, 2, read::add));
+	}
+}
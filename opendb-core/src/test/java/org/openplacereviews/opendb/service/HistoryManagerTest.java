@@ -75,6 +75,26 @@ public class HistoryManagerTest {
 		assertEquals(((List)originObject.getFieldByExpr("tags")).size(), 1);
 	}
 
+	@Test
+	public void testReverseEditByDelta() {
+		OpObject current = generateTestDeletedDeltaObject();
+		TreeMap<String, Object> changes = generateObjEdit();
+		TreeMap<String, Object> delta = new TreeMap<>();
+		delta.put("lat", "222EC");
+		delta.put("lon", 12345);
+		delta.put("tags", ((List) current.getFieldByExpr("tags")).subList(0, 2));
+		changes.put(OpObject.F_DELTA, delta);
+
+		OpObject prev = historyManager.generateReverseEditObject(current, changes);
+		assertEquals("222EC", prev.getFieldByExpr("lat"));
+		assertEquals(12345, prev.getFieldByExpr("lon"));
+		assertEquals(2, ((List) prev.getFieldByExpr("tags")).size());
+		// changed field which isn't part of delta was absent
+		assertNull(prev.getFieldByExpr("addf"));
+		assertEquals(12346, current.getFieldByExpr("lon"));
+		assertEquals(3, ((List) current.getFieldByExpr("tags")).size());
+	}
+
 	private HistoryManager.HistoryEdit generateHistoryEdit(OpObject delataChanges, HistoryManager.Status status, TreeMap<String, Object> objEdit) {
 		HistoryManager.HistoryEdit historyEdit = new HistoryManager.HistoryEdit(
 				Arrays.asList("user", "test1"),
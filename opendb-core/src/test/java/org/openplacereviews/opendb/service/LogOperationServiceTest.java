@@ -0,0 +1,77 @@
+package org.openplacereviews.opendb.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.service.LogOperationService.LogEntry;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogOperationServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LogOperationService createService(String directory) {
+		LogOperationService logService = new LogOperationService();
+		ReflectionTestUtils.setField(logService, "formatter", new JsonFormatter());
+		ReflectionTestUtils.setField(logService, "directory", directory);
+		logService.init();
+		return logService;
+	}
+
+	@Test
+	public void testRingBufferKeepsLastEntries() throws Exception {
+		LogOperationService logService = createService("");
+		for (int i = 0; i < 1500; i++) {
+			logService.logError(null, ErrorType.OP_EMPTY, "msg " + i, null);
+		}
+		List<LogEntry> log = logService.getLog(null, 0, Long.MAX_VALUE, 2000);
+		assertEquals(1000, log.size());
+		assertEquals("msg 500", log.get(0).message);
+		assertEquals("msg 1499", log.get(999).message);
+
+		logService.clearLogs();
+		assertEquals(0, logService.getLog().size());
+		logService.shutdown();
+	}
+
+	@Test
+	public void testFilterByType() throws Exception {
+		LogOperationService logService = createService("");
+		logService.logError(null, ErrorType.OP_EMPTY, "empty", null);
+		logService.logError(null, ErrorType.OP_HASH_IS_DUPLICATED, "duplicated", null);
+		logService.logSuccessBlock(null, "block");
+		assertEquals("duplicated", logService.getLog(ErrorType.OP_HASH_IS_DUPLICATED.name(), 0, Long.MAX_VALUE, 10).get(0).message);
+		assertEquals("block", logService.getLog(LogOperationService.TYPE_SUCCESS, 0, Long.MAX_VALUE, 10).get(0).message);
+		assertEquals(0, logService.getLog(null, System.currentTimeMillis() + 1000, Long.MAX_VALUE, 10).size());
+		logService.shutdown();
+	}
+
+	@Test
+	public void testEntriesArePersisted() throws Exception {
+		String dir = folder.newFolder("logs").getAbsolutePath();
+		LogOperationService logService = createService(dir);
+		OpOperation op = new OpOperation();
+		op.setType("sys.signup");
+		logService.logError(op, ErrorType.OP_EMPTY, "empty", new IllegalArgumentException("cause"));
+		logService.logSuccessBlock(null, "block");
+		logService.shutdown();
+
+		LogOperationService restarted = createService(dir);
+		List<LogEntry> log = restarted.getLog(null, 0, Long.MAX_VALUE, 10);
+		assertEquals(2, log.size());
+		assertEquals("empty", log.get(0).message);
+		assertEquals(ErrorType.OP_EMPTY, log.get(0).status);
+		assertEquals("cause", log.get(0).causeMessage);
+		assertEquals("sys.signup", log.get(0).obj.getStringValue(OpOperation.F_TYPE));
+		assertEquals("block", log.get(1).message);
+		restarted.shutdown();
+	}
+}
@@ -59,6 +59,9 @@ public class OpBlockchainCompactSearchTest {
 	@Spy
 	private JsonFormatter formatter;
 
+	@Spy
+	private SlowLogService slowLogService;
+
 	@Spy
 	private LogOperationService logOperationService;
 
@@ -86,9 +89,11 @@ public class OpBlockchainCompactSearchTest {
 		ReflectionTestUtils.setField(dbConsensusManager, "jdbcTemplate", jdbcTemplate);
 		ReflectionTestUtils.setField(dbConsensusManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "backupManager", fileBackupManager);
+		ReflectionTestUtils.setField(dbConsensusManager, "historyManager", historyManager);
 		ReflectionTestUtils.setField(dbConsensusManager, "txTemplate", txTemplate);
 		ReflectionTestUtils.setField(historyManager, "dbSchema", dbSchemaManager);
 		ReflectionTestUtils.setField(historyManager, "jdbcTemplate", jdbcTemplate);
+		ReflectionTestUtils.setField(historyManager, "slowLog", slowLogService);
 		ReflectionTestUtils.setField(historyManager, "blocksManager", blocksManager);
 		ReflectionTestUtils.setField(historyManager, "formatter", formatter);
 		ReflectionTestUtils.setField(blocksManager, "dataManager", dbConsensusManager);
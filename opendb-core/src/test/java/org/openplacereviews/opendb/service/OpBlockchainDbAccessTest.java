@@ -46,6 +46,9 @@ public class OpBlockchainDbAccessTest {
 	@Spy
 	private JsonFormatter formatter;
 
+	@Spy
+	private SlowLogService slowLogService;
+
 	@Spy
 	@InjectMocks
 	private FileBackupManager fileBackupManager;
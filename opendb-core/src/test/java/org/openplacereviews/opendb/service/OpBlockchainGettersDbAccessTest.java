@@ -48,6 +48,9 @@ public class OpBlockchainGettersDbAccessTest {
 
 	@Spy
 	private JsonFormatter jsonFormatter;
+
+	@Spy
+	private SlowLogService slowLogService;
 	private OpBlockchainGettersTest opBlockchainGettersTest;
 	private JdbcTemplate jdbcTemplate;
 	private OpenDBServer.MetadataDb metadataDb;
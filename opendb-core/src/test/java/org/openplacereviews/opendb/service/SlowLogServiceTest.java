@@ -0,0 +1,57 @@
+package org.openplacereviews.opendb.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockchainRules;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.openplacereviews.opendb.ObjectGeneratorTest.generateOperations;
+
+public class SlowLogServiceTest {
+
+	private SlowLogService slowLog;
+
+	@Before
+	public void beforeEachTestMethod() {
+		slowLog = new SlowLogService();
+		ReflectionTestUtils.setField(slowLog, "size", 2);
+	}
+
+	@Test
+	public void testSlowQueriesAreBounded() {
+		ReflectionTestUtils.setField(slowLog, "queryThresholdMs", 0);
+		long st = System.nanoTime() - 1000000;
+		slowLog.logQuery("select 1", new Object[] { new byte[32], "a" }, 1, st);
+		slowLog.logQuery("select 2", null, -1, st);
+		slowLog.logQuery("select 3", null, 5, st);
+		assertEquals(2, slowLog.getQueries().size());
+		SlowLogService.SlowQueryEntry last = slowLog.getQueries().iterator().next();
+		assertEquals("select 3", last.sql);
+		assertEquals(5, last.rows);
+		assertTrue(last.durationMs >= 1);
+	}
+
+	@Test
+	public void testFastQueriesAreSkipped() {
+		slowLog.logQuery("select 1", null, 1, System.nanoTime());
+		assertTrue(slowLog.getQueries().isEmpty());
+	}
+
+	@Test
+	public void testSlowOperations() throws Exception {
+		JsonFormatter formatter = new JsonFormatter();
+		OpBlockchainRules rules = new OpBlockchainRules(formatter, null);
+		rules.setSlowOperationListener(slowLog, 0);
+		OpBlockChain blc = new OpBlockChain(OpBlockChain.NULL, rules);
+		generateOperations(formatter, blc);
+		assertEquals(2, slowLog.getOperations().size());
+		SlowLogService.SlowOperationEntry e = slowLog.getOperations().iterator().next();
+		assertTrue(e.valid);
+		assertTrue(e.phasesMs.containsKey("prepare"));
+		assertTrue(e.durationMs > 0);
+	}
+}
@@ -0,0 +1,92 @@
+package org.openplacereviews.opendb.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockArchiveTest {
+
+	private static final String HASH_1 = "00ac5a8b1f7f8e2c4f3a2d1e0b9c8d7e6f5a4b3c2d1e0f9a8b7c6d5e4f3a2b1c";
+	private static final String HASH_2 = "01ac5a8b1f7f8e2c4f3a2d1e0b9c8d7e6f5a4b3c2d1e0f9a8b7c6d5e4f3a2b1c";
+	private static final String HASH_3 = "02ac5a8b1f7f8e2c4f3a2d1e0b9c8d7e6f5a4b3c2d1e0f9a8b7c6d5e4f3a2b1c";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] block(int id) {
+		StringBuilder sb = new StringBuilder("{\"block_id\":" + id + ",\"operations\":[");
+		for (int i = 0; i < 100; i++) {
+			sb.append(i == 0 ? "" : ",").append("{\"type\":\"sys.signup\",\"name\":\"user").append(i).append("\"}");
+		}
+		return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String read(BlockArchive a, BlockArchive.Entry e) throws IOException {
+		return new String(a.read(e), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testAppendAndRead() throws IOException {
+		File f = new File(folder.getRoot(), "0/0-1000" + BlockArchive.DATA_EXT);
+		try (BlockArchive a = BlockArchive.open(f, true)) {
+			a.append(1, HASH_1, "", block(1));
+			a.append(2, HASH_2, HASH_1, block(2));
+			// orphaned block with the same id
+			a.append(2, HASH_3, HASH_1, block(2));
+			a.sync();
+		}
+		assertEquals(true, f.length() < 3 * block(1).length);
+
+		try (BlockArchive a = BlockArchive.open(f, false)) {
+			assertEquals(3, a.getEntries().size());
+			List<BlockArchive.Entry> blocks = a.find(2);
+			assertEquals(2, blocks.size());
+			assertEquals(HASH_2, blocks.get(0).getRawHash());
+			assertEquals(HASH_3, blocks.get(1).getRawHash());
+			assertEquals(HASH_1, blocks.get(1).getPrevRawHash());
+			assertEquals("", a.find(1).get(0).getPrevRawHash());
+			assertEquals(new String(block(2), StandardCharsets.UTF_8), read(a, blocks.get(1)));
+			assertEquals(new String(block(1), StandardCharsets.UTF_8), read(a, a.find(1).get(0)));
+			assertEquals(0, a.find(3).size());
+		}
+	}
+
+	@Test
+	public void testIndexIsRestored() throws IOException {
+		File f = new File(folder.getRoot(), "0-1000" + BlockArchive.DATA_EXT);
+		File idx = new File(folder.getRoot(), "0-1000" + BlockArchive.INDEX_EXT);
+		try (BlockArchive a = BlockArchive.open(f, true)) {
+			a.append(1, HASH_1, "", block(1));
+			a.append(2, HASH_2, HASH_1, block(2));
+		}
+		// lost index entry of the last block and partially written block
+		try (RandomAccessFile r = new RandomAccessFile(idx, "rw")) {
+			r.setLength(r.length() / 2);
+		}
+		long dataLength = f.length();
+		try (RandomAccessFile r = new RandomAccessFile(f, "rw")) {
+			r.seek(dataLength);
+			r.write(new byte[] { 0x4f, 0x50, 0x42, 0x4b, 0, 0 });
+		}
+
+		try (BlockArchive a = BlockArchive.open(f, true)) {
+			assertEquals(2, a.getEntries().size());
+			assertEquals(dataLength, f.length());
+			assertEquals(new String(block(2), StandardCharsets.UTF_8), read(a, a.find(2).get(0)));
+			a.append(3, HASH_3, HASH_2, block(3));
+		}
+		try (BlockArchive a = BlockArchive.open(f, false)) {
+			assertEquals(3, a.getEntries().size());
+			assertEquals(new String(block(3), StandardCharsets.UTF_8), read(a, a.find(3).get(0)));
+			assertEquals(HASH_2, a.find(3).get(0).getPrevRawHash());
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package org.openplacereviews.opendb.util;
+
+import org.junit.Test;
+import org.openplacereviews.opendb.util.InstrumentedJdbcTemplate.StatementType;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InstrumentedJdbcTemplateTest {
+
+	@Test
+	public void testStatementType() {
+		assertEquals(StatementType.SELECT, InstrumentedJdbcTemplate.getStatementType(" SELECT content from blocks"));
+		assertEquals(StatementType.INSERT, InstrumentedJdbcTemplate.getStatementType("insert into blocks(hash) values(?)"));
+		assertEquals(StatementType.UPDATE, InstrumentedJdbcTemplate.getStatementType("\n\tUpdate blocks set superblock = ?"));
+		assertEquals(StatementType.DELETE, InstrumentedJdbcTemplate.getStatementType("DELETE FROM blocks"));
+		assertEquals(StatementType.DDL, InstrumentedJdbcTemplate.getStatementType("create index on blocks(hash)"));
+		assertEquals(StatementType.OTHER, InstrumentedJdbcTemplate.getStatementType("WITH moved_rows AS (DELETE FROM blocks)"));
+		assertEquals(StatementType.OTHER, InstrumentedJdbcTemplate.getStatementType((String) null));
+	}
+
+	@Test
+	public void testRowsAndErrors() throws SQLException {
+		DataSource ds = mock(DataSource.class);
+		Connection conn = mock(Connection.class);
+		PreparedStatement ps = mock(PreparedStatement.class);
+		when(ds.getConnection()).thenReturn(conn);
+		when(conn.prepareStatement(anyString())).thenReturn(ps);
+		when(ps.executeUpdate()).thenReturn(3).thenThrow(new SQLException("failed"));
+		InstrumentedJdbcTemplate template = new InstrumentedJdbcTemplate(ds);
+
+		long rows = template.getRows(StatementType.UPDATE);
+		long errors = template.getErrors(StatementType.UPDATE);
+		assertEquals(3, template.update("update blocks set superblock = ?", "a"));
+		try {
+			template.update("update blocks set superblock = ?", "b");
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(rows + 3, template.getRows(StatementType.UPDATE));
+		assertEquals(errors + 1, template.getErrors(StatementType.UPDATE));
+	}
+}